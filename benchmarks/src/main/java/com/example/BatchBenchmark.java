@@ -0,0 +1,82 @@
+package com.example;
+
+import org.altbeacon.beacon.Beacon;
+import org.apache.cordova.CallbackContext;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batched delivery as setBatching sets it up: cyclesPerFlush cycles coalesced into the
+ * batcher, then one flush to the bridge. Each operation is one such batch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BatchBenchmark {
+    private static final int CALLBACKS = 64;
+
+    @Param({"10", "1000", "10000"})
+    public int registrySize;
+
+    @Param({"json", "binary"})
+    public String encoding;
+
+    @Param({"10"})
+    public int cyclesPerFlush;
+
+    private BeaconRegistry registry;
+    private BeaconLayouts layouts;
+    private BeaconPipeline pipeline;
+    private ResultBatcher batcher;
+    private final List<List<Beacon>> callbacks = new ArrayList<>();
+    private final BeaconCycle cycle = new BeaconCycle(64);
+    private final CallbackContext callbackContext = new CallbackContext();
+    private int next;
+
+    @Setup
+    public void setUp() throws JSONException {
+        registry = BeaconRegistry.fromJson(Fixtures.beaconData(registrySize));
+        layouts = BeaconLayouts.defaults();
+        pipeline = Fixtures.pipeline(registry);
+        pipeline.setRegisteredOnly(true);
+        pipeline.subscribe(new BeaconPipeline.Subscription(BeaconPipeline.DEFAULT_SUBSCRIPTION,
+            new KeptSink(callbackContext), null, "binary".equals(encoding), null));
+        // Flushed by the benchmark only; the size cap is out of reach
+        batcher = ResultBatcher.fromOptions(new JSONObject().put("maxBatchSize", 100000).put("maxPending", 100000));
+        pipeline.setBatcher(batcher);
+        Random random = new Random(42);
+        for (int i = 0; i < CALLBACKS; i++) {
+            callbacks.add(Fixtures.ranged(registry, 30, 10, random));
+        }
+    }
+
+    @Benchmark
+    public long batch() throws JSONException {
+        for (int i = 0; i < cyclesPerFlush; i++) {
+            next = (next + 1) % CALLBACKS;
+            layouts.fill(cycle, callbacks.get(next), registry, true);
+            pipeline.process(cycle);
+        }
+        pipeline.flush(batcher);
+        return callbackContext.getResults();
+    }
+}
@@ -0,0 +1,140 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup and update throughput of the identity map behind the registry, and of registry
+ * lookups with their lock, at 10, 1000 and 10000 registered beacons; listScan is the
+ * List&lt;Map&gt; scan the registry replaced, matching the same probes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BeaconIdMapBenchmark {
+    private static final int PROBES = 1024;
+
+    @Param({"10", "1000", "10000"})
+    public int registrySize;
+
+    private BeaconIdMap map;
+    private BeaconRegistry registry;
+    private final long[] msb = new long[PROBES];
+    private final long[] lsb = new long[PROBES];
+    private final int[] majorMinor = new int[PROBES];
+    // The same probes as the ranging callback used to see them
+    private final String[] uuid = new String[PROBES];
+    private final int[] major = new int[PROBES];
+    private final int[] minor = new int[PROBES];
+    private List<Map<String, Object>> beaconData;
+    private int next;
+
+    @Setup
+    public void setUp() throws JSONException {
+        JSONArray beaconDataArray = Fixtures.beaconData(registrySize);
+        registry = BeaconRegistry.fromJson(beaconDataArray);
+        beaconData = listOf(beaconDataArray);
+        map = new BeaconIdMap(registrySize);
+        for (int index = 0; index < registry.highWater(); index++) {
+            map.put(registry.uuidMsb(index), registry.uuidLsb(index),
+                BeaconIdMap.pack(registry.major(index), registry.minor(index)));
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < PROBES; i++) {
+            int index = random.nextInt(registry.highWater());
+            msb[i] = registry.uuidMsb(index);
+            lsb[i] = registry.uuidLsb(index);
+            majorMinor[i] = BeaconIdMap.pack(registry.major(index), registry.minor(index));
+            uuid[i] = new UUID(msb[i], lsb[i]).toString();
+            major[i] = registry.major(index);
+            minor[i] = registry.minor(index);
+        }
+    }
+
+    /**
+     * The beacon data as the plugin's initialize() kept it before the registry.
+     */
+    private static List<Map<String, Object>> listOf(JSONArray beaconDataArray) throws JSONException {
+        List<Map<String, Object>> beaconData = new ArrayList<>();
+        for (int i = 0; i < beaconDataArray.length(); i++) {
+            JSONObject beaconObj = beaconDataArray.getJSONObject(i);
+            Map<String, Object> beacon = new HashMap<>();
+            beacon.put("title", beaconObj.getString("title"));
+            beacon.put("uuid", beaconObj.getString("uuid"));
+            beacon.put("major", beaconObj.getInt("major"));
+            beacon.put("minor", beaconObj.getInt("minor"));
+            beacon.put("url", beaconObj.getString("url"));
+            beaconData.add(beacon);
+        }
+        return beaconData;
+    }
+
+    @Benchmark
+    public int getHit() {
+        int i = next++ & (PROBES - 1);
+        return map.get(msb[i], lsb[i], majorMinor[i]);
+    }
+
+    @Benchmark
+    public int getMiss() {
+        int i = next++ & (PROBES - 1);
+        return map.get(msb[i], ~lsb[i], majorMinor[i]);
+    }
+
+    /**
+     * A newcomer added and dropped again, as a tracker does with beacons passing by.
+     */
+    @Benchmark
+    public int putRemove() {
+        int i = next++ & (PROBES - 1);
+        int handle = map.put(~msb[i], lsb[i], majorMinor[i]);
+        map.remove(handle);
+        return handle;
+    }
+
+    @Benchmark
+    public int registryFind() {
+        int i = next++ & (PROBES - 1);
+        return registry.find(msb[i], lsb[i], BeaconIdMap.major(majorMinor[i]), BeaconIdMap.minor(majorMinor[i]));
+    }
+
+    /**
+     * The match registryFind replaced: a linear scan with a case-insensitive UUID compare
+     * and unboxed major/minor per entry.
+     */
+    @Benchmark
+    public Object listScan() {
+        int i = next++ & (PROBES - 1);
+        for (Map<String, Object> data : beaconData) {
+            if (uuid[i].equalsIgnoreCase((String) data.get("uuid")) &&
+                major[i] == (int) data.get("major") &&
+                minor[i] == (int) data.get("minor")) {
+                return data.get("title");
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,109 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One cycle's result in either encoding: JSON records as the default subscription builds
+ * them against BinaryBeaconEncoder's fixed records, each alone and with the bridge's own
+ * encoding on top (JSON text, base64 of the bytes). Payload sizes per cycle are printed at
+ * setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodingBenchmark {
+    private static final int CYCLES = 64;
+
+    @Param({"10", "1000", "10000"})
+    public int registrySize;
+
+    // Beacons per cycle, up to a busy site's 100+; past the registry's size the rest are foreign
+    @Param({"30", "100", "200"})
+    public int inRange;
+
+    private BeaconRegistry registry;
+    private BeaconPipeline pipeline;
+    private final BeaconCycle[] cycles = new BeaconCycle[CYCLES];
+    private int next;
+
+    @Setup
+    public void setUp() throws JSONException {
+        registry = BeaconRegistry.fromJson(Fixtures.beaconData(registrySize));
+        pipeline = Fixtures.pipeline(registry);
+        BeaconLayouts layouts = BeaconLayouts.defaults();
+        Random random = new Random(42);
+        int registered = Math.min(inRange, registrySize);
+        for (int i = 0; i < CYCLES; i++) {
+            cycles[i] = new BeaconCycle(inRange);
+            layouts.fill(cycles[i], Fixtures.ranged(registry, registered, inRange - registered, random), registry, false);
+        }
+
+        BeaconCycle cycle = cycles[0];
+        String json = json(cycle).toString();
+        byte[] binary = binary(cycle);
+        System.out.printf("%n%d beacons per cycle: JSON %d chars, binary %d bytes (%d as base64)%n",
+            cycle.size(), json.length(), binary.length, Base64.getEncoder().encodeToString(binary).length());
+    }
+
+    private BeaconCycle nextCycle() {
+        next = (next + 1) % CYCLES;
+        return cycles[next];
+    }
+
+    private JSONArray json(BeaconCycle cycle) throws JSONException {
+        JSONArray beaconArray = new JSONArray();
+        BeaconPipeline.forEachRecord(cycle, null, null, pipeline.jsonCollector(beaconArray), 0);
+        return beaconArray;
+    }
+
+    private byte[] binary(BeaconCycle cycle) throws JSONException {
+        BinaryBeaconEncoder encoder = new BinaryBeaconEncoder(registry, null, cycle.size());
+        BeaconPipeline.forEachRecord(cycle, null, null, encoder, 0);
+        return encoder.toByteArray();
+    }
+
+    @Benchmark
+    public JSONArray jsonRecords() throws JSONException {
+        return json(nextCycle());
+    }
+
+    /**
+     * What the bridge is handed: the records serialized to text.
+     */
+    @Benchmark
+    public int jsonMessage() throws JSONException {
+        return json(nextCycle()).toString().length();
+    }
+
+    @Benchmark
+    public byte[] binaryRecords() throws JSONException {
+        return binary(nextCycle());
+    }
+
+    /**
+     * What the bridge is handed: the records base64-encoded.
+     */
+    @Benchmark
+    public int binaryMessage() throws JSONException {
+        return Base64.getEncoder().encodeToString(binary(nextCycle())).length();
+    }
+}
@@ -0,0 +1,81 @@
+package com.example;
+
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.Identifier;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Beacon lists and ranging callbacks shaped like the ones the plugin deals with. What the
+ * plugin does with them (BeaconRegistry.fromJson, BeaconLayouts.fill, KeptSink) is the
+ * shipped code, called directly.
+ */
+final class Fixtures {
+    // Registered beacons are spread over a few site UUIDs, 100 minors per major
+    private static final UUID[] SITES = {
+        UUID.fromString("f7826da6-4fa2-4e98-8024-bc5b71e0893e"),
+        UUID.fromString("e2c56db5-dffb-48d2-b060-d0f5a71096e0"),
+        UUID.fromString("b9407f30-f5f8-466e-aff9-25556b57fe6d"),
+        UUID.fromString("fda50693-a4e2-4fb1-afcf-c6eb07647825"),
+    };
+    private static final UUID FOREIGN = UUID.fromString("74278bda-b644-4520-8f0c-720eaf059935");
+    private static final int MINORS_PER_MAJOR = 100;
+
+    private Fixtures() {
+    }
+
+    /**
+     * The initialize() argument for count beacons, as JS sends it, with map coordinates on
+     * a 5 m grid.
+     */
+    static JSONArray beaconData(int count) throws JSONException {
+        JSONArray beacons = new JSONArray();
+        int columns = (int) Math.ceil(Math.sqrt(count));
+        for (int i = 0; i < count; i++) {
+            JSONObject beacon = new JSONObject();
+            beacon.put("uuid", SITES[i % SITES.length].toString());
+            beacon.put("major", i / SITES.length / MINORS_PER_MAJOR);
+            beacon.put("minor", i / SITES.length % MINORS_PER_MAJOR);
+            beacon.put("title", "Beacon " + i);
+            beacon.put("url", "https://example.com/beacons/" + i);
+            beacon.put("x", (i % columns) * 5.0);
+            beacon.put("y", (i / columns) * 5.0);
+            beacons.put(beacon);
+        }
+        return beacons;
+    }
+
+    /**
+     * One ranging callback's worth of iBeacons: registered ones picked at random from the
+     * registry, then foreign ones that early rejection should drop.
+     */
+    static List<Beacon> ranged(BeaconRegistry registry, int registered, int foreign, Random random) {
+        List<Beacon> beacons = new ArrayList<>(registered + foreign);
+        for (int i = 0; i < registered; i++) {
+            int index = random.nextInt(registry.highWater());
+            beacons.add(new Beacon("ibeacon",
+                Identifier.fromUuid(new UUID(registry.uuidMsb(index), registry.uuidLsb(index))),
+                Identifier.fromInt(registry.major(index)),
+                Identifier.fromInt(registry.minor(index)),
+                0.5 + random.nextDouble() * 20, -50 - random.nextInt(45)));
+        }
+        for (int i = 0; i < foreign; i++) {
+            beacons.add(new Beacon("ibeacon", Identifier.fromUuid(FOREIGN),
+                Identifier.fromInt(random.nextInt(0x10000)), Identifier.fromInt(random.nextInt(0x10000)),
+                0.5 + random.nextDouble() * 20, -50 - random.nextInt(45)));
+        }
+        return beacons;
+    }
+
+    static BeaconPipeline pipeline(BeaconRegistry registry) {
+        BeaconPipeline pipeline = new BeaconPipeline(periodMs -> { }, 10000);
+        pipeline.setRegistry(registry);
+        return pipeline;
+    }
+}
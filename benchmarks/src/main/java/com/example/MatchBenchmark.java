@@ -0,0 +1,70 @@
+package com.example;
+
+import org.altbeacon.beacon.Beacon;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-cycle matching alone: mapping a ranging callback into the cycle buffer, rejecting
+ * foreign UUIDs on their first identifier and dropping whatever the registry does not know.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MatchBenchmark {
+    private static final int CALLBACKS = 64;
+
+    @Param({"10", "1000", "10000"})
+    public int registrySize;
+
+    @Param({"30"})
+    public int inRange;
+
+    @Param({"10"})
+    public int foreign;
+
+    private BeaconRegistry registry;
+    private BeaconLayouts layouts;
+    private BeaconPipeline pipeline;
+    private final List<List<Beacon>> callbacks = new ArrayList<>();
+    private final BeaconCycle cycle = new BeaconCycle(64);
+    private int next;
+
+    @Setup
+    public void setUp() throws JSONException {
+        registry = BeaconRegistry.fromJson(Fixtures.beaconData(registrySize));
+        layouts = BeaconLayouts.defaults();
+        pipeline = Fixtures.pipeline(registry);
+        pipeline.setRegisteredOnly(true);
+        Random random = new Random(42);
+        for (int i = 0; i < CALLBACKS; i++) {
+            callbacks.add(Fixtures.ranged(registry, inRange, foreign, random));
+        }
+    }
+
+    @Benchmark
+    public int match() {
+        next = (next + 1) % CALLBACKS;
+        layouts.fill(cycle, callbacks.get(next), registry, true);
+        pipeline.dropForeign(cycle);
+        return cycle.size();
+    }
+}
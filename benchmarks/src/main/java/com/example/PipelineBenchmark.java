@@ -0,0 +1,87 @@
+package com.example;
+
+import org.altbeacon.beacon.Beacon;
+import org.apache.cordova.CallbackContext;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One ranging cycle through the plugin: mapping AltBeacon's beacons into the cycle buffer
+ * with early rejection of foreign UUIDs, registry matching, and building and sending the
+ * result in either encoding. A rotating set of pre-built callbacks stands in for ranging.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+    private static final int CALLBACKS = 64;
+
+    @Param({"10", "1000", "10000"})
+    public int registrySize;
+
+    @Param({"json", "binary"})
+    public String encoding;
+
+    // Registered and foreign beacons per ranging callback
+    @Param({"30"})
+    public int inRange;
+
+    @Param({"10"})
+    public int foreign;
+
+    private BeaconRegistry registry;
+    private BeaconLayouts layouts;
+    private BeaconPipeline pipeline;
+    private final List<List<Beacon>> callbacks = new ArrayList<>();
+    private final BeaconCycle cycle = new BeaconCycle(64);
+    private final CallbackContext callbackContext = new CallbackContext();
+    private int next;
+
+    @Setup
+    public void setUp() throws JSONException {
+        registry = BeaconRegistry.fromJson(Fixtures.beaconData(registrySize));
+        layouts = BeaconLayouts.defaults();
+        pipeline = Fixtures.pipeline(registry);
+        pipeline.setRegisteredOnly(true);
+        pipeline.subscribe(new BeaconPipeline.Subscription(BeaconPipeline.DEFAULT_SUBSCRIPTION,
+            new KeptSink(callbackContext), null, "binary".equals(encoding), null));
+        Random random = new Random(42);
+        for (int i = 0; i < CALLBACKS; i++) {
+            callbacks.add(Fixtures.ranged(registry, inRange, foreign, random));
+        }
+    }
+
+    private List<Beacon> nextCallback() {
+        next = (next + 1) % CALLBACKS;
+        return callbacks.get(next);
+    }
+
+    /**
+     * The whole cycle, including the result handed to the bridge; MatchBenchmark has the
+     * matching alone.
+     */
+    @Benchmark
+    public long process() {
+        layouts.fill(cycle, nextCallback(), registry, true);
+        pipeline.process(cycle);
+        return callbackContext.getResults();
+    }
+}
@@ -0,0 +1,51 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the initialize action: parsing the beacon list as Cordova hands it over and
+ * building the registry from it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RegistryBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int registrySize;
+
+    private String args;
+    private JSONArray parsed;
+
+    @Setup
+    public void setUp() throws JSONException {
+        parsed = Fixtures.beaconData(registrySize);
+        args = parsed.toString();
+    }
+
+    @Benchmark
+    public BeaconRegistry initialize() throws JSONException {
+        return BeaconRegistry.fromJson(new JSONArray(args));
+    }
+
+    @Benchmark
+    public BeaconRegistry buildParsed() throws JSONException {
+        return BeaconRegistry.fromJson(parsed);
+    }
+}
@@ -0,0 +1,66 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting the registry back at startup: restoring RegistryStore's cache file (warm start)
+ * against the JSON initialize() it replaces (cold start), from the same beacon list. The
+ * cache file stays in the page cache, as it does on a device that relaunches the app.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RegistryStoreBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int registrySize;
+
+    private String args;
+    private File file;
+    private RegistryStore store;
+
+    @Setup
+    public void setUp() throws JSONException, IOException {
+        JSONArray beaconData = Fixtures.beaconData(registrySize);
+        args = beaconData.toString();
+        file = File.createTempFile("registry", ".bin");
+        store = new RegistryStore(file);
+        store.save(BeaconRegistry.fromJson(beaconData));
+        System.out.printf("%n%d beacons: %d bytes cached, %d chars of JSON%n",
+            registrySize, file.length(), args.length());
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.delete();
+    }
+
+    @Benchmark
+    public BeaconRegistry load() throws IOException {
+        return store.load();
+    }
+
+    @Benchmark
+    public BeaconRegistry initialize() throws JSONException {
+        return BeaconRegistry.fromJson(new JSONArray(args));
+    }
+}
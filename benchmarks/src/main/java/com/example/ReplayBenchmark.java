@@ -0,0 +1,119 @@
+package com.example;
+
+import org.apache.cordova.CallbackContext;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A synthetic replay at speed 0 through the pipeline, as startReplay runs one, with a
+ * single-thread executor as the main looper: the score is the time per replayed cycle, and
+ * the pipeline's cycle latency percentiles over each measurement iteration are printed after
+ * it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplayBenchmark {
+    private static final int CYCLES = 1000;
+
+    @Param({"1000"})
+    public int registrySize;
+
+    // Beacons in the synthetic layout; those beyond the registry are foreign
+    @Param({"1500"})
+    public int beacons;
+
+    @Param({"json", "binary"})
+    public String encoding;
+
+    private final ExecutorService mainThread = Executors.newSingleThreadExecutor();
+    private BeaconRegistry registry;
+    private BeaconPipeline pipeline;
+    private JSONObject options;
+
+    @Setup
+    public void setUp() throws JSONException {
+        registry = BeaconRegistry.fromJson(Fixtures.beaconData(registrySize));
+        pipeline = Fixtures.pipeline(registry);
+        pipeline.subscribe(new BeaconPipeline.Subscription(BeaconPipeline.DEFAULT_SUBSCRIPTION,
+            new KeptSink(new CallbackContext()), null, "binary".equals(encoding), null));
+        JSONObject synthetic = new JSONObject();
+        synthetic.put("beacons", beacons);
+        synthetic.put("cycles", CYCLES);
+        synthetic.put("interval", 1000);
+        synthetic.put("seed", 7);
+        options = new JSONObject();
+        options.put("synthetic", synthetic);
+        options.put("speed", 0);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetMetrics() {
+        pipeline.getMetrics().reset(System.currentTimeMillis());
+    }
+
+    @TearDown(Level.Iteration)
+    public void printLatency() throws JSONException {
+        JSONObject latency = pipeline.getMetrics().toJson(System.currentTimeMillis()).getJSONObject("cycleLatencyUs");
+        System.out.printf("  cycle latency over %d cycles: p50 %d us, p95 %d us, p99 %d us, max %d us%n",
+            latency.getLong("count"), latency.getLong("p50"), latency.getLong("p95"), latency.getLong("p99"),
+            latency.getLong("max"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        mainThread.shutdownNow();
+    }
+
+    /**
+     * One replay of CYCLES cycles, scored per cycle.
+     */
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public long replay() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        ReplaySource source = ReplaySource.fromOptions(new File("."), registry, options, new ReplaySource.Target() {
+            @Override
+            public void deliver(BeaconCycle cycle, long now, Runnable recycle) {
+                mainThread.execute(() -> {
+                    try {
+                        pipeline.process(cycle, now);
+                    } finally {
+                        recycle.run();
+                    }
+                });
+            }
+
+            @Override
+            public void finished(ReplaySource finished, Exception error) {
+                done.countDown();
+            }
+        });
+        source.start();
+        done.await();
+        return source.getStats().getLong("beacons");
+    }
+}
@@ -0,0 +1,53 @@
+package org.altbeacon.beacon;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stand-in for a ranged AltBeacon Beacon, carrying what the plugin reads from one.
+ */
+public class Beacon {
+    private final String parserIdentifier;
+    private final Identifier id1;
+    private final Identifier id2;
+    private final Identifier id3;
+    private final double distance;
+    private final int rssi;
+
+    public Beacon(String parserIdentifier, Identifier id1, Identifier id2, Identifier id3, double distance, int rssi) {
+        this.parserIdentifier = parserIdentifier;
+        this.id1 = id1;
+        this.id2 = id2;
+        this.id3 = id3;
+        this.distance = distance;
+        this.rssi = rssi;
+    }
+
+    public String getParserIdentifier() {
+        return parserIdentifier;
+    }
+
+    public Identifier getId1() {
+        return id1;
+    }
+
+    public Identifier getId2() {
+        return id2;
+    }
+
+    public Identifier getId3() {
+        return id3;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public List<Long> getExtraDataFields() {
+        return Collections.emptyList();
+    }
+}
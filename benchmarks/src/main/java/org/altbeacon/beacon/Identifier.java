@@ -0,0 +1,46 @@
+package org.altbeacon.beacon;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Stand-in for AltBeacon's Identifier: the raw bytes of one beacon identifier.
+ */
+public class Identifier {
+    private final byte[] value;
+
+    private Identifier(byte[] value) {
+        this.value = value;
+    }
+
+    public static Identifier fromUuid(UUID uuid) {
+        return new Identifier(ByteBuffer.allocate(16)
+            .putLong(uuid.getMostSignificantBits())
+            .putLong(uuid.getLeastSignificantBits())
+            .array());
+    }
+
+    public static Identifier fromInt(int value) {
+        return new Identifier(new byte[] {(byte) (value >>> 8), (byte) value});
+    }
+
+    public static Identifier fromBytes(byte[] bytes, int start, int end, boolean littleEndian) {
+        byte[] value = new byte[end - start];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = bytes[littleEndian ? end - 1 - i : start + i];
+        }
+        return new Identifier(value);
+    }
+
+    public byte[] toByteArray() {
+        return value.clone();
+    }
+
+    public int toInt() {
+        int result = 0;
+        for (byte b : value) {
+            result = (result << 8) | (b & 0xFF);
+        }
+        return result;
+    }
+}
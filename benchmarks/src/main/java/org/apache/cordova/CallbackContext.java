@@ -0,0 +1,48 @@
+package org.apache.cordova;
+
+/**
+ * Stand-in for Cordova's CallbackContext that keeps count of what would have crossed the
+ * bridge instead of posting it to a WebView.
+ */
+public class CallbackContext {
+    private long results;
+    private long errors;
+    private long bytes;
+    private PluginResult last;
+
+    public synchronized void sendPluginResult(PluginResult result) {
+        results++;
+        if (result.getStatus() == PluginResult.Status.ERROR) {
+            errors++;
+        }
+        bytes += result.getEncodedMessage().length();
+        last = result;
+    }
+
+    public void success(String message) {
+        sendPluginResult(new PluginResult(PluginResult.Status.OK, message));
+    }
+
+    public void error(String message) {
+        sendPluginResult(new PluginResult(PluginResult.Status.ERROR, message));
+    }
+
+    public synchronized long getResults() {
+        return results;
+    }
+
+    public synchronized long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Characters of encoded messages sent so far.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized PluginResult getLast() {
+        return last;
+    }
+}
@@ -0,0 +1,52 @@
+package org.apache.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Base64;
+
+/**
+ * Stand-in for Cordova's PluginResult. Like the real one it encodes its message for the
+ * bridge when built (JSON as text, binary as base64), so benchmarks that send results pay
+ * the same serialization the WebView bridge does.
+ */
+public class PluginResult {
+    public enum Status { OK, ERROR }
+
+    private final Status status;
+    private final String encodedMessage;
+    private boolean keepCallback;
+
+    public PluginResult(Status status, JSONArray message) {
+        this(status, message.toString());
+    }
+
+    public PluginResult(Status status, JSONObject message) {
+        this(status, message.toString());
+    }
+
+    public PluginResult(Status status, byte[] message) {
+        this(status, Base64.getEncoder().encodeToString(message));
+    }
+
+    public PluginResult(Status status, String message) {
+        this.status = status;
+        this.encodedMessage = message;
+    }
+
+    public void setKeepCallback(boolean keepCallback) {
+        this.keepCallback = keepCallback;
+    }
+
+    public boolean getKeepCallback() {
+        return keepCallback;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getEncodedMessage() {
+        return encodedMessage;
+    }
+}
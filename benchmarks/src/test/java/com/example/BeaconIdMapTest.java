@@ -0,0 +1,159 @@
+package com.example;
+
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BeaconIdMapTest {
+    // A fresh map for up to 4 entries has an 8-slot table
+    private static final int TABLE_MASK = 7;
+
+    @Test
+    public void putGetRemove() {
+        BeaconIdMap map = new BeaconIdMap();
+        int a = map.put(1L, 2L, BeaconIdMap.pack(1, 1));
+        int b = map.put(1L, 2L, BeaconIdMap.pack(1, 2));
+        assertNotEquals(a, b);
+        assertEquals(2, map.size());
+        assertEquals(a, map.put(1L, 2L, BeaconIdMap.pack(1, 1)));
+        assertEquals(2, map.size());
+        assertEquals(a, map.get(1L, 2L, BeaconIdMap.pack(1, 1)));
+        assertEquals(BeaconIdMap.NONE, map.get(1L, 3L, BeaconIdMap.pack(1, 1)));
+        assertEquals(1L, map.hi(b));
+        assertEquals(2L, map.lo(b));
+        assertEquals(2, BeaconIdMap.minor(map.ext(b)));
+
+        map.remove(a);
+        assertEquals(1, map.size());
+        assertFalse(map.isLive(a));
+        assertEquals(BeaconIdMap.NONE, map.get(1L, 2L, BeaconIdMap.pack(1, 1)));
+        assertEquals(b, map.get(1L, 2L, BeaconIdMap.pack(1, 2)));
+
+        // Removing twice, or a handle never handed out, changes nothing
+        map.remove(a);
+        map.remove(99);
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void handlesAreRecycled() {
+        BeaconIdMap map = new BeaconIdMap();
+        int a = map.put(1L, 1L, 1);
+        map.put(2L, 2L, 2);
+        map.remove(a);
+        assertEquals(a, map.put(3L, 3L, 3));
+        assertEquals(2, map.highWater());
+        assertTrue(map.isLive(a));
+    }
+
+    @Test
+    public void packSplitsMajorAndMinor() {
+        int packed = BeaconIdMap.pack(0xFFFF, 0xFFFE);
+        assertEquals(0xFFFF, BeaconIdMap.major(packed));
+        assertEquals(0xFFFE, BeaconIdMap.minor(packed));
+    }
+
+    /**
+     * Keys whose home is the table's last slot probe on into slot 0 and up; removing the
+     * first of them must pull the rest back across the end of the table.
+     */
+    @Test
+    public void backwardShiftAcrossWraparound() throws Exception {
+        List<long[]> lastSlot = keysWithHome(TABLE_MASK, 3);
+        List<long[]> firstSlot = keysWithHome(0, 1);
+
+        BeaconIdMap map = new BeaconIdMap(4);
+        int[] handles = new int[4];
+        for (int i = 0; i < 3; i++) {
+            handles[i] = map.put(lastSlot.get(i)[0], lastSlot.get(i)[1], (int) lastSlot.get(i)[2]);
+        }
+        // Homed at 0 but displaced past the wrapped chain
+        handles[3] = map.put(firstSlot.get(0)[0], firstSlot.get(0)[1], (int) firstSlot.get(0)[2]);
+        assertEquals(4, map.size());
+
+        map.remove(handles[0]);
+        assertEquals(BeaconIdMap.NONE, map.get(lastSlot.get(0)[0], lastSlot.get(0)[1], (int) lastSlot.get(0)[2]));
+        assertEquals(handles[1], map.get(lastSlot.get(1)[0], lastSlot.get(1)[1], (int) lastSlot.get(1)[2]));
+        assertEquals(handles[2], map.get(lastSlot.get(2)[0], lastSlot.get(2)[1], (int) lastSlot.get(2)[2]));
+        assertEquals(handles[3], map.get(firstSlot.get(0)[0], firstSlot.get(0)[1], (int) firstSlot.get(0)[2]));
+
+        // The wrapped key moved back into the last slot, so removing it empties slot 0 again
+        map.remove(handles[1]);
+        map.remove(handles[2]);
+        assertEquals(handles[3], map.get(firstSlot.get(0)[0], firstSlot.get(0)[1], (int) firstSlot.get(0)[2]));
+        assertEquals(1, map.size());
+    }
+
+    /**
+     * Random puts and removes against a HashMap, from an empty map through several table
+     * resizes, checking every key after each step.
+     */
+    @Test
+    public void matchesHashMapThroughResizes() {
+        Random random = new Random(7);
+        BeaconIdMap map = new BeaconIdMap(4);
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int step = 0; step < 20000; step++) {
+            // A small key space keeps collisions, removals and re-insertions frequent
+            long key = random.nextInt(600);
+            int ext = (int) (key % 5);
+            if (random.nextInt(3) == 0 && expected.containsKey(key)) {
+                map.remove(expected.remove(key));
+            } else {
+                int handle = map.put(key, ~key, ext);
+                Integer previous = expected.put(key, handle);
+                if (previous != null) {
+                    assertEquals(previous.intValue(), handle);
+                }
+            }
+            if (step % 97 == 0) {
+                assertContents(map, expected);
+            }
+        }
+        assertContents(map, expected);
+        assertTrue(map.capacity() >= expected.size());
+    }
+
+    private static void assertContents(BeaconIdMap map, Map<Long, Integer> expected) {
+        assertEquals(expected.size(), map.size());
+        for (long key = 0; key < 600; key++) {
+            Integer handle = expected.get(key);
+            assertEquals(handle != null ? handle : BeaconIdMap.NONE, map.get(key, ~key, (int) (key % 5)));
+        }
+        int live = 0;
+        for (int handle = 0; handle < map.highWater(); handle++) {
+            if (map.isLive(handle)) {
+                live++;
+                assertEquals(Integer.valueOf(handle), expected.get(map.hi(handle)));
+            }
+        }
+        assertEquals(expected.size(), live);
+    }
+
+    /**
+     * Identities whose hash puts them at home in the given slot of an 8-slot table; the
+     * hash is private, so it is called reflectively.
+     */
+    private static List<long[]> keysWithHome(int slot, int count) throws Exception {
+        Method hash = BeaconIdMap.class.getDeclaredMethod("hash", long.class, long.class, int.class);
+        hash.setAccessible(true);
+        List<long[]> keys = new ArrayList<>();
+        for (long candidate = 1; keys.size() < count; candidate++) {
+            int h = (Integer) hash.invoke(null, candidate, candidate * 31, 7);
+            if ((h & TABLE_MASK) == slot) {
+                keys.add(new long[] {candidate, candidate * 31, 7});
+            }
+        }
+        return keys;
+    }
+}
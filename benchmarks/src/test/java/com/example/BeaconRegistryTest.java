@@ -0,0 +1,158 @@
+package com.example;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BeaconRegistryTest {
+    private static final String SITE = "f7826da6-4fa2-4e98-8024-bc5b71e0893e";
+    private static final UUID SITE_UUID = UUID.fromString(SITE);
+
+    private static int find(BeaconRegistry registry, int major, int minor) {
+        return registry.find(SITE_UUID.getMostSignificantBits(), SITE_UUID.getLeastSignificantBits(), major, minor);
+    }
+
+    @Test
+    public void addAndFind() {
+        BeaconRegistry registry = new BeaconRegistry();
+        assertTrue(registry.add(SITE, 1, 2, "Lobby", "https://example.com/lobby", 0));
+        assertFalse(registry.add(SITE, 1, 2, "Duplicate", "https://example.com/dup", 1));
+        assertEquals(1, registry.size());
+
+        int index = find(registry, 1, 2);
+        assertEquals("Lobby", registry.title(index));
+        assertEquals(0, registry.position(index));
+        assertEquals(SITE, registry.uuid(index));
+        assertEquals(-1, find(registry, 1, 3));
+        // Out of range identifiers are simply not registered
+        assertEquals(-1, find(registry, 0x10000, 2));
+        assertEquals(-1, find(registry, 1, -1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMajorOutOfRange() {
+        new BeaconRegistry().add(SITE, 0x10000, 0, "t", "u", 0);
+    }
+
+    @Test
+    public void upsertKeepsPositionsAndAppends() {
+        BeaconRegistry registry = new BeaconRegistry();
+        registry.add(SITE, 1, 1, "a", "u", 0);
+        registry.add(SITE, 1, 2, "b", "u", 1);
+        registry.setNextPosition(2);
+
+        assertEquals(0, registry.upsert(SITE, 1, 1, "a2", "u2"));
+        assertEquals("a2", registry.title(find(registry, 1, 1)));
+        assertEquals(2, registry.upsert(SITE, 1, 3, "c", "u"));
+        assertEquals(3, registry.nextPosition());
+    }
+
+    @Test
+    public void removeLeavesAGap() {
+        BeaconRegistry registry = new BeaconRegistry();
+        for (int minor = 0; minor < 3; minor++) {
+            registry.upsert(SITE, 1, minor, "t" + minor, "u");
+        }
+        int removedIndex = find(registry, 1, 1);
+        assertEquals(1, registry.remove(SITE, 1, 1));
+        assertEquals(-1, registry.remove(SITE, 1, 1));
+        assertFalse(registry.contains(removedIndex));
+        assertNull(registry.title(removedIndex));
+        assertEquals(2, registry.size());
+
+        // New entries go after the highest position ever used, never into the gap
+        assertEquals(3, registry.upsert(SITE, 1, 7, "t7", "u"));
+        assertEquals(2, registry.position(find(registry, 1, 2)));
+    }
+
+    @Test
+    public void revisionMovesOnIdentityChangesOnly() {
+        BeaconRegistry registry = new BeaconRegistry();
+        int start = registry.revision();
+        registry.upsert(SITE, 1, 1, "a", "u");
+        int added = registry.revision();
+        assertTrue(added != start);
+
+        registry.upsert(SITE, 1, 1, "renamed", "u");
+        registry.setLocation(SITE, 1, 1, 3.0, 4.0, 2);
+        assertEquals(added, registry.revision());
+
+        registry.remove(SITE, 1, 1);
+        assertTrue(registry.revision() != added);
+    }
+
+    @Test
+    public void locations() {
+        BeaconRegistry registry = new BeaconRegistry();
+        registry.upsert(SITE, 1, 1, "a", "u");
+        int index = find(registry, 1, 1);
+        assertFalse(registry.hasLocation(index));
+        assertTrue(registry.setLocation(SITE, 1, 1, 3.0, 4.0, 2));
+        assertTrue(registry.hasLocation(index));
+        assertEquals(4.0, registry.y(index), 0);
+        assertEquals(2, registry.floor(index));
+        assertTrue(registry.setLocation(SITE, 1, 1, Double.NaN, 4.0, 0));
+        assertFalse(registry.hasLocation(index));
+        assertFalse(registry.setLocation(SITE, 9, 9, 1.0, 1.0, 0));
+    }
+
+    @Test
+    public void growsPastItsInitialCapacity() {
+        BeaconRegistry registry = new BeaconRegistry(2);
+        for (int minor = 0; minor < 5000; minor++) {
+            registry.upsert(SITE, minor / 1000, minor % 1000, "t" + minor, "u");
+        }
+        for (int minor = 0; minor < 5000; minor += 2) {
+            registry.remove(SITE, minor / 1000, minor % 1000);
+        }
+        assertEquals(2500, registry.size());
+        for (int minor = 0; minor < 5000; minor++) {
+            int index = find(registry, minor / 1000, minor % 1000);
+            if (minor % 2 == 0) {
+                assertEquals(-1, index);
+            } else {
+                assertEquals("t" + minor, registry.title(index));
+                assertEquals(minor, registry.position(index));
+            }
+        }
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        BeaconRegistry registry = new BeaconRegistry();
+        registry.upsert(SITE, 1, 1, "a", "u");
+        registry.upsert(SITE, 1, 2, "b", "u");
+        registry.upsert(SITE, 1, 3, "c", "u");
+        registry.remove(SITE, 1, 2);
+        registry.setLocation(SITE, 1, 3, 3.0, 4.0, 2);
+        registry.setEtag("v1");
+
+        BeaconRegistry copy = registry.copy();
+        assertEquals(2, copy.size());
+        assertEquals(registry.revision(), copy.revision());
+        assertEquals(3, copy.nextPosition());
+        assertEquals("v1", copy.getEtag());
+        int index = find(copy, 1, 3);
+        assertEquals(2, copy.position(index));
+        assertEquals("c", copy.title(index));
+        assertEquals(4.0, copy.y(index), 0);
+        assertEquals(2, copy.floor(index));
+        assertFalse(copy.hasLocation(find(copy, 1, 1)));
+        assertEquals(-1, find(copy, 1, 2));
+
+        // Changes to the copy leave the original as it was, and the other way round
+        assertEquals(3, copy.upsert(SITE, 1, 4, "d", "u"));
+        copy.remove(SITE, 1, 1);
+        registry.upsert(SITE, 1, 3, "renamed", "u");
+        assertEquals(2, registry.size());
+        assertEquals(-1, find(registry, 1, 4));
+        assertEquals("a", registry.title(find(registry, 1, 1)));
+        assertEquals("c", copy.title(find(copy, 1, 3)));
+        assertTrue(copy.revision() != registry.revision());
+    }
+}
@@ -0,0 +1,197 @@
+package com.example;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fixes on a synthetic layout: a 4 × 4 grid of beacons 10 m apart, heard from known spots
+ * with exact or noisy distances.
+ */
+public class PositionEstimatorTest {
+    private static final String SITE = "f7826da6-4fa2-4e98-8024-bc5b71e0893e";
+    private static final UUID SITE_UUID = UUID.fromString(SITE);
+    private static final int COLUMNS = 4;
+    private static final double SPACING = 10.0;
+
+    private static BeaconRegistry grid() {
+        BeaconRegistry registry = new BeaconRegistry();
+        for (int i = 0; i < COLUMNS * COLUMNS; i++) {
+            registry.add(SITE, 1, i, "Beacon " + i, "https://example.com/" + i, i);
+            registry.setLocation(SITE, 1, i, (i % COLUMNS) * SPACING, (i / COLUMNS) * SPACING, 0);
+        }
+        return registry;
+    }
+
+    private static PositionEstimator estimator(int maxBeacons) throws Exception {
+        JSONObject options = new JSONObject();
+        options.put("maxBeacons", maxBeacons);
+        options.put("maxDistance", 50);
+        options.put("alpha", 0.5);
+        options.put("resetAfter", 10000);
+        return PositionEstimator.fromOptions(options);
+    }
+
+    private static void hear(BeaconCycle cycle, int minor, double distance) {
+        cycle.add(SITE_UUID.getMostSignificantBits(), SITE_UUID.getLeastSignificantBits(),
+            BeaconIdMap.pack(1, minor), distance, (int) Math.round(-59 - 20 * Math.log10(Math.max(0.1, distance))));
+    }
+
+    /**
+     * What the device at (x, y) hears from every grid beacon, distances scaled by 1 + noise × a
+     * standard normal draw.
+     */
+    private static BeaconCycle heardFrom(double x, double y, double noise, Random random) {
+        BeaconCycle cycle = new BeaconCycle(COLUMNS * COLUMNS);
+        for (int i = 0; i < COLUMNS * COLUMNS; i++) {
+            double dx = (i % COLUMNS) * SPACING - x;
+            double dy = (i / COLUMNS) * SPACING - y;
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            hear(cycle, i, Math.max(0.1, distance * (1 + noise * random.nextGaussian())));
+        }
+        return cycle;
+    }
+
+    @Test
+    public void exactDistancesGiveTheTrueSpot() throws Exception {
+        BeaconRegistry registry = grid();
+        double[][] spots = {{13, 17}, {5, 5}, {25, 2}, {29, 29}, {0.5, 20}};
+        for (double[] spot : spots) {
+            PositionEstimator estimator = estimator(5);
+            assertTrue(estimator.update(heardFrom(spot[0], spot[1], 0, new Random(1)), registry, null, 1000));
+            JSONObject fix = estimator.toJson(1000);
+            assertEquals(PositionEstimator.LEAST_SQUARES, fix.getString("method"));
+            assertEquals(5, fix.getInt("beacons"));
+            assertEquals(spot[0], fix.getDouble("x"), 0.05);
+            assertEquals(spot[1], fix.getDouble("y"), 0.05);
+            assertEquals(0, fix.getDouble("accuracy"), 0.05);
+        }
+    }
+
+    @Test
+    public void noisyDistancesStayWithinTolerance() throws Exception {
+        BeaconRegistry registry = grid();
+        Random random = new Random(7);
+        double worst = 0;
+        for (int trial = 0; trial < 200; trial++) {
+            // Inside the grid, where the beacons surround the device
+            double x = 3 + random.nextDouble() * 24;
+            double y = 3 + random.nextDouble() * 24;
+            PositionEstimator estimator = estimator(5);
+            assertTrue(estimator.update(heardFrom(x, y, 0.1, random), registry, null, 1000));
+            JSONObject fix = estimator.toJson(1000);
+            assertEquals(PositionEstimator.LEAST_SQUARES, fix.getString("method"));
+            worst = Math.max(worst, Math.hypot(fix.getDouble("x") - x, fix.getDouble("y") - y));
+        }
+        assertTrue("Worst error " + worst + " m with 10% range noise", worst < 3.0);
+    }
+
+    @Test
+    public void laterFixesAreBlendedUntilReset() throws Exception {
+        BeaconRegistry registry = grid();
+        PositionEstimator estimator = estimator(5);
+        estimator.update(heardFrom(10, 10, 0, new Random(1)), registry, null, 1000);
+        estimator.update(heardFrom(20, 10, 0, new Random(1)), registry, null, 2000);
+        // alpha 0.5 of the way from the old position to the new fix
+        JSONObject fix = estimator.toJson(2000);
+        assertEquals(15, fix.getDouble("x"), 0.05);
+        assertEquals(10, fix.getDouble("y"), 0.05);
+
+        // After resetAfter without a fix, the next one is taken as is
+        estimator.update(heardFrom(20, 20, 0, new Random(1)), registry, null, 20000);
+        fix = estimator.toJson(20000);
+        assertEquals(20, fix.getDouble("x"), 0.05);
+        assertEquals(20, fix.getDouble("y"), 0.05);
+    }
+
+    @Test
+    public void twoBeaconsFallBackToWeightedCentroid() throws Exception {
+        BeaconRegistry registry = grid();
+        PositionEstimator estimator = estimator(5);
+        BeaconCycle cycle = new BeaconCycle(2);
+        hear(cycle, 0, 2);
+        hear(cycle, 1, 8);
+        assertTrue(estimator.update(cycle, registry, null, 1000));
+
+        JSONObject fix = estimator.toJson(1000);
+        assertEquals(PositionEstimator.CENTROID, fix.getString("method"));
+        // Weights 1/d²: (0 × 1/4 + 10 × 1/64) / (1/4 + 1/64)
+        assertEquals(10.0 / 64 / (1.0 / 4 + 1.0 / 64), fix.getDouble("x"), 1e-9);
+        assertEquals(0, fix.getDouble("y"), 1e-9);
+    }
+
+    @Test
+    public void collinearBeaconsFallBackToWeightedCentroid() throws Exception {
+        BeaconRegistry registry = grid();
+        PositionEstimator estimator = estimator(5);
+        BeaconCycle cycle = new BeaconCycle(3);
+        // The bottom row: (0, 0), (10, 0), (20, 0)
+        hear(cycle, 0, 5);
+        hear(cycle, 1, 5);
+        hear(cycle, 2, 10);
+        assertTrue(estimator.update(cycle, registry, null, 1000));
+
+        JSONObject fix = estimator.toJson(1000);
+        assertEquals(PositionEstimator.CENTROID, fix.getString("method"));
+        assertEquals(0, fix.getDouble("y"), 1e-9);
+        assertEquals((10.0 / 25 + 20.0 / 100) / (2.0 / 25 + 1.0 / 100), fix.getDouble("x"), 1e-9);
+    }
+
+    @Test
+    public void oneBeaconGivesItsCoordinates() throws Exception {
+        BeaconRegistry registry = grid();
+        PositionEstimator estimator = estimator(5);
+        BeaconCycle cycle = new BeaconCycle(1);
+        hear(cycle, 6, 3);
+        assertTrue(estimator.update(cycle, registry, null, 1000));
+
+        JSONObject fix = estimator.toJson(1000);
+        assertEquals(PositionEstimator.NEAREST, fix.getString("method"));
+        assertEquals(20, fix.getDouble("x"), 0);
+        assertEquals(10, fix.getDouble("y"), 0);
+        assertEquals(3, fix.getDouble("accuracy"), 0);
+    }
+
+    @Test
+    public void ignoresUnlocatedForeignAndFarBeacons() throws Exception {
+        BeaconRegistry registry = grid();
+        registry.add(SITE, 2, 0, "Unlocated", "https://example.com/unlocated", 16);
+        PositionEstimator estimator = estimator(5);
+        BeaconCycle cycle = new BeaconCycle(4);
+        cycle.add(SITE_UUID.getMostSignificantBits(), SITE_UUID.getLeastSignificantBits(),
+            BeaconIdMap.pack(2, 0), 1, -50);
+        cycle.add(1, 2, BeaconIdMap.pack(1, 0), 1, -50);
+        hear(cycle, 5, 60);
+        assertFalse(estimator.update(cycle, registry, null, 1000));
+
+        // One usable beacon among them is enough for a nearest fix
+        hear(cycle, 5, 4);
+        assertTrue(estimator.update(cycle, registry, null, 2000));
+        JSONObject fix = estimator.toJson(2000);
+        assertEquals(PositionEstimator.NEAREST, fix.getString("method"));
+        assertEquals(1, fix.getInt("beacons"));
+    }
+
+    @Test
+    public void usesTheFloorOfTheStrongestBeacon() throws Exception {
+        BeaconRegistry registry = grid();
+        registry.add(SITE, 3, 0, "Upstairs", "https://example.com/upstairs", 16);
+        registry.setLocation(SITE, 3, 0, 100, 100, 1);
+        PositionEstimator estimator = estimator(5);
+        BeaconCycle cycle = heardFrom(13, 17, 0, new Random(1));
+        cycle.add(SITE_UUID.getMostSignificantBits(), SITE_UUID.getLeastSignificantBits(),
+            BeaconIdMap.pack(3, 0), 0.5, -40);
+        assertTrue(estimator.update(cycle, registry, null, 1000));
+
+        JSONObject fix = estimator.toJson(1000);
+        assertEquals(1, fix.getInt("floor"));
+        assertEquals(PositionEstimator.NEAREST, fix.getString("method"));
+        assertEquals(100, fix.getDouble("x"), 0);
+    }
+}
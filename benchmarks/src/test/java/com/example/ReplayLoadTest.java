@@ -0,0 +1,175 @@
+package com.example;
+
+import org.apache.cordova.CallbackContext;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Synthetic replays at speed 0 through a real BeaconPipeline, with a single-thread executor
+ * standing in for the main looper the plugin delivers on: every cycle read is processed and
+ * recycled, the end is reported once and after the last cycle, and both the rates and the
+ * pipeline's cycle latencies cover every cycle. ReplayBenchmark reports the same under JMH.
+ */
+public class ReplayLoadTest {
+    private static final File NO_RECORDINGS = new File("target/no-recordings");
+
+    private final ExecutorService mainThread = Executors.newSingleThreadExecutor();
+    private final CallbackContext callbackContext = new CallbackContext();
+    private BeaconRegistry registry;
+    private BeaconPipeline pipeline;
+
+    /**
+     * The plugin's replay target: process and recycle on the pipeline thread, and count what
+     * went through.
+     */
+    private final class PipelineTarget implements ReplaySource.Target {
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong beacons = new AtomicLong();
+        final AtomicLong lastNow = new AtomicLong(Long.MIN_VALUE);
+        final AtomicInteger backwards = new AtomicInteger();
+        final AtomicInteger finishes = new AtomicInteger();
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile long processedAtFinish = -1;
+
+        @Override
+        public void deliver(BeaconCycle cycle, long now, Runnable recycle) {
+            mainThread.execute(() -> {
+                try {
+                    delivered.incrementAndGet();
+                    beacons.addAndGet(cycle.size());
+                    if (now < lastNow.getAndSet(now)) {
+                        backwards.incrementAndGet();
+                    }
+                    pipeline.process(cycle, now);
+                } finally {
+                    recycle.run();
+                }
+            });
+        }
+
+        @Override
+        public void finished(ReplaySource source, Exception failure) {
+            processedAtFinish = delivered.get();
+            error.set(failure);
+            finishes.incrementAndGet();
+            done.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        registry = BeaconRegistry.fromJson(Fixtures.beaconData(1000));
+        pipeline = Fixtures.pipeline(registry);
+        pipeline.subscribe(new BeaconPipeline.Subscription(BeaconPipeline.DEFAULT_SUBSCRIPTION,
+            new KeptSink(callbackContext), null, false, null));
+    }
+
+    @After
+    public void tearDown() {
+        mainThread.shutdownNow();
+    }
+
+    @Test
+    public void syntheticLoadRunsThroughThePipeline() throws Exception {
+        PipelineTarget target = new PipelineTarget();
+        // 1500 beacons against a 1000 beacon registry: a third of what is heard is foreign
+        ReplaySource source = ReplaySource.fromOptions(NO_RECORDINGS, registry,
+            options(1500, 5000, 1), target);
+        source.start();
+        assertTrue("Replay did not finish", target.done.await(60, TimeUnit.SECONDS));
+        // Let a finish racing the last recycle show itself
+        mainThread.submit(() -> { }).get();
+
+        assertNull(target.error.get());
+        assertEquals(1, target.finishes.get());
+        assertEquals(5000, target.processedAtFinish);
+        assertEquals(0, target.backwards.get());
+
+        JSONObject stats = source.getStats();
+        assertFalse(stats.getBoolean("running"));
+        assertFalse(source.isRunning());
+        assertEquals(5000, stats.getLong("cycles"));
+        assertEquals(target.beacons.get(), stats.getLong("beacons"));
+        assertTrue("No beacons were heard", stats.getLong("beacons") > 0);
+        assertTrue(stats.getDouble("cyclesPerSecond") > 0);
+        assertTrue(stats.getDouble("beaconsPerSecond") > 0);
+
+        assertTrue("Nothing was sent", callbackContext.getResults() > 0);
+        assertEquals(0, callbackContext.getErrors());
+
+        // Every replayed cycle was timed, and the percentiles are ordered and within budget
+        JSONObject latency = pipeline.getMetrics().toJson(System.currentTimeMillis()).getJSONObject("cycleLatencyUs");
+        assertEquals(5000, latency.getLong("count"));
+        long p50 = latency.getLong("p50");
+        long p95 = latency.getLong("p95");
+        long p99 = latency.getLong("p99");
+        assertTrue("p50 " + p50 + " us", p50 > 0);
+        assertTrue("p50 " + p50 + " / p95 " + p95 + " / p99 " + p99 + " us", p50 <= p95 && p95 <= p99);
+        assertTrue("p95 " + p95 + " us over a 25 ms cycle budget", p95 <= 25000);
+    }
+
+    @Test
+    public void loopsContinueTheClock() throws Exception {
+        PipelineTarget target = new PipelineTarget();
+        ReplaySource source = ReplaySource.fromOptions(NO_RECORDINGS, registry, options(200, 300, 3), target);
+        source.start();
+        assertTrue(target.done.await(60, TimeUnit.SECONDS));
+
+        assertNull(target.error.get());
+        assertEquals(900, source.getStats().getLong("cycles"));
+        assertEquals(900, target.processedAtFinish);
+        assertEquals("Replay clock went backwards between loops", 0, target.backwards.get());
+    }
+
+    @Test
+    public void stopFinishesOnce() throws Exception {
+        PipelineTarget target = new PipelineTarget();
+        ReplaySource source = ReplaySource.fromOptions(NO_RECORDINGS, registry,
+            options(1500, 1000000, 1), target);
+        source.start();
+        while (target.delivered.get() < 100) {
+            Thread.sleep(1);
+        }
+        source.stop();
+        assertTrue("Stopped replay did not finish", target.done.await(30, TimeUnit.SECONDS));
+        mainThread.submit(() -> { }).get();
+
+        JSONObject stats = source.getStats();
+        assertEquals(1, target.finishes.get());
+        assertNull(target.error.get());
+        assertTrue(stats.getBoolean("stopped"));
+        assertFalse(stats.getBoolean("running"));
+        assertEquals(stats.getLong("cycles"), target.processedAtFinish);
+        assertTrue(stats.getLong("cycles") < 1000000);
+    }
+
+    private static JSONObject options(int beacons, int cycles, int loops) throws Exception {
+        JSONObject synthetic = new JSONObject();
+        synthetic.put("beacons", beacons);
+        synthetic.put("cycles", cycles);
+        synthetic.put("interval", 1000);
+        synthetic.put("seed", 7);
+        JSONObject options = new JSONObject();
+        options.put("synthetic", synthetic);
+        options.put("speed", 0);
+        options.put("loops", loops);
+        return options;
+    }
+}
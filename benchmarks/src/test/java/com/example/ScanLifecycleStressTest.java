@@ -0,0 +1,358 @@
+package com.example;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Many threads throwing start, stop and worker-side commands (whenIdle as setBeaconLayouts
+ * and startReplay use it, whenScanning as region re-planning does) at one ScanLifecycle
+ * whose fake driver is slow and sometimes fails, checking that the driver never sees an
+ * overlapping or out-of-order call and that every command gets exactly one fitting answer.
+ */
+public class ScanLifecycleStressTest {
+    private static final int THREADS = 8;
+    private static final int COMMANDS_PER_THREAD = 400;
+
+    private ScanLifecycle lifecycle;
+
+    /**
+     * Ranging as the lifecycle should see it: strictly alternating start and stop, one call
+     * at a time.
+     */
+    private static final class FakeDriver implements ScanLifecycle.Driver {
+        final AtomicBoolean scanning = new AtomicBoolean();
+        final AtomicBoolean inCall = new AtomicBoolean();
+        final AtomicInteger starts = new AtomicInteger();
+        final AtomicInteger stops = new AtomicInteger();
+        final ConcurrentLinkedQueue<String> violations = new ConcurrentLinkedQueue<>();
+        private final Random random = new Random(3);
+        volatile boolean failing = true;
+
+        @Override
+        public void start(JSONObject options) throws Exception {
+            enter("start");
+            try {
+                if (scanning.get()) {
+                    violations.add("start while scanning");
+                }
+                pause();
+                // Only touched on the worker thread, so the shared Random is safe
+                if (failing && random.nextInt(20) == 0) {
+                    throw new IllegalStateException("Required permissions not granted");
+                }
+                scanning.set(true);
+                starts.incrementAndGet();
+            } finally {
+                inCall.set(false);
+            }
+        }
+
+        @Override
+        public void stop() {
+            enter("stop");
+            try {
+                if (!scanning.get()) {
+                    violations.add("stop while stopped");
+                }
+                pause();
+                scanning.set(false);
+                stops.incrementAndGet();
+            } finally {
+                inCall.set(false);
+            }
+        }
+
+        private void enter(String call) {
+            if (!inCall.compareAndSet(false, true)) {
+                violations.add("overlapping " + call);
+            }
+        }
+
+        private void pause() {
+            if (random.nextInt(4) == 0) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the answer to one command and checks it fits what was asked.
+     */
+    private static final class Answer implements ScanLifecycle.Reply {
+        final String command;
+        final CountDownLatch answered;
+        final ConcurrentLinkedQueue<String> problems;
+        final AtomicInteger count = new AtomicInteger();
+        volatile String message;
+        volatile boolean success;
+
+        Answer(String command, CountDownLatch answered, ConcurrentLinkedQueue<String> problems) {
+            this.command = command;
+            this.answered = answered;
+            this.problems = problems;
+        }
+
+        @Override
+        public void success(String message) {
+            answer(true, message);
+        }
+
+        @Override
+        public void error(String message) {
+            answer(false, message);
+        }
+
+        void answer(boolean ok, String text) {
+            if (count.incrementAndGet() != 1) {
+                problems.add(command + " answered twice: " + text);
+            }
+            success = ok;
+            message = text;
+            if (!fits(ok, text)) {
+                problems.add(command + " got " + (ok ? "success " : "error ") + text);
+            }
+            answered.countDown();
+        }
+
+        private boolean fits(boolean ok, String text) {
+            switch (command) {
+                case "start":
+                    return ok ? text.equals("Started scanning for beacons") || text.equals("Already scanning")
+                        : text.equals("Superseded by stopScanning") || text.startsWith("Error starting beacon scanning: ");
+                case "stop":
+                    return ok ? text.equals("Stopped scanning for beacons") || text.equals("Not scanning")
+                        : text.equals("Superseded by startScanning") || text.startsWith("Error stopping beacon scanning: ");
+                case "whenIdle":
+                    return ok ? text.equals("Changed") : text.equals("Busy");
+                default:
+                    return false;
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (lifecycle != null) {
+            lifecycle.shutdown();
+        }
+    }
+
+    @Test
+    public void interleavedCommandsFromManyThreads() throws Exception {
+        FakeDriver driver = new FakeDriver();
+        lifecycle = new ScanLifecycle(driver);
+        ConcurrentLinkedQueue<String> problems = new ConcurrentLinkedQueue<>();
+        AtomicInteger idleChanges = new AtomicInteger();
+        AtomicInteger scanningChanges = new AtomicInteger();
+        // whenScanning has no reply, so it is not counted
+        CountDownLatch answered = new CountDownLatch(countAnswered());
+        List<List<Answer>> answers = new ArrayList<>();
+
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            List<Answer> mine = new ArrayList<>();
+            answers.add(mine);
+            Random random = new Random(100 + t);
+            Thread thread = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < COMMANDS_PER_THREAD; i++) {
+                    switch (commandAt(i, random)) {
+                        case "start":
+                            Answer start = new Answer("start", answered, problems);
+                            mine.add(start);
+                            lifecycle.start(new JSONObject(), start);
+                            break;
+                        case "stop":
+                            Answer stop = new Answer("stop", answered, problems);
+                            mine.add(stop);
+                            lifecycle.stop(stop);
+                            break;
+                        case "whenIdle":
+                            Answer change = new Answer("whenIdle", answered, problems);
+                            mine.add(change);
+                            lifecycle.whenIdle(() -> {
+                                if (driver.scanning.get() || driver.inCall.get()) {
+                                    problems.add("whenIdle change ran while scanning");
+                                }
+                                idleChanges.incrementAndGet();
+                                change.success("Changed");
+                            }, "Busy", change);
+                            break;
+                        default:
+                            lifecycle.whenScanning(() -> {
+                                if (!driver.scanning.get() || driver.inCall.get()) {
+                                    problems.add("whenScanning change ran while not scanning");
+                                }
+                                scanningChanges.incrementAndGet();
+                            });
+                            break;
+                    }
+                    if (random.nextInt(8) == 0) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue("Not every command was answered", answered.await(30, TimeUnit.SECONDS));
+        drain(lifecycle);
+
+        assertTrue(driver.violations.toString(), driver.violations.isEmpty());
+        assertTrue(problems.toString(), problems.isEmpty());
+        for (List<Answer> mine : answers) {
+            for (Answer answer : mine) {
+                assertEquals(answer.command + " " + answer.message, 1, answer.count.get());
+            }
+        }
+        // The machine settled where the driver is
+        ScanLifecycle.State settled = lifecycle.getState();
+        assertEquals(driver.scanning.get() ? ScanLifecycle.State.SCANNING : ScanLifecycle.State.IDLE, settled);
+        assertTrue(driver.starts.get() - driver.stops.get() == (driver.scanning.get() ? 1 : 0));
+        assertTrue("Stress produced no transitions", driver.starts.get() > 0 && driver.stops.get() > 0);
+        assertTrue("No whenIdle change ran", idleChanges.get() > 0);
+        assertTrue("No whenScanning change ran", scanningChanges.get() > 0);
+
+        // And it still follows commands afterwards
+        driver.failing = false;
+        assertAnswer(lifecycle, true, ScanLifecycle.State.SCANNING, driver);
+        assertAnswer(lifecycle, false, ScanLifecycle.State.IDLE, driver);
+    }
+
+    /**
+     * A start overtaken by a stop before the worker reached it is told so, and only the
+     * latest wanted state is acted on.
+     */
+    @Test
+    public void overtakenCommandsAreSuperseded() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger starts = new AtomicInteger();
+        lifecycle = new ScanLifecycle(new ScanLifecycle.Driver() {
+            @Override
+            public void start(JSONObject options) throws Exception {
+                starts.incrementAndGet();
+            }
+
+            @Override
+            public void stop() {
+            }
+        });
+        // Hold the worker so the next commands queue up behind it
+        lifecycle.whenIdle(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "Busy", null);
+
+        ConcurrentLinkedQueue<String> problems = new ConcurrentLinkedQueue<>();
+        CountDownLatch answered = new CountDownLatch(3);
+        Answer first = new Answer("start", answered, problems);
+        Answer second = new Answer("stop", answered, problems);
+        Answer third = new Answer("start", answered, problems);
+        lifecycle.start(null, first);
+        lifecycle.stop(second);
+        lifecycle.start(null, third);
+        release.countDown();
+
+        assertTrue(answered.await(10, TimeUnit.SECONDS));
+        assertTrue(problems.toString(), problems.isEmpty());
+        assertEquals("Started scanning for beacons", first.message);
+        assertEquals("Superseded by startScanning", second.message);
+        assertEquals("Started scanning for beacons", third.message);
+        assertEquals(1, starts.get());
+        assertEquals(ScanLifecycle.State.SCANNING, lifecycle.getState());
+    }
+
+    /**
+     * Waits for whatever is still queued on the worker, such as trailing whenScanning changes.
+     */
+    private static void drain(ScanLifecycle lifecycle) throws InterruptedException {
+        CountDownLatch drained = new CountDownLatch(1);
+        lifecycle.whenIdle(drained::countDown, "Busy", new ScanLifecycle.Reply() {
+            @Override
+            public void success(String message) {
+                drained.countDown();
+            }
+
+            @Override
+            public void error(String message) {
+                drained.countDown();
+            }
+        });
+        assertTrue(drained.await(10, TimeUnit.SECONDS));
+    }
+
+    private static void assertAnswer(ScanLifecycle lifecycle, boolean start, ScanLifecycle.State expected,
+                                     FakeDriver driver) throws InterruptedException {
+        ConcurrentLinkedQueue<String> problems = new ConcurrentLinkedQueue<>();
+        CountDownLatch answered = new CountDownLatch(1);
+        Answer answer = new Answer(start ? "start" : "stop", answered, problems);
+        if (start) {
+            lifecycle.start(null, answer);
+        } else {
+            lifecycle.stop(answer);
+        }
+        assertTrue(answered.await(10, TimeUnit.SECONDS));
+        assertTrue(answer.message, answer.success);
+        assertEquals(expected, lifecycle.getState());
+        assertEquals(start, driver.scanning.get());
+    }
+
+    /**
+     * Mostly start and stop, with some worker-side changes mixed in; the same sequence per
+     * thread both when counting and when sending.
+     */
+    private static String commandAt(int i, Random random) {
+        int roll = random.nextInt(10);
+        if (roll < 4) {
+            return "start";
+        }
+        if (roll < 8) {
+            return "stop";
+        }
+        return roll == 8 ? "whenIdle" : "whenScanning";
+    }
+
+    private static int countAnswered() {
+        int count = 0;
+        for (int t = 0; t < THREADS; t++) {
+            Random random = new Random(100 + t);
+            for (int i = 0; i < COMMANDS_PER_THREAD; i++) {
+                if (!"whenScanning".equals(commandAt(i, random))) {
+                    count++;
+                }
+                // Mirror the yield roll so both sequences stay in step
+                random.nextInt(8);
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,279 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * What ranging saw while the app was in the background, coalesced for one summary on resume.
+ *
+ * Per beacon it keeps only the latest state (distance, RSSI, first and last seen, nearest
+ * distance, sighting count), up to maxBeacons; later newcomers are counted as dropped. Beacon
+ * enter/exit transitions (from its own tracker, exitTimeout ms of absence) and zone
+ * transitions go into a ring of maxEvents, oldest dropped first. Beacons in range on the first
+ * background cycle are taken as already present, so a pause does not read as a burst of
+ * entries. Memory is bounded by the two limits however long the app stays paused.
+ *
+ * Event kinds listed in immediate ("entered", "exited", "zone") are still recorded but also
+ * flagged to the caller, who delivers them at once.
+ */
+final class BackgroundBuffer {
+    static final String ZONE = "zone";
+
+    private final int maxBeacons;
+    private final int maxEvents;
+    private final boolean immediateEntered;
+    private final boolean immediateExited;
+    private final boolean immediateZone;
+    private final long pausedAt;
+
+    private final BeaconTracker tracker;
+    private final BeaconIdMap beacons = new BeaconIdMap();
+    private long[] firstSeen = new long[beacons.capacity()];
+    private long[] lastSeen = new long[beacons.capacity()];
+    private double[] distance = new double[beacons.capacity()];
+    private double[] minDistance = new double[beacons.capacity()];
+    private int[] rssi = new int[beacons.capacity()];
+    private int[] sightings = new int[beacons.capacity()];
+
+    // Event ring: beacon transitions carry an identity, zone transitions a zone id
+    private final String[] eventName;
+    private final String[] eventZone;
+    private final long[] eventMsb;
+    private final long[] eventLsb;
+    private final int[] eventMajorMinor;
+    private final double[] eventDistance;
+    private final long[] eventTime;
+    private int eventFirst;
+    private int eventCount;
+
+    private JSONObject position;
+    private long cycles;
+    private long droppedBeacons;
+    private long droppedEvents;
+
+    private BackgroundBuffer(int maxBeacons, int maxEvents, long exitTimeoutMs, JSONArray immediate, long now) {
+        this.maxBeacons = Math.max(1, maxBeacons);
+        this.maxEvents = Math.max(1, maxEvents);
+        boolean entered = false;
+        boolean exited = false;
+        boolean zone = false;
+        for (int i = 0; immediate != null && i < immediate.length(); i++) {
+            String kind = immediate.optString(i);
+            entered |= BeaconTracker.ENTERED.equals(kind);
+            exited |= BeaconTracker.EXITED.equals(kind);
+            zone |= ZONE.equals(kind);
+        }
+        immediateEntered = entered;
+        immediateExited = exited;
+        immediateZone = zone;
+        pausedAt = now;
+
+        // Only entries and exits matter here, so changes are never reported
+        tracker = new BeaconTracker(exitTimeoutMs, Double.MAX_VALUE, Integer.MAX_VALUE);
+        eventName = new String[this.maxEvents];
+        eventZone = new String[this.maxEvents];
+        eventMsb = new long[this.maxEvents];
+        eventLsb = new long[this.maxEvents];
+        eventMajorMinor = new int[this.maxEvents];
+        eventDistance = new double[this.maxEvents];
+        eventTime = new long[this.maxEvents];
+    }
+
+    /**
+     * Builds an empty buffer from setBackgroundMode options: maxBeacons (default 256),
+     * maxEvents (default 500), exitTimeout ms (default 30000) and immediate (event kinds).
+     */
+    static BackgroundBuffer fromOptions(JSONObject options, long now) {
+        JSONObject opts = options != null ? options : new JSONObject();
+        return new BackgroundBuffer(
+            opts.optInt("maxBeacons", 256),
+            opts.optInt("maxEvents", 500),
+            opts.optLong("exitTimeout", 30000),
+            opts.optJSONArray("immediate"),
+            now);
+    }
+
+    /**
+     * Folds one ranging cycle in; beacon transitions of an immediate kind are also passed to
+     * the listener.
+     */
+    synchronized void record(BeaconCycle cycle, long now, BeaconTracker.Listener immediate) throws JSONException {
+        boolean seeding = cycles++ == 0;
+        BeaconTracker.Listener transitions = (event, msb, lsb, majorMinor, eventDistanceValue, eventRssi) -> {
+            if (seeding && BeaconTracker.ENTERED.equals(event)) {
+                return;
+            }
+            addEvent(event, null, msb, lsb, majorMinor, eventDistanceValue, now);
+            if (immediate != null && isImmediate(event)) {
+                immediate.onTransition(event, msb, lsb, majorMinor, eventDistanceValue, eventRssi);
+            }
+        };
+
+        for (int i = 0; i < cycle.size(); i++) {
+            long msb = cycle.msb(i);
+            long lsb = cycle.lsb(i);
+            int majorMinor = cycle.majorMinor(i);
+            double sampleDistance = cycle.distance(i);
+            updateBeacon(msb, lsb, majorMinor, sampleDistance, cycle.rssi(i), now);
+            tracker.update(msb, lsb, majorMinor, sampleDistance, cycle.rssi(i), now, transitions);
+        }
+        tracker.expire(now, transitions);
+    }
+
+    private void updateBeacon(long msb, long lsb, int majorMinor, double sampleDistance, int sampleRssi, long now) {
+        int handle = beacons.get(msb, lsb, majorMinor);
+        if (handle == BeaconIdMap.NONE) {
+            if (beacons.size() >= maxBeacons) {
+                droppedBeacons++;
+                return;
+            }
+            handle = beacons.put(msb, lsb, majorMinor);
+            if (handle >= firstSeen.length) {
+                int capacity = beacons.capacity();
+                firstSeen = Arrays.copyOf(firstSeen, capacity);
+                lastSeen = Arrays.copyOf(lastSeen, capacity);
+                distance = Arrays.copyOf(distance, capacity);
+                minDistance = Arrays.copyOf(minDistance, capacity);
+                rssi = Arrays.copyOf(rssi, capacity);
+                sightings = Arrays.copyOf(sightings, capacity);
+            }
+            firstSeen[handle] = now;
+            minDistance[handle] = Double.MAX_VALUE;
+            sightings[handle] = 0;
+        }
+        lastSeen[handle] = now;
+        distance[handle] = sampleDistance;
+        rssi[handle] = sampleRssi;
+        sightings[handle]++;
+        if (sampleDistance >= 0 && sampleDistance < minDistance[handle]) {
+            minDistance[handle] = sampleDistance;
+        }
+    }
+
+    /**
+     * Records a zone transition; returns true when it should also be delivered at once.
+     */
+    synchronized boolean recordZone(String event, String zoneId, double zoneDistance, long now) {
+        addEvent(event, zoneId, 0, 0, 0, zoneDistance, now);
+        return immediateZone;
+    }
+
+    /**
+     * Keeps the latest position fix for the summary.
+     */
+    synchronized void recordPosition(JSONObject fix) {
+        position = fix;
+    }
+
+    private boolean isImmediate(String event) {
+        if (BeaconTracker.ENTERED.equals(event)) {
+            return immediateEntered;
+        }
+        return BeaconTracker.EXITED.equals(event) && immediateExited;
+    }
+
+    private void addEvent(String event, String zoneId, long msb, long lsb, int majorMinor, double eventDistanceValue,
+                          long now) {
+        int slot;
+        if (eventCount < maxEvents) {
+            slot = (eventFirst + eventCount++) % maxEvents;
+        } else {
+            slot = eventFirst;
+            eventFirst = (eventFirst + 1) % maxEvents;
+            droppedEvents++;
+        }
+        eventName[slot] = event;
+        eventZone[slot] = zoneId;
+        eventMsb[slot] = msb;
+        eventLsb[slot] = lsb;
+        eventMajorMinor[slot] = majorMinor;
+        eventDistance[slot] = eventDistanceValue;
+        eventTime[slot] = now;
+    }
+
+    /**
+     * The resume summary: the paused interval, every beacon seen with its latest state,
+     * the events oldest first, the last position fix and what the limits dropped.
+     */
+    synchronized JSONObject toJson(BeaconRegistry registry, long now) throws JSONException {
+        JSONObject summary = new JSONObject();
+        summary.put("pausedAt", pausedAt);
+        summary.put("resumedAt", now);
+        summary.put("cycles", cycles);
+
+        JSONArray beaconArray = new JSONArray();
+        for (int handle = 0; handle < beacons.highWater(); handle++) {
+            if (!beacons.isLive(handle)) {
+                continue;
+            }
+            JSONObject beaconObj = identity(registry, beacons.hi(handle), beacons.lo(handle), beacons.ext(handle));
+            beaconObj.put("distance", distance[handle]);
+            beaconObj.put("rssi", rssi[handle]);
+            if (minDistance[handle] != Double.MAX_VALUE) {
+                beaconObj.put("minDistance", minDistance[handle]);
+            }
+            beaconObj.put("firstSeen", firstSeen[handle]);
+            beaconObj.put("lastSeen", lastSeen[handle]);
+            beaconObj.put("sightings", sightings[handle]);
+            beaconArray.put(beaconObj);
+        }
+        summary.put("beacons", beaconArray);
+
+        JSONArray events = new JSONArray();
+        for (int k = 0; k < eventCount; k++) {
+            int slot = (eventFirst + k) % maxEvents;
+            JSONObject event;
+            if (eventZone[slot] != null) {
+                event = new JSONObject();
+                event.put("zone", eventZone[slot]);
+            } else {
+                event = identity(registry, eventMsb[slot], eventLsb[slot], eventMajorMinor[slot]);
+            }
+            event.put("event", eventName[slot]);
+            event.put("distance", eventDistance[slot]);
+            event.put("timestamp", eventTime[slot]);
+            events.put(event);
+        }
+        summary.put("events", events);
+
+        if (position != null) {
+            summary.put("position", position);
+        }
+        summary.put("droppedBeacons", droppedBeacons);
+        summary.put("droppedEvents", droppedEvents);
+        return summary;
+    }
+
+    private static JSONObject identity(BeaconRegistry registry, long msb, long lsb, int majorMinor)
+            throws JSONException {
+        int major = BeaconIdMap.major(majorMinor);
+        int minor = BeaconIdMap.minor(majorMinor);
+        JSONObject beaconObj = new JSONObject();
+        beaconObj.put("uuid", new UUID(msb, lsb).toString());
+        beaconObj.put("major", major);
+        beaconObj.put("minor", minor);
+        int index = registry.find(msb, lsb, major, minor);
+        if (index >= 0) {
+            beaconObj.put("title", registry.title(index));
+            beaconObj.put("url", registry.url(index));
+        }
+        return beaconObj;
+    }
+
+    synchronized JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("pausedAt", pausedAt);
+        stats.put("cycles", cycles);
+        stats.put("beacons", beacons.size());
+        stats.put("maxBeacons", maxBeacons);
+        stats.put("events", eventCount);
+        stats.put("maxEvents", maxEvents);
+        stats.put("droppedBeacons", droppedBeacons);
+        stats.put("droppedEvents", droppedEvents);
+        return stats;
+    }
+}
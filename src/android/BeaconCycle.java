@@ -0,0 +1,91 @@
+package com.example;
+
+import java.util.Arrays;
+
+/**
+ * One ranging cycle as flat primitive columns: UUID halves, packed major/minor, distance
+ * and RSSI per beacon. The plugin fills it from AltBeacon's Beacon objects once per cycle,
+ * and everything downstream ({@link BeaconPipeline}) works on it, so the pipeline never
+ * sees an Android type. Meant to be reused cycle after cycle on one thread.
+ */
+final class BeaconCycle {
+    private long[] msb;
+    private long[] lsb;
+    private int[] majorMinor;
+    private double[] distance;
+    private int[] rssi;
+    private int size;
+
+    BeaconCycle(int capacity) {
+        int initial = Math.max(4, capacity);
+        msb = new long[initial];
+        lsb = new long[initial];
+        majorMinor = new int[initial];
+        distance = new double[initial];
+        rssi = new int[initial];
+    }
+
+    void add(long msb, long lsb, int majorMinor, double distance, int rssi) {
+        if (size == this.msb.length) {
+            int capacity = size * 2;
+            this.msb = Arrays.copyOf(this.msb, capacity);
+            this.lsb = Arrays.copyOf(this.lsb, capacity);
+            this.majorMinor = Arrays.copyOf(this.majorMinor, capacity);
+            this.distance = Arrays.copyOf(this.distance, capacity);
+            this.rssi = Arrays.copyOf(this.rssi, capacity);
+        }
+        this.msb[size] = msb;
+        this.lsb[size] = lsb;
+        this.majorMinor[size] = majorMinor;
+        this.distance[size] = distance;
+        this.rssi[size] = rssi;
+        size++;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    long msb(int i) {
+        return msb[i];
+    }
+
+    long lsb(int i) {
+        return lsb[i];
+    }
+
+    int majorMinor(int i) {
+        return majorMinor[i];
+    }
+
+    double distance(int i) {
+        return distance[i];
+    }
+
+    int rssi(int i) {
+        return rssi[i];
+    }
+
+    /**
+     * Copies entry from over entry to; used to compact the cycle in place, see {@link #truncate(int)}.
+     */
+    void move(int from, int to) {
+        msb[to] = msb[from];
+        lsb[to] = lsb[from];
+        majorMinor[to] = majorMinor[from];
+        distance[to] = distance[from];
+        rssi[to] = rssi[from];
+    }
+
+    void truncate(int newSize) {
+        size = Math.min(size, newSize);
+    }
+}
@@ -23,11 +23,18 @@ import org.altbeacon.beacon.MonitorNotifier;
 import org.altbeacon.beacon.RangeNotifier;
 import org.altbeacon.beacon.Region;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BeaconDetectorPlugin extends CordovaPlugin implements RangeNotifier, MonitorNotifier {
     private static final String TAG = "BeaconDetectorPlugin";
@@ -36,15 +43,102 @@ public class BeaconDetectorPlugin extends CordovaPlugin implements RangeNotifier
     private static final int PERMISSION_REQUEST_BLUETOOTH_SCAN = 3;
     private static final int PERMISSION_REQUEST_BLUETOOTH_CONNECT = 4;
     
-    // Add rate limiting variables
-    private static final long MIN_SCAN_INTERVAL_MS = 5000; // 5 seconds minimum between scan operations
-    private long lastScanOperationTime = 0;
+    // Per-action rate limits: a burst of 3, then one call every 2 seconds
+    private final TokenBucket startLimit = new TokenBucket(3, 2000);
+    private final TokenBucket stopLimit = new TokenBucket(3, 2000);
+    private final TokenBucket listLimit = new TokenBucket(3, 2000);
+    private static final long DEFAULT_SIGHTING_TTL_MS = 10000;
+    private static final long LIST_SCAN_TIMEOUT_MS = 5000;
 
     private BeaconManager beaconManager;
-    private List<Map<String, Object>> beaconData;
-    private CallbackContext beaconDetectionCallback;
-    private Region region;
-    private boolean isScanning = false;
+    // Frame formats handed to AltBeacon's parsers; also admits or rejects each ranged frame
+    private volatile BeaconLayouts layouts = BeaconLayouts.defaults();
+    // Binary copy of the registry under the app's files dir, reused by restoreRegistry on warm starts
+    private RegistryStore registryStore;
+    // Runs initialize, restore, upsert and remove one at a time, so none is lost to another's swap
+    private final ExecutorService registryExecutor = Executors.newSingleThreadExecutor();
+    // Newest live subscription's callback; permission events go there
+    private volatile CallbackContext beaconDetectionCallback;
+    // Kept callbacks of live subscriptions by id, oldest first
+    private final LinkedHashMap<String, CallbackContext> subscriptionCallbacks = new LinkedHashMap<>();
+    // Filtering, smoothing, delta tracking, batching and encoding of ranging cycles
+    private final BeaconPipeline pipeline = new BeaconPipeline(new BeaconPipeline.ScanPeriodControl() {
+        @Override
+        public void setBetweenScanPeriod(long periodMs) {
+            beaconManager.setForegroundBetweenScanPeriod(periodMs);
+            updateScanPeriods();
+            Log.d(TAG, "Between-scan period adapted to " + periodMs + " ms");
+        }
+    }, DEFAULT_SIGHTING_TTL_MS);
+    // Reused for every main ranging cycle, on the main looper
+    private final BeaconCycle cycle = new BeaconCycle(64);
+    // Kept callback of onZoneChanged; zone transitions are sent there
+    private volatile CallbackContext zoneCallback;
+    // Kept callback of onPositionUpdate; position fixes are sent there
+    private volatile CallbackContext positionCallback;
+    // Options of the last setBackgroundMode; a fresh buffer is built from them on every pause
+    private volatile JSONObject backgroundOptions = new JSONObject();
+    private volatile boolean backgroundBuffering = true;
+    // Kept callback of onBackgroundSummary; the summary of each paused interval is sent there
+    private volatile CallbackContext summaryCallback;
+    // Non-null while a startReplay runs; it feeds cycles in place of ranging
+    private volatile ReplaySource replay;
+    // Options of the last setBatching, so listDetectedBeacons can batch the same way
+    private volatile JSONObject batchOptions;
+    private android.os.Handler flushHandler;
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            ResultBatcher current = pipeline.getBatcher();
+            if (current != null) {
+                flushBatch(current);
+                flushHandler.postDelayed(this, current.getFlushIntervalMs());
+            }
+        }
+    };
+    // Set by getMetrics({interval}); receives a snapshot every interval ms until replaced
+    private volatile CallbackContext metricsCallback;
+    private volatile long metricsInterval;
+    private volatile boolean metricsPushReset;
+    private final Runnable metricsTask = new Runnable() {
+        @Override
+        public void run() {
+            CallbackContext callback = metricsCallback;
+            if (callback != null) {
+                try {
+                    PluginResult result = new PluginResult(PluginResult.Status.OK, metricsSnapshot(metricsPushReset));
+                    result.setKeepCallback(true);
+                    callback.sendPluginResult(result);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error pushing metrics", e);
+                }
+                flushHandler.postDelayed(this, metricsInterval);
+            }
+        }
+    };
+    private volatile List<Region> regions = Collections.emptyList();
+    // While regions come from the registry: the scan options and registry revision they were
+    // planned from, so replanRegions can follow registry changes; lifecycle worker only
+    private JSONObject regionOptions;
+    private BeaconRegistry plannedRegistry;
+    private int plannedRevision;
+    private int planGeneration;
+    // Serializes startScanning/stopScanning on one worker; beginScan/endScan do the ranging calls
+    private final ScanLifecycle scanLifecycle = new ScanLifecycle(new ScanLifecycle.Driver() {
+        @Override
+        public void start(JSONObject options) throws Exception {
+            beginScan(options);
+        }
+
+        @Override
+        public void stop() throws Exception {
+            endScan();
+        }
+    });
+    // With several regions AltBeacon reports each one separately; these gather one scan cycle
+    private final List<Beacon> cycleBeacons = new ArrayList<>();
+    private final Set<String> cycleRegions = new HashSet<>();
+    private List<Region> cycleOwner;
 
     @Override
     public void initialize(CordovaInterface cordova, CordovaWebView webView) {
@@ -53,37 +147,113 @@ public class BeaconDetectorPlugin extends CordovaPlugin implements RangeNotifier
         Activity activity = cordova.getActivity();
         beaconManager = BeaconManager.getInstanceForApplication(activity.getApplicationContext());
         
-        // Configure scan periods to reduce frequency
-        beaconManager.setForegroundScanPeriod(1100); // 1.1 seconds
-        beaconManager.setForegroundBetweenScanPeriod(2200); // 2.2 seconds between scans
-        beaconManager.setBackgroundScanPeriod(5000); // 5 seconds
-        beaconManager.setBackgroundBetweenScanPeriod(60000); // 60 seconds between scans in background
+        // Configure scan periods to reduce frequency; setScanPolicy can change or adapt them later
+        applyScanPeriods(pipeline.getScanScheduler());
         
-        // Add support for iBeacon format
-        beaconManager.getBeaconParsers().add(new BeaconParser()
-                .setBeaconLayout("m:2-3=0215,i:4-19,i:20-21,i:22-23,p:24-24"));
+        // iBeacon and AltBeacon until setBeaconLayouts picks other formats
+        applyLayouts(layouts);
         
         beaconManager.addRangeNotifier(this);
         beaconManager.addMonitorNotifier(this);
         
-        beaconData = new ArrayList<>();
+        flushHandler = new android.os.Handler(android.os.Looper.getMainLooper());
+        registryStore = new RegistryStore(new File(activity.getFilesDir(), "beacon_registry.bin"));
         
         Log.d(TAG, "BeaconDetectorPlugin initialized with optimized scan periods");
     }
 
+    /**
+     * Switches AltBeacon to its background scan periods and, unless turned off with
+     * setBackgroundMode, stops sending results into the paused WebView: they are coalesced
+     * until onResume.
+     */
+    @Override
+    public void onPause(boolean multitasking) {
+        super.onPause(multitasking);
+        beaconManager.setBackgroundMode(true);
+        flushHandler.removeCallbacks(metricsTask);
+        if (backgroundBuffering) {
+            long now = System.currentTimeMillis();
+            pipeline.setBackgroundBuffer(BackgroundBuffer.fromOptions(backgroundOptions, now));
+        }
+        Log.d(TAG, "Paused; background mode " + (backgroundBuffering ? "buffering" : "live"));
+    }
+
+    /**
+     * Back to the foreground scan periods and live delivery; what was buffered goes to
+     * onBackgroundSummary as one summary.
+     */
+    @Override
+    public void onResume(boolean multitasking) {
+        super.onResume(multitasking);
+        beaconManager.setBackgroundMode(false);
+        BackgroundBuffer buffer = pipeline.getBackgroundBuffer();
+        pipeline.setBackgroundBuffer(null);
+        // Ranging runs on the main looper too, so the buffer is complete by now
+        CallbackContext callback = summaryCallback;
+        if (buffer != null && callback != null) {
+            try {
+                keptSink(callback).sendJson(new JSONArray().put(
+                    buffer.toJson(pipeline.getRegistry(), System.currentTimeMillis())));
+            } catch (Exception e) {
+                Log.e(TAG, "Error sending background summary", e);
+                keptSink(callback).sendError("Error sending background summary: " + e.getMessage());
+            }
+        }
+        if (metricsCallback != null) {
+            flushHandler.removeCallbacks(metricsTask);
+            flushHandler.postDelayed(metricsTask, metricsInterval);
+        }
+        Log.d(TAG, "Resumed");
+    }
+
+    @Override
+    public void onDestroy() {
+        scanLifecycle.shutdown();
+        registryExecutor.shutdown();
+        ReplaySource currentReplay = replay;
+        if (currentReplay != null) {
+            currentReplay.stop();
+        }
+        EventJournal recorder = pipeline.getRecorder();
+        if (recorder != null) {
+            pipeline.setRecorder(null);
+            recorder.close();
+        }
+        flushHandler.removeCallbacks(metricsTask);
+        EventJournal journal = pipeline.getJournal();
+        if (journal != null) {
+            pipeline.setJournal(null);
+            journal.close();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
         if ("initialize".equals(action)) {
-            initialize(args.getJSONArray(0), callbackContext);
+            initialize(args.getJSONArray(0), args.optJSONObject(1), callbackContext);
+            return true;
+        } else if ("restoreRegistry".equals(action)) {
+            restoreRegistry(args.optJSONObject(0), callbackContext);
+            return true;
+        } else if ("upsertBeacons".equals(action)) {
+            upsertBeacons(args.getJSONArray(0), args.optJSONObject(1), callbackContext);
+            return true;
+        } else if ("removeBeacons".equals(action)) {
+            removeBeacons(args.getJSONArray(0), args.optJSONObject(1), callbackContext);
             return true;
         } else if ("startScanning".equals(action)) {
-            startScanning(callbackContext);
+            startScanning(args.optJSONObject(0), callbackContext);
             return true;
         } else if ("stopScanning".equals(action)) {
             stopScanning(callbackContext);
             return true;
         } else if ("onBeaconDetected".equals(action)) {
-            this.beaconDetectionCallback = callbackContext;
+            subscribe(args.optJSONObject(0), callbackContext);
+            return true;
+        } else if ("removeBeaconSubscription".equals(action)) {
+            unsubscribe(args.optString(0, BeaconPipeline.DEFAULT_SUBSCRIPTION), callbackContext);
             return true;
         } else if ("isAvailable".equals(action)) {
             callbackContext.success("Plugin is available");
@@ -92,124 +262,967 @@ public class BeaconDetectorPlugin extends CordovaPlugin implements RangeNotifier
             checkCompatibility(callbackContext);
             return true;
         } else if ("listDetectedBeacons".equals(action)) {
-            listDetectedBeacons(callbackContext);
+            listDetectedBeacons(args.optJSONObject(0), callbackContext);
             return true;
         } else if ("debugBeaconScanner".equals(action)) {
             debugBeaconScanner(callbackContext);
             return true;
+        } else if ("setBeaconLayouts".equals(action)) {
+            setBeaconLayouts(args.optJSONObject(0), callbackContext);
+            return true;
+        } else if ("setBatching".equals(action)) {
+            setBatching(args.optJSONObject(0), callbackContext);
+            return true;
+        } else if ("setSmoothing".equals(action)) {
+            setSmoothing(args.optJSONObject(0), callbackContext);
+            return true;
+        } else if ("setScanPolicy".equals(action)) {
+            setScanPolicy(args.optJSONObject(0), callbackContext);
+            return true;
+        } else if ("setZones".equals(action)) {
+            setZones(args.optJSONObject(0), callbackContext);
+            return true;
+        } else if ("onZoneChanged".equals(action)) {
+            zoneCallback = callbackContext;
+            pipeline.setZones(pipeline.getZoneEngine(), keptSink(callbackContext));
+            return true;
+        } else if ("setPositioning".equals(action)) {
+            setPositioning(args.optJSONObject(0), callbackContext);
+            return true;
+        } else if ("onPositionUpdate".equals(action)) {
+            positionCallback = callbackContext;
+            pipeline.setPositioning(pipeline.getPositionEstimator(), keptSink(callbackContext));
+            return true;
+        } else if ("setBackgroundMode".equals(action)) {
+            setBackgroundMode(args.optJSONObject(0), callbackContext);
+            return true;
+        } else if ("onBackgroundSummary".equals(action)) {
+            summaryCallback = callbackContext;
+            return true;
+        } else if ("setHistory".equals(action)) {
+            setHistory(args.optJSONObject(0), callbackContext);
+            return true;
+        } else if ("getDwellTimes".equals(action)) {
+            getDwellTimes(args.optJSONObject(0), callbackContext);
+            return true;
+        } else if ("getVisits".equals(action)) {
+            getVisits(args.optJSONObject(0), callbackContext);
+            return true;
+        } else if ("setJournal".equals(action)) {
+            setJournal(args.optJSONObject(0), callbackContext);
+            return true;
+        } else if ("readJournal".equals(action)) {
+            readJournal(args.optLong(0, 0), args.optInt(1, 500), callbackContext);
+            return true;
+        } else if ("ackJournal".equals(action)) {
+            ackJournal(args.getLong(0), callbackContext);
+            return true;
+        } else if ("startRecording".equals(action)) {
+            startRecording(args.optJSONObject(0), callbackContext);
+            return true;
+        } else if ("stopRecording".equals(action)) {
+            stopRecording(callbackContext);
+            return true;
+        } else if ("startReplay".equals(action)) {
+            startReplay(args.optJSONObject(0), callbackContext);
+            return true;
+        } else if ("stopReplay".equals(action)) {
+            stopReplay(callbackContext);
+            return true;
+        } else if ("getMetrics".equals(action)) {
+            getMetrics(args.optJSONObject(0), callbackContext);
+            return true;
+        } else if ("ackBatch".equals(action)) {
+            // Fire-and-forget from JS; no result is sent back
+            ResultBatcher current = pipeline.getBatcher();
+            if (current != null) {
+                current.ack();
+            }
+            return true;
         }
 
         return false;
     }
 
-    private void initialize(JSONArray beaconDataArray, CallbackContext callbackContext) {
-        try {
-            beaconData.clear();
-            
-            for (int i = 0; i < beaconDataArray.length(); i++) {
-                JSONObject beaconObj = beaconDataArray.getJSONObject(i);
-                Map<String, Object> beacon = new HashMap<>();
+    private void initialize(JSONArray beaconDataArray, JSONObject options, CallbackContext callbackContext) {
+        registryExecutor.execute(() -> {
+            try {
+                BeaconRegistry newRegistry = BeaconRegistry.fromJson(beaconDataArray);
+                newRegistry.setEtag(options != null ? options.optString("etag", null) : null);
                 
-                beacon.put("title", beaconObj.getString("title"));
-                beacon.put("uuid", beaconObj.getString("uuid"));
-                beacon.put("major", beaconObj.getInt("major"));
-                beacon.put("minor", beaconObj.getInt("minor"));
-                beacon.put("url", beaconObj.getString("url"));
+                // Swap in the complete registry so the ranging thread never sees a partial one
+                pipeline.setRegistry(newRegistry);
+                persistRegistry(newRegistry);
+                replanRegions();
                 
-                beaconData.add(beacon);
+                Log.d(TAG, "Initialized with " + newRegistry.size() + " beacons");
+                callbackContext.success("Beacon data initialized");
+            } catch (Exception e) {
+                Log.e(TAG, "Error initializing beacon data", e);
+                callbackContext.error("Error initializing beacon data: " + e.getMessage());
             }
-            
-            Log.d(TAG, "Initialized with " + beaconData.size() + " beacons");
-            callbackContext.success("Beacon data initialized");
+        });
+    }
+
+    /**
+     * Loads the registry saved by the last initialize/upsertBeacons/removeBeacons. With an
+     * etag option the cache is only used if it was saved under that etag, so the app can
+     * fall back to initialize() when its beacon list changed.
+     */
+    private void restoreRegistry(JSONObject options, CallbackContext callbackContext) {
+        String expectedEtag = options != null ? options.optString("etag", null) : null;
+        boolean withEntries = options != null && options.optBoolean("withEntries", false);
+        registryExecutor.execute(() -> {
+            try {
+                JSONObject result = new JSONObject();
+                BeaconRegistry restored = null;
+                try {
+                    restored = registryStore.load();
+                } catch (java.io.IOException e) {
+                    Log.w(TAG, "Discarding unreadable registry cache", e);
+                    registryStore.delete();
+                }
+                if (restored != null && expectedEtag != null && !expectedEtag.equals(restored.getEtag())) {
+                    restored = null;
+                }
+
+                result.put("restored", restored != null);
+                if (restored != null) {
+                    pipeline.setRegistry(restored);
+                    replanRegions();
+                    result.put("etag", restored.getEtag());
+                    result.put("count", restored.size());
+                    if (withEntries) {
+                        result.put("beacons", toEntryArray(restored));
+                    }
+                    Log.d(TAG, "Restored " + restored.size() + " beacons from cache");
+                }
+                callbackContext.success(result);
+            } catch (Exception e) {
+                Log.e(TAG, "Error restoring beacon data", e);
+                callbackContext.error("Error restoring beacon data: " + e.getMessage());
+            }
+        });
+    }
+
+    private void upsertBeacons(JSONArray beaconDataArray, JSONObject options, CallbackContext callbackContext) {
+        registryExecutor.execute(() -> {
+            try {
+                // Changed on a copy and swapped in whole, like initialize()
+                BeaconRegistry current = pipeline.getRegistry().copy();
+                JSONArray positions = new JSONArray();
+                for (int i = 0; i < beaconDataArray.length(); i++) {
+                    JSONObject beaconObj = beaconDataArray.getJSONObject(i);
+                    positions.put(current.upsert(
+                        BeaconLayouts.registryUuid(beaconObj),
+                        BeaconLayouts.registryMajor(beaconObj),
+                        BeaconLayouts.registryMinor(beaconObj),
+                        beaconObj.getString("title"),
+                        beaconObj.getString("url")));
+                    current.applyLocation(beaconObj);
+                }
+                updateEtag(current, options);
+                pipeline.setRegistry(current);
+                persistRegistry(current);
+                replanRegions();
+
+                JSONObject result = new JSONObject();
+                result.put("positions", positions);
+                result.put("count", current.size());
+                callbackContext.success(result);
+            } catch (Exception e) {
+                Log.e(TAG, "Error updating beacon data", e);
+                callbackContext.error("Error updating beacon data: " + e.getMessage());
+            }
+        });
+    }
+
+    private void removeBeacons(JSONArray beaconDataArray, JSONObject options, CallbackContext callbackContext) {
+        registryExecutor.execute(() -> {
+            try {
+                BeaconRegistry current = pipeline.getRegistry().copy();
+                JSONArray positions = new JSONArray();
+                for (int i = 0; i < beaconDataArray.length(); i++) {
+                    JSONObject beaconObj = beaconDataArray.getJSONObject(i);
+                    positions.put(current.remove(
+                        BeaconLayouts.registryUuid(beaconObj),
+                        BeaconLayouts.registryMajor(beaconObj),
+                        BeaconLayouts.registryMinor(beaconObj)));
+                }
+                updateEtag(current, options);
+                pipeline.setRegistry(current);
+                persistRegistry(current);
+                replanRegions();
+
+                JSONObject result = new JSONObject();
+                result.put("positions", positions);
+                result.put("count", current.size());
+                callbackContext.success(result);
+            } catch (Exception e) {
+                Log.e(TAG, "Error removing beacon data", e);
+                callbackContext.error("Error removing beacon data: " + e.getMessage());
+            }
+        });
+    }
+
+    private static void updateEtag(BeaconRegistry registry, JSONObject options) {
+        if (options != null && options.has("etag")) {
+            registry.setEtag(options.optString("etag", null));
+        }
+    }
+
+    /**
+     * Saves the registry just swapped in; a failure only costs the next warm start, so it is
+     * logged.
+     */
+    private void persistRegistry(BeaconRegistry registry) {
+        try {
+            registryStore.save(registry);
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving beacon data cache", e);
+        }
+    }
+
+    /**
+     * Registry entries indexed by position, null where an entry was removed, matching what
+     * JS keeps in registeredBeacons.
+     */
+    private static JSONArray toEntryArray(BeaconRegistry registry) throws JSONException {
+        JSONArray entries = new JSONArray();
+        synchronized (registry) {
+            for (int position = 0; position < registry.nextPosition(); position++) {
+                entries.put(JSONObject.NULL);
+            }
+            for (int index = 0; index < registry.highWater(); index++) {
+                if (registry.contains(index)) {
+                    JSONObject entry = new JSONObject();
+                    entry.put("uuid", registry.uuid(index));
+                    entry.put("major", registry.major(index));
+                    entry.put("minor", registry.minor(index));
+                    entry.put("title", registry.title(index));
+                    entry.put("url", registry.url(index));
+                    if (registry.hasLocation(index)) {
+                        entry.put("x", registry.x(index));
+                        entry.put("y", registry.y(index));
+                        entry.put("floor", registry.floor(index));
+                    }
+                    entries.put(registry.position(index), entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private void subscribe(JSONObject options, CallbackContext callbackContext) {
+        BeaconTracker tracker = null;
+        if (options != null && "delta".equals(options.optString("mode", "snapshot"))) {
+            tracker = new BeaconTracker(
+                options.optLong("exitTimeout", 10000),
+                options.optDouble("distanceThreshold", 0.5),
+                options.optInt("rssiThreshold", 5));
+            Log.d(TAG, "Beacon detection subscribed in delta mode");
+        }
+        boolean binary = options != null && "binary".equals(options.optString("encoding", "json"));
+        String id = options != null
+            ? options.optString("id", BeaconPipeline.DEFAULT_SUBSCRIPTION) : BeaconPipeline.DEFAULT_SUBSCRIPTION;
+        BeaconFilter filter;
+        try {
+            filter = BeaconFilter.fromOptions(options);
         } catch (Exception e) {
-            Log.e(TAG, "Error initializing beacon data", e);
-            callbackContext.error("Error initializing beacon data: " + e.getMessage());
+            Log.e(TAG, "Error in subscription filter", e);
+            callbackContext.error("Error in subscription filter: " + e.getMessage());
+            return;
         }
+        synchronized (subscriptionCallbacks) {
+            subscriptionCallbacks.remove(id);
+            subscriptionCallbacks.put(id, callbackContext);
+            beaconDetectionCallback = callbackContext;
+        }
+        pipeline.subscribe(new BeaconPipeline.Subscription(id, keptSink(callbackContext), tracker, binary, filter));
     }
 
-    private void startScanning(CallbackContext callbackContext) {
-        if (isScanning) {
-            callbackContext.success("Already scanning");
+    /**
+     * Removes a subscription; if it was the one receiving permission events, they move to the
+     * newest subscription left.
+     */
+    private void unsubscribe(String id, CallbackContext callbackContext) {
+        boolean removed = pipeline.unsubscribe(id);
+        synchronized (subscriptionCallbacks) {
+            subscriptionCallbacks.remove(id);
+            CallbackContext newest = null;
+            for (CallbackContext callback : subscriptionCallbacks.values()) {
+                newest = callback;
+            }
+            beaconDetectionCallback = newest;
+        }
+        callbackContext.success(removed ? "Subscription removed" : "No subscription " + id);
+    }
+
+    /**
+     * Sink that sends every result to a kept callback.
+     */
+    private static BeaconPipeline.Sink keptSink(CallbackContext callbackContext) {
+        return new KeptSink(callbackContext) {
+            @Override
+            public void sendError(String message) {
+                Log.e(TAG, message);
+                super.sendError(message);
+            }
+        };
+    }
+
+    /**
+     * Replaces the zone engine; null options turn zones off. Transitions go to onZoneChanged.
+     */
+    private void setZones(JSONObject options, CallbackContext callbackContext) {
+        try {
+            ZoneEngine engine = options != null ? ZoneEngine.fromOptions(options) : null;
+            CallbackContext callback = zoneCallback;
+            pipeline.setZones(engine, callback != null ? keptSink(callback) : null);
+            Log.d(TAG, "Zones " + (engine != null ? "enabled" : "disabled"));
+            callbackContext.success(engine != null ? "Zones enabled" : "Zones disabled");
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting zones", e);
+            callbackContext.error("Error setting zones: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replaces the position estimator; null options turn positioning off. Fixes go to
+     * onPositionUpdate.
+     */
+    private void setPositioning(JSONObject options, CallbackContext callbackContext) {
+        try {
+            PositionEstimator estimator = options != null ? PositionEstimator.fromOptions(options) : null;
+            CallbackContext callback = positionCallback;
+            pipeline.setPositioning(estimator, callback != null ? keptSink(callback) : null);
+            Log.d(TAG, "Positioning " + (estimator != null ? "enabled" : "disabled"));
+            callbackContext.success(estimator != null ? "Positioning enabled" : "Positioning disabled");
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting positioning", e);
+            callbackContext.error("Error setting positioning: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Configures what happens while the app is paused; buffer false keeps live delivery.
+     * Takes effect on the next pause.
+     */
+    private void setBackgroundMode(JSONObject options, CallbackContext callbackContext) {
+        try {
+            JSONObject opts = options != null ? options : new JSONObject();
+            // Built once here so bad options fail now rather than on pause
+            BackgroundBuffer.fromOptions(opts, System.currentTimeMillis());
+            backgroundOptions = opts;
+            backgroundBuffering = opts.optBoolean("buffer", true);
+            Log.d(TAG, "Background buffering " + (backgroundBuffering ? "enabled" : "disabled"));
+            callbackContext.success(backgroundBuffering ? "Background buffering enabled"
+                : "Background buffering disabled");
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting background mode", e);
+            callbackContext.error("Error setting background mode: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replaces the beacon formats AltBeacon parses. The parser list may not change under a
+     * running scan, so this is refused while scanning; the change runs on the scan lifecycle
+     * worker, so a startScanning cannot slip in between the check and the change.
+     */
+    private void setBeaconLayouts(JSONObject options, CallbackContext callbackContext) {
+        try {
+            BeaconLayouts newLayouts = BeaconLayouts.fromOptions(options);
+            scanLifecycle.whenIdle(() -> {
+                try {
+                    applyLayouts(newLayouts);
+                    Log.d(TAG, "Beacon layouts set to " + newLayouts.getStats().getJSONArray("formats"));
+                    callbackContext.success("Beacon layouts updated");
+                } catch (Exception e) {
+                    Log.e(TAG, "Error setting beacon layouts", e);
+                    callbackContext.error("Error setting beacon layouts: " + e.getMessage());
+                }
+            }, "Stop scanning before changing beacon layouts", replyTo(callbackContext));
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting beacon layouts", e);
+            callbackContext.error("Error setting beacon layouts: " + e.getMessage());
+        }
+    }
+
+    private void applyLayouts(BeaconLayouts newLayouts) {
+        List<BeaconParser> parsers = beaconManager.getBeaconParsers();
+        parsers.clear();
+        for (int format = 0; format < BeaconLayouts.formatCount(); format++) {
+            if (newLayouts.isEnabled(format)) {
+                parsers.add(new BeaconParser(BeaconLayouts.name(format))
+                    .setBeaconLayout(BeaconLayouts.layout(format)));
+            }
+        }
+        layouts = newLayouts;
+    }
+
+    private void setBatching(JSONObject options, CallbackContext callbackContext) {
+        flushHandler.removeCallbacks(flushTask);
+        
+        if (options == null || !options.optBoolean("enabled", true)) {
+            ResultBatcher previous = pipeline.getBatcher();
+            pipeline.setBatcher(null);
+            batchOptions = null;
+            // Hand over whatever was still pending instead of silently losing it
+            if (previous != null) {
+                flushHandler.post(() -> flushBatch(previous));
+            }
+            Log.d(TAG, "Batched delivery disabled");
+            callbackContext.success("Batching disabled");
             return;
         }
         
-        // Add rate limiting check
-        long currentTime = System.currentTimeMillis();
-        if (currentTime - lastScanOperationTime < MIN_SCAN_INTERVAL_MS) {
+        ResultBatcher newBatcher = ResultBatcher.fromOptions(options);
+        batchOptions = options;
+        pipeline.setBatcher(newBatcher);
+        flushHandler.postDelayed(flushTask, newBatcher.getFlushIntervalMs());
+        Log.d(TAG, "Batched delivery enabled every " + newBatcher.getFlushIntervalMs() + " ms");
+        callbackContext.success("Batching enabled");
+    }
+    
+    private void setSmoothing(JSONObject options, CallbackContext callbackContext) {
+        BeaconSmoother newSmoother = options != null ? BeaconSmoother.fromOptions(options) : null;
+        pipeline.setSmoother(newSmoother);
+        Log.d(TAG, "Smoothing " + (newSmoother != null ? "set to " + options.optString("filter") : "disabled"));
+        callbackContext.success(newSmoother != null ? "Smoothing enabled" : "Smoothing disabled");
+    }
+    
+    private void setScanPolicy(JSONObject options, CallbackContext callbackContext) {
+        try {
+            ScanScheduler scheduler = options != null ? ScanScheduler.fromOptions(options) : ScanScheduler.defaults();
+            pipeline.setScanScheduler(scheduler);
+            applyScanPeriods(scheduler);
+            callbackContext.success(scheduler.getStats());
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting scan policy", e);
+            callbackContext.error("Error setting scan policy: " + e.getMessage());
+        }
+    }
+    
+    private void applyScanPeriods(ScanScheduler scheduler) {
+        beaconManager.setForegroundScanPeriod(scheduler.getScanPeriod());
+        beaconManager.setForegroundBetweenScanPeriod(scheduler.getBetweenScanPeriod());
+        beaconManager.setBackgroundScanPeriod(scheduler.getBackgroundScanPeriod());
+        beaconManager.setBackgroundBetweenScanPeriod(scheduler.getBackgroundBetweenScanPeriod());
+        updateScanPeriods();
+    }
+    
+    private void updateScanPeriods() {
+        if (scanLifecycle.getState() != ScanLifecycle.State.SCANNING) {
+            return;
+        }
+        try {
+            beaconManager.updateScanPeriods();
+        } catch (Exception e) {
+            Log.e(TAG, "Error updating scan periods", e);
+        }
+    }
+    
+    private void flushBatch(ResultBatcher batcher) {
+        try {
+            pipeline.flush(batcher);
+        } catch (Exception e) {
+            Log.e(TAG, "Error flushing beacon batch", e);
+        }
+    }
+
+    private void startScanning(JSONObject options, CallbackContext callbackContext) {
+        if (!startLimit.tryAcquire(System.currentTimeMillis())) {
             Log.w(TAG, "Scan operation requested too soon after previous operation. Enforcing rate limit.");
             callbackContext.error("Please wait before starting another scan operation");
             return;
         }
+        scanLifecycle.start(options, replyTo(callbackContext));
+    }
+
+    private void stopScanning(CallbackContext callbackContext) {
+        if (!stopLimit.tryAcquire(System.currentTimeMillis())) {
+            Log.w(TAG, "Scan operation requested too soon after previous operation. Enforcing rate limit.");
+            callbackContext.error("Please wait before stopping scan operation");
+            return;
+        }
+        scanLifecycle.stop(replyTo(callbackContext));
+    }
+
+    private static ScanLifecycle.Reply replyTo(CallbackContext callbackContext) {
+        return new ScanLifecycle.Reply() {
+            @Override
+            public void success(String message) {
+                callbackContext.success(message);
+            }
+
+            @Override
+            public void error(String message) {
+                callbackContext.error(message);
+            }
+        };
+    }
+
+    /**
+     * STARTING to SCANNING, on the lifecycle worker.
+     */
+    private void beginScan(JSONObject options) throws Exception {
+        // A replay feeds the pipeline in place of ranging; both at once would interleave cycles
+        ReplaySource current = replay;
+        if (current != null && current.isRunning()) {
+            throw new IllegalStateException("Stop the replay before scanning");
+        }
+
+        // Check and request permissions
+        if (!checkAndRequestPermissions()) {
+            throw new IllegalStateException("Required permissions not granted");
+        }
+        
+        boolean filter = options != null && options.optBoolean("filterRegistered", false);
+        List<Region> planned;
+        if (filter && layouts.isUuidOnly()) {
+            // Only the UUIDs/majors in the registry, so foreign beacons never reach the notifier
+            planned = planRegions(options);
+            Log.d(TAG, "Created " + planned.size() + " regions to scan for registered beacons");
+        } else {
+            // Use null identifiers to detect all beacons; UUID regions would never match
+            // Eddystone namespaces, so those are narrowed by early rejection alone
+            planned = Collections.singletonList(RegionPlanner.wildcard("AllBeaconsRegion"));
+            Log.d(TAG, "Created region to scan for all beacons");
+        }
+        pipeline.setRegisteredOnly(filter);
+        pipeline.setSightings(new SightingTable(options != null
+            ? options.optLong("sightingTtl", DEFAULT_SIGHTING_TTL_MS) : DEFAULT_SIGHTING_TTL_MS));
+        regions = planned;
         
+        // Start ranging beacons
+        for (Region region : planned) {
+            beaconManager.startRangingBeacons(region);
+            beaconManager.startMonitoringBeaconsInRegion(region);
+        }
+        Log.d(TAG, "Started scanning for beacons");
+    }
+
+    /**
+     * STOPPING to IDLE, on the lifecycle worker.
+     */
+    private void endScan() throws Exception {
+        for (Region region : regions) {
+            beaconManager.stopRangingBeacons(region);
+            beaconManager.stopMonitoringBeaconsInRegion(region);
+        }
+        regions = Collections.emptyList();
+        regionOptions = null;
+        pipeline.getSightings().clear();
+        Log.d(TAG, "Stopped scanning for beacons");
+    }
+
+    /**
+     * Plans regions for the registered UUIDs/majors and remembers what they were planned
+     * from. Each plan gets fresh region ids, since AltBeacon tells regions apart by id.
+     */
+    private List<Region> planRegions(JSONObject options) {
+        BeaconRegistry registry = pipeline.getRegistry();
+        regionOptions = options;
+        plannedRegistry = registry;
+        plannedRevision = registry.revision();
+        return RegionPlanner.plan(registry, "RegisteredRegion-" + planGeneration++ + "-",
+            options.optInt("maxRegions", 10), options.optInt("maxMajorsPerUuid", 5));
+    }
+
+    /**
+     * After a registry change, re-plans the regions of a running filterRegistered scan if
+     * the registered identities changed. It runs on the lifecycle worker; the new regions
+     * are ranged before the old ones stop, so beacons in both are not missed meanwhile.
+     */
+    private void replanRegions() {
+        scanLifecycle.whenScanning(() -> {
+            JSONObject options = regionOptions;
+            BeaconRegistry registry = pipeline.getRegistry();
+            if (options == null || (registry == plannedRegistry && registry.revision() == plannedRevision)) {
+                return;
+            }
+            try {
+                List<Region> previous = regions;
+                List<Region> planned = planRegions(options);
+                for (Region region : planned) {
+                    beaconManager.startRangingBeacons(region);
+                    beaconManager.startMonitoringBeaconsInRegion(region);
+                }
+                regions = planned;
+                for (Region region : previous) {
+                    beaconManager.stopRangingBeacons(region);
+                    beaconManager.stopMonitoringBeaconsInRegion(region);
+                }
+                Log.d(TAG, "Re-planned " + planned.size() + " regions after a registry change");
+            } catch (Exception e) {
+                Log.e(TAG, "Error re-planning regions", e);
+            }
+        });
+    }
+
+    /**
+     * Replaces the sighting history; null options turn it off and drop what was recorded.
+     */
+    private void setHistory(JSONObject options, CallbackContext callbackContext) {
+        SightingHistory history = options != null ? SightingHistory.fromOptions(options) : null;
+        pipeline.setHistory(history);
+        Log.d(TAG, "History " + (history != null ? "enabled" : "disabled"));
+        callbackContext.success(history != null ? "History enabled" : "History disabled");
+    }
+
+    /**
+     * Dwell time and visit count per beacon since options.since, or over the last
+     * options.window ms (default one hour).
+     */
+    private void getDwellTimes(JSONObject options, CallbackContext callbackContext) {
+        SightingHistory history = pipeline.getHistory();
+        if (history == null) {
+            callbackContext.error("History is not enabled; call setHistory first");
+            return;
+        }
         cordova.getThreadPool().execute(() -> {
             try {
-                // Check and request permissions
-                if (!checkAndRequestPermissions()) {
-                    callbackContext.error("Required permissions not granted");
-                    return;
+                long since = historySince(options);
+                boolean registeredOnly = options != null && options.optBoolean("registeredOnly", false);
+                BeaconRegistry current = pipeline.getRegistry();
+                JSONArray beacons = new JSONArray();
+                history.dwell(since, (msb, lsb, majorMinor, dwellMs, visits, lastSeen) -> {
+                    JSONObject entry = historyEntry(current, msb, lsb, majorMinor, registeredOnly);
+                    if (entry != null) {
+                        entry.put("dwell", dwellMs);
+                        entry.put("visits", visits);
+                        entry.put("lastSeen", lastSeen);
+                        beacons.put(entry);
+                    }
+                });
+
+                JSONObject result = new JSONObject();
+                result.put("since", since);
+                result.put("complete", history.isComplete(since));
+                result.put("memoryBytes", history.memoryBytes());
+                result.put("beacons", beacons);
+                callbackContext.success(result);
+            } catch (Exception e) {
+                Log.e(TAG, "Error reading dwell times", e);
+                callbackContext.error("Error reading dwell times: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Individual visits since options.since (or over the last options.window ms), open ones
+     * first and then newest first, at most options.limit (default 1000).
+     */
+    private void getVisits(JSONObject options, CallbackContext callbackContext) {
+        SightingHistory history = pipeline.getHistory();
+        if (history == null) {
+            callbackContext.error("History is not enabled; call setHistory first");
+            return;
+        }
+        cordova.getThreadPool().execute(() -> {
+            try {
+                long since = historySince(options);
+                int limit = options != null ? options.optInt("limit", 1000) : 1000;
+                boolean registeredOnly = options != null && options.optBoolean("registeredOnly", false);
+                BeaconRegistry current = pipeline.getRegistry();
+                JSONArray visits = new JSONArray();
+                history.visits(since, limit, (msb, lsb, majorMinor, start, end, open) -> {
+                    JSONObject entry = historyEntry(current, msb, lsb, majorMinor, registeredOnly);
+                    if (entry != null) {
+                        entry.put("start", start);
+                        entry.put("end", end);
+                        entry.put("open", open);
+                        visits.put(entry);
+                    }
+                });
+
+                JSONObject result = new JSONObject();
+                result.put("since", since);
+                result.put("complete", history.isComplete(since));
+                result.put("visits", visits);
+                callbackContext.success(result);
+            } catch (Exception e) {
+                Log.e(TAG, "Error reading visits", e);
+                callbackContext.error("Error reading visits: " + e.getMessage());
+            }
+        });
+    }
+
+    private static long historySince(JSONObject options) {
+        long now = System.currentTimeMillis();
+        if (options != null && options.has("since")) {
+            return options.optLong("since", now);
+        }
+        return now - (options != null ? options.optLong("window", 3600000) : 3600000);
+    }
+
+    /**
+     * Identity plus title and url of a history entry; null when registeredOnly and the beacon
+     * is not registered.
+     */
+    private static JSONObject historyEntry(BeaconRegistry registry, long msb, long lsb, int majorMinor,
+                                           boolean registeredOnly) throws JSONException {
+        int major = BeaconIdMap.major(majorMinor);
+        int minor = BeaconIdMap.minor(majorMinor);
+        int index = registry.find(msb, lsb, major, minor);
+        if (registeredOnly && index < 0) {
+            return null;
+        }
+        JSONObject entry = new JSONObject();
+        entry.put("uuid", new UUID(msb, lsb).toString());
+        entry.put("major", major);
+        entry.put("minor", minor);
+        if (index >= 0) {
+            entry.put("title", registry.title(index));
+            entry.put("url", registry.url(index));
+        }
+        return entry;
+    }
+
+    /**
+     * Opens the journal under the app's files dir, replacing (and closing) the current one;
+     * null options stop journaling but keep what was written.
+     */
+    private void setJournal(JSONObject options, CallbackContext callbackContext) {
+        cordova.getThreadPool().execute(() -> {
+            try {
+                EventJournal previous = pipeline.getJournal();
+                pipeline.setJournal(null);
+                if (previous != null) {
+                    previous.close();
                 }
-                
-                // Use null identifiers to detect all beacons
-                region = new Region("AllBeaconsRegion", null, null, null);
-                Log.d(TAG, "Created region to scan for all beacons");
-                
-                // Start ranging beacons
-                beaconManager.startRangingBeacons(region);
-                beaconManager.startMonitoringBeaconsInRegion(region);
-                
-                isScanning = true;
-                lastScanOperationTime = System.currentTimeMillis(); // Update timestamp
-                Log.d(TAG, "Started scanning for beacons");
-                callbackContext.success("Started scanning for beacons");
+                if (options != null) {
+                    File dir = new File(cordova.getActivity().getFilesDir(), "beacon_journal");
+                    pipeline.setJournal(EventJournal.open(dir, options));
+                }
+                Log.d(TAG, "Journal " + (options != null ? "enabled" : "disabled"));
+                callbackContext.success(options != null ? "Journal enabled" : "Journal disabled");
             } catch (Exception e) {
-                Log.e(TAG, "Error starting beacon scanning", e);
-                callbackContext.error("Error starting beacon scanning: " + e.getMessage());
+                Log.e(TAG, "Error setting journal", e);
+                callbackContext.error("Error setting journal: " + e.getMessage());
             }
         });
     }
 
-    private void stopScanning(CallbackContext callbackContext) {
-        if (!isScanning) {
-            callbackContext.success("Not scanning");
+    private void readJournal(long fromOffset, int maxRecords, CallbackContext callbackContext) {
+        EventJournal journal = pipeline.getJournal();
+        if (journal == null) {
+            callbackContext.error("Journal is not enabled; call setJournal first");
             return;
         }
-        
-        // Add rate limiting check
-        long currentTime = System.currentTimeMillis();
-        if (currentTime - lastScanOperationTime < MIN_SCAN_INTERVAL_MS) {
-            Log.w(TAG, "Scan operation requested too soon after previous operation. Enforcing rate limit.");
-            callbackContext.error("Please wait before stopping scan operation");
+        cordova.getThreadPool().execute(() -> {
+            try {
+                callbackContext.success(journal.read(fromOffset, maxRecords));
+            } catch (Exception e) {
+                Log.e(TAG, "Error reading journal", e);
+                callbackContext.error("Error reading journal: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Drops journal records before offset, normally a readJournal nextOffset the app has
+     * exported.
+     */
+    private void ackJournal(long offset, CallbackContext callbackContext) {
+        EventJournal journal = pipeline.getJournal();
+        if (journal == null) {
+            callbackContext.error("Journal is not enabled; call setJournal first");
             return;
         }
-        
         cordova.getThreadPool().execute(() -> {
             try {
-                if (region != null) {
-                    beaconManager.stopRangingBeacons(region);
-                    beaconManager.stopMonitoringBeaconsInRegion(region);
+                journal.ack(offset);
+                callbackContext.success(journal.getStats());
+            } catch (Exception e) {
+                Log.e(TAG, "Error acknowledging journal", e);
+                callbackContext.error("Error acknowledging journal: " + e.getMessage());
+            }
+        });
+    }
+
+    private File recordingsDir() {
+        return new File(cordova.getActivity().getFilesDir(), "beacon_recordings");
+    }
+
+    /**
+     * Records every raw ranging cycle under the given name for startReplay, replacing a
+     * recording in progress. Recording again under a name appends to it.
+     */
+    private void startRecording(JSONObject options, CallbackContext callbackContext) {
+        cordova.getThreadPool().execute(() -> {
+            try {
+                JSONObject opts = options != null ? options : new JSONObject();
+                File dir = new File(recordingsDir(), ReplaySource.recordingName(opts.optString("name", "")));
+                EventJournal previous = pipeline.getRecorder();
+                pipeline.setRecorder(EventJournal.open(dir, opts));
+                if (previous != null) {
+                    previous.close();
                 }
-                
-                isScanning = false;
-                lastScanOperationTime = System.currentTimeMillis(); // Update timestamp
-                Log.d(TAG, "Stopped scanning for beacons");
-                callbackContext.success("Stopped scanning for beacons");
+                Log.d(TAG, "Recording to " + dir);
+                callbackContext.success("Recording started");
             } catch (Exception e) {
-                Log.e(TAG, "Error stopping beacon scanning", e);
-                callbackContext.error("Error stopping beacon scanning: " + e.getMessage());
+                Log.e(TAG, "Error starting recording", e);
+                callbackContext.error("Error starting recording: " + e.getMessage());
             }
         });
     }
 
-    // Also modify the listDetectedBeacons method to include rate limiting
-    private void listDetectedBeacons(CallbackContext callbackContext) {
-        if (beaconData.isEmpty()) {
+    private void stopRecording(CallbackContext callbackContext) {
+        cordova.getThreadPool().execute(() -> {
+            try {
+                EventJournal recorder = pipeline.getRecorder();
+                if (recorder == null) {
+                    callbackContext.error("Not recording");
+                    return;
+                }
+                pipeline.setRecorder(null);
+                recorder.close();
+                callbackContext.success(recorder.getStats());
+            } catch (Exception e) {
+                Log.e(TAG, "Error stopping recording", e);
+                callbackContext.error("Error stopping recording: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Feeds a recording or a synthetic walk through the pipeline in place of ranging, so it
+     * goes through the same matching, filtering and delivery. Answers with the replay stats
+     * once it has finished or was stopped; cycle latencies are in getMetrics. It starts on the
+     * scan lifecycle worker, which also refuses startScanning while it runs.
+     */
+    private void startReplay(JSONObject options, CallbackContext callbackContext) {
+        scanLifecycle.whenIdle(() -> beginReplay(options, callbackContext), "Stop scanning before replaying",
+            replyTo(callbackContext));
+    }
+
+    private void beginReplay(JSONObject options, CallbackContext callbackContext) {
+        try {
+            ReplaySource current = replay;
+            if (current != null && current.isRunning()) {
+                callbackContext.error("A replay is already running");
+                return;
+            }
+            ReplaySource source = ReplaySource.fromOptions(recordingsDir(), pipeline.getRegistry(),
+                options != null ? options : new JSONObject(), new ReplaySource.Target() {
+                    @Override
+                    public void deliver(BeaconCycle replayed, long now, Runnable recycle) {
+                        flushHandler.post(() -> {
+                            try {
+                                pipeline.process(replayed, now);
+                            } finally {
+                                recycle.run();
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void finished(ReplaySource finished, Exception error) {
+                        // Answered from the main looper, like the results of the cycles
+                        flushHandler.post(() -> {
+                            try {
+                                if (error != null) {
+                                    Log.e(TAG, "Error replaying beacons", error);
+                                    callbackContext.error("Error replaying beacons: " + error.getMessage());
+                                } else {
+                                    callbackContext.success(finished.getStats());
+                                }
+                            } catch (JSONException e) {
+                                callbackContext.error("Error replaying beacons: " + e.getMessage());
+                            }
+                        });
+                    }
+                });
+            replay = source;
+            source.start();
+            Log.d(TAG, "Replay started");
+        } catch (Exception e) {
+            Log.e(TAG, "Error starting replay", e);
+            callbackContext.error("Error starting replay: " + e.getMessage());
+        }
+    }
+
+    private void stopReplay(CallbackContext callbackContext) {
+        ReplaySource current = replay;
+        if (current == null || !current.isRunning()) {
+            callbackContext.error("No replay running");
+            return;
+        }
+        current.stop();
+        callbackContext.success("Replay stopped");
+    }
+
+    /**
+     * Returns the hot-path metrics, optionally resetting them. With an interval option the
+     * callback is kept and gets a snapshot every interval ms; interval 0 stops the push.
+     */
+    private void getMetrics(JSONObject options, CallbackContext callbackContext) {
+        boolean reset = options != null && options.optBoolean("reset", false);
+        try {
+            if (options != null && options.has("interval")) {
+                long interval = options.optLong("interval", 0);
+                flushHandler.removeCallbacks(metricsTask);
+                metricsCallback = interval > 0 ? callbackContext : null;
+                if (interval > 0) {
+                    metricsInterval = interval;
+                    metricsPushReset = reset;
+                    PluginResult result = new PluginResult(PluginResult.Status.OK, metricsSnapshot(reset));
+                    result.setKeepCallback(true);
+                    callbackContext.sendPluginResult(result);
+                    flushHandler.postDelayed(metricsTask, interval);
+                    return;
+                }
+            }
+            callbackContext.success(metricsSnapshot(reset));
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading metrics", e);
+            callbackContext.error("Error reading metrics: " + e.getMessage());
+        }
+    }
+
+    private JSONObject metricsSnapshot(boolean reset) throws JSONException {
+        long now = System.currentTimeMillis();
+        PluginMetrics metrics = pipeline.getMetrics();
+        JSONObject snapshot = metrics.toJson(now);
+        snapshot.put("timestamp", now);
+        ResultBatcher currentBatcher = pipeline.getBatcher();
+        if (currentBatcher != null) {
+            snapshot.put("batching", currentBatcher.getStats());
+        }
+        if (reset) {
+            metrics.reset(now);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Lists the beacons in range. While scanning this answers at once from the sighting
+     * table (optionally only sightings at most maxAge ms old); otherwise it runs a one-shot
+     * scan of up to 5 seconds, rate limited like start/stop.
+     */
+    private void listDetectedBeacons(JSONObject options, CallbackContext callbackContext) {
+        if (pipeline.getRegistry().isEmpty()) {
             callbackContext.error("No beacon data initialized. Call initialize() first.");
             return;
         }
         
+        if (scanLifecycle.getState() != ScanLifecycle.State.IDLE) {
+            try {
+                SightingTable table = pipeline.getSightings();
+                long maxAge = options != null ? options.optLong("maxAge", table.getTtlMs()) : table.getTtlMs();
+                JSONArray beaconArray = new JSONArray();
+                table.forEach(maxAge, System.currentTimeMillis(), pipeline.jsonCollector(beaconArray));
+                callbackContext.success(beaconArray);
+            } catch (Exception e) {
+                Log.e(TAG, "Error listing beacons", e);
+                callbackContext.error("Error listing beacons: " + e.getMessage());
+            }
+            return;
+        }
+        
         // Add rate limiting check
-        long currentTime = System.currentTimeMillis();
-        if (currentTime - lastScanOperationTime < MIN_SCAN_INTERVAL_MS) {
+        if (!listLimit.tryAcquire(System.currentTimeMillis())) {
             Log.w(TAG, "Scan operation requested too soon after previous operation. Enforcing rate limit.");
             callbackContext.error("Please wait before requesting another beacon scan");
             return;
@@ -223,78 +1236,30 @@ public class BeaconDetectorPlugin extends CordovaPlugin implements RangeNotifier
                     return;
                 }
                 
-                // Create a temporary region for a single scan
-                Region tempRegion = new Region("TempScanRegion", null, null, null);
+                // Create a temporary region for a single scan, narrowed to the registry like the main scan
+                boolean filter = pipeline.isRegisteredOnly();
+                Region tempRegion = filter && layouts.isUuidOnly()
+                    ? RegionPlanner.plan(pipeline.getRegistry(), "TempScanRegion-", 1, Integer.MAX_VALUE).get(0)
+                    : RegionPlanner.wildcard("TempScanRegion");
                 
-                // Update timestamp
-                lastScanOperationTime = System.currentTimeMillis();
+                // With batching configured, coalesce cycles for one flush interval instead of taking the first
+                JSONObject currentBatchOptions = batchOptions;
+                ResultBatcher listBatcher = currentBatchOptions != null
+                    ? ResultBatcher.fromOptions(currentBatchOptions) : null;
                 
-                // Create a temporary callback for this scan
-                RangeNotifier tempRangeNotifier = new RangeNotifier() {
-                    @Override
-                    public void didRangeBeaconsInRegion(Collection<Beacon> detectedBeacons, Region region) {
-                        try {
-                            JSONArray beaconArray = new JSONArray();
-                            
-                            for (Beacon beacon : detectedBeacons) {
-                                String uuid = beacon.getId1().toString();
-                                int major = beacon.getId2().toInt();
-                                int minor = beacon.getId3().toInt();
-                                
-                                JSONObject beaconObj = new JSONObject();
-                                beaconObj.put("uuid", uuid);
-                                beaconObj.put("major", major);
-                                beaconObj.put("minor", minor);
-                                beaconObj.put("distance", beacon.getDistance());
-                                beaconObj.put("rssi", beacon.getRssi());
-                                
-                                // Find matching beacon in our data
-                                for (Map<String, Object> data : beaconData) {
-                                    if (uuid.equalsIgnoreCase((String) data.get("uuid")) &&
-                                        major == (int) data.get("major") &&
-                                        minor == (int) data.get("minor")) {
-                                        
-                                        beaconObj.put("title", data.get("title"));
-                                        beaconObj.put("url", data.get("url"));
-                                        break;
-                                    }
-                                }
-                                
-                                beaconArray.put(beaconObj);
-                            }
-                            
-                            // Stop ranging after getting results
-                            beaconManager.stopRangingBeacons(tempRegion);
-                            
-                            callbackContext.success(beaconArray);
-                        } catch (Exception e) {
-                            Log.e(TAG, "Error processing beacon list", e);
-                            callbackContext.error("Error processing beacon list: " + e.getMessage());
-                        }
-                    }
-                };
-                
-                // Set the temporary range notifier
-                beaconManager.addRangeNotifier(tempRangeNotifier);
+                ListScan scan = new ListScan(tempRegion, filter, listBatcher, callbackContext);
+                beaconManager.addRangeNotifier(scan);
+                flushHandler.postDelayed(scan, LIST_SCAN_TIMEOUT_MS);
                 
                 // Start a single scan
-                beaconManager.startRangingBeacons(tempRegion);
-                
-                // Set a timeout to ensure we return something even if no beacons are found
-                android.os.Handler handler = new android.os.Handler(android.os.Looper.getMainLooper());
-                handler.postDelayed(() -> {
-                    try {
-                        beaconManager.stopRangingBeacons(tempRegion);
-                        beaconManager.removeRangeNotifier(tempRangeNotifier);
-                        
-                        // If callback hasn't been invoked yet, return empty array
-                        if (!callbackContext.isFinished()) {
-                            callbackContext.success(new JSONArray());
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error in scan timeout", e);
+                try {
+                    beaconManager.startRangingBeacons(tempRegion);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error listing beacons", e);
+                    if (scan.finish()) {
+                        callbackContext.error("Error listing beacons: " + e.getMessage());
                     }
-                }, 5000); // 5 second timeout
+                }
                 
             } catch (Exception e) {
                 Log.e(TAG, "Error listing beacons", e);
@@ -303,16 +1268,161 @@ public class BeaconDetectorPlugin extends CordovaPlugin implements RangeNotifier
         });
     }
     
+    /**
+     * One-shot scan behind listDetectedBeacons when scanning is off. Ranging results and the
+     * timeout (run as this Runnable) both end it, whichever comes first; the notifier is
+     * always removed and the callback answered exactly once.
+     */
+    private final class ListScan implements RangeNotifier, Runnable {
+        private final Region region;
+        private final boolean filter;
+        private final ResultBatcher listBatcher;
+        private final CallbackContext callbackContext;
+        private final long scanStart = System.currentTimeMillis();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        // Its own buffer: the main cycle buffer may be in use by the main scan
+        private final BeaconCycle cycle = new BeaconCycle(16);
+        
+        ListScan(Region region, boolean filter, ResultBatcher listBatcher, CallbackContext callbackContext) {
+            this.region = region;
+            this.filter = filter;
+            this.listBatcher = listBatcher;
+            this.callbackContext = callbackContext;
+        }
+        
+        @Override
+        public void didRangeBeaconsInRegion(Collection<Beacon> detectedBeacons, Region rangedRegion) {
+            // Every notifier hears every region; only the temporary one matters here
+            if (finished.get() || !region.getUniqueId().equals(rangedRegion.getUniqueId())) {
+                return;
+            }
+            layouts.fill(cycle, detectedBeacons, pipeline.getRegistry(), filter);
+            if (filter) {
+                pipeline.dropForeign(cycle);
+            }
+            try {
+                JSONArray beaconArray;
+                if (listBatcher == null) {
+                    beaconArray = pipeline.toJsonArray(cycle, null);
+                } else {
+                    BeaconPipeline.forEachRecord(cycle, null, null, listBatcher::offer, System.currentTimeMillis());
+                    if (!listBatcher.isFull()
+                            && System.currentTimeMillis() - scanStart < listBatcher.getFlushIntervalMs()) {
+                        return;
+                    }
+                    beaconArray = new JSONArray();
+                    listBatcher.drain(pipeline.jsonCollector(beaconArray), System.currentTimeMillis());
+                }
+                if (finish()) {
+                    callbackContext.success(beaconArray);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error processing beacon list", e);
+                if (finish()) {
+                    callbackContext.error("Error processing beacon list: " + e.getMessage());
+                }
+            }
+        }
+        
+        /**
+         * Timeout: return what was coalesced so far, or an empty array.
+         */
+        @Override
+        public void run() {
+            if (finished.get()) {
+                return;
+            }
+            JSONArray beaconArray = new JSONArray();
+            try {
+                if (listBatcher != null) {
+                    listBatcher.drain(pipeline.jsonCollector(beaconArray), System.currentTimeMillis());
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error in scan timeout", e);
+            }
+            if (finish()) {
+                callbackContext.success(beaconArray);
+            }
+        }
+        
+        /**
+         * Tears the scan down; returns false if it had already finished.
+         */
+        boolean finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            flushHandler.removeCallbacks(this);
+            beaconManager.removeRangeNotifier(this);
+            try {
+                beaconManager.stopRangingBeacons(region);
+            } catch (Exception e) {
+                Log.e(TAG, "Error stopping temporary scan", e);
+            }
+            return true;
+        }
+    }
+    
     /**
      * Debug method to check beacon scanner status
      */
     private void debugBeaconScanner(CallbackContext callbackContext) {
         JSONObject debug = new JSONObject();
         try {
-            debug.put("isScanning", isScanning);
-            debug.put("beaconDataCount", beaconData.size());
+            debug.put("isScanning", scanLifecycle.getState() == ScanLifecycle.State.SCANNING);
+            debug.put("scanLifecycle", scanLifecycle.getStats());
+            JSONObject rateLimited = new JSONObject();
+            rateLimited.put("startScanning", startLimit.getRejected());
+            rateLimited.put("stopScanning", stopLimit.getRejected());
+            rateLimited.put("listDetectedBeacons", listLimit.getRejected());
+            debug.put("rateLimited", rateLimited);
+            debug.put("regions", regions.size());
+            debug.put("filterRegistered", pipeline.isRegisteredOnly());
+            debug.put("foreignBeaconsFiltered", pipeline.getForeignBeaconsFiltered());
+            debug.put("beaconDataCount", pipeline.getRegistry().size());
+            debug.put("sightings", pipeline.getSightings().getStats());
+            SightingHistory history = pipeline.getHistory();
+            if (history != null) {
+                debug.put("history", history.getStats());
+            }
+            EventJournal journal = pipeline.getJournal();
+            if (journal != null) {
+                debug.put("journal", journal.getStats());
+            }
             debug.put("hasCallback", beaconDetectionCallback != null);
+            debug.put("subscriptions", pipeline.getSubscriptionStats());
+            BeaconSmoother currentSmoother = pipeline.getSmoother();
+            if (currentSmoother != null) {
+                debug.put("smoothing", currentSmoother.getStats());
+            }
+            ResultBatcher currentBatcher = pipeline.getBatcher();
+            if (currentBatcher != null) {
+                debug.put("batching", currentBatcher.getStats());
+            }
             debug.put("beaconManagerActive", beaconManager != null);
+            debug.put("layouts", layouts.getStats());
+            EventJournal recorder = pipeline.getRecorder();
+            if (recorder != null) {
+                debug.put("recording", recorder.getStats());
+            }
+            ReplaySource currentReplay = replay;
+            if (currentReplay != null) {
+                debug.put("replay", currentReplay.getStats());
+            }
+            debug.put("scanPolicy", pipeline.getScanScheduler().getStats());
+            ZoneEngine zoneEngine = pipeline.getZoneEngine();
+            if (zoneEngine != null) {
+                debug.put("zones", zoneEngine.getStats());
+            }
+            PositionEstimator positionEstimator = pipeline.getPositionEstimator();
+            if (positionEstimator != null) {
+                debug.put("positioning", positionEstimator.getStats());
+            }
+            debug.put("backgroundBuffering", backgroundBuffering);
+            BackgroundBuffer backgroundBuffer = pipeline.getBackgroundBuffer();
+            if (backgroundBuffer != null) {
+                debug.put("backgroundBuffer", backgroundBuffer.getStats());
+            }
             
             // Check if Bluetooth is enabled
             android.bluetooth.BluetoothAdapter bluetoothAdapter = android.bluetooth.BluetoothAdapter.getDefaultAdapter();
@@ -375,52 +1485,54 @@ public class BeaconDetectorPlugin extends CordovaPlugin implements RangeNotifier
     // Add the missing didRangeBeaconsInRegion method required by RangeNotifier interface
     @Override
     public void didRangeBeaconsInRegion(Collection<Beacon> beacons, Region region) {
-        if (beaconDetectionCallback != null) {
-            try {
-                JSONArray beaconArray = new JSONArray();
-                
-                for (Beacon beacon : beacons) {
-                    String uuid = beacon.getId1().toString();
-                    int major = beacon.getId2().toInt();
-                    int minor = beacon.getId3().toInt();
-                    
-                    JSONObject beaconObj = new JSONObject();
-                    beaconObj.put("uuid", uuid);
-                    beaconObj.put("major", major);
-                    beaconObj.put("minor", minor);
-                    beaconObj.put("distance", beacon.getDistance());
-                    beaconObj.put("rssi", beacon.getRssi());
-                    
-                    // Find matching beacon in our data
-                    for (Map<String, Object> data : beaconData) {
-                        if (uuid.equalsIgnoreCase((String) data.get("uuid")) &&
-                            major == (int) data.get("major") &&
-                            minor == (int) data.get("minor")) {
-                            
-                            beaconObj.put("title", data.get("title"));
-                            beaconObj.put("url", data.get("url"));
-                            break;
-                        }
-                    }
-                    
-                    beaconArray.put(beaconObj);
-                }
-                
-                // Solo enviar los datos sin redirección
-                PluginResult result = new PluginResult(PluginResult.Status.OK, beaconArray);
-                result.setKeepCallback(true); // Keep the callback for future beacon detections
-                beaconDetectionCallback.sendPluginResult(result);
-                
-                Log.d(TAG, "Detected " + beacons.size() + " beacons");
-            } catch (Exception e) {
-                Log.e(TAG, "Error processing beacon detection", e);
-                
-                // Send error back to JavaScript
-                PluginResult result = new PluginResult(PluginResult.Status.ERROR, "Error processing beacon detection: " + e.getMessage());
-                result.setKeepCallback(true);
-                beaconDetectionCallback.sendPluginResult(result);
+        // Also called for regions ranged by others, e.g. listDetectedBeacons' temporary region
+        List<Region> active = regions;
+        if (!isRanged(active, region)) {
+            return;
+        }
+        
+        if (active.size() > 1) {
+            if (cycleOwner != active) {
+                cycleOwner = active;
+                cycleBeacons.clear();
+                cycleRegions.clear();
+            }
+            // A region reporting twice means the cycle was incomplete; process what arrived
+            if (cycleRegions.contains(region.getUniqueId())) {
+                processCycle(new ArrayList<>(cycleBeacons));
+                cycleBeacons.clear();
+                cycleRegions.clear();
+            }
+            cycleRegions.add(region.getUniqueId());
+            cycleBeacons.addAll(beacons);
+            if (cycleRegions.size() < active.size()) {
+                return;
             }
+            beacons = new ArrayList<>(cycleBeacons);
+            cycleBeacons.clear();
+            cycleRegions.clear();
         }
+        
+        processCycle(beacons);
+    }
+    
+    private static boolean isRanged(List<Region> active, Region region) {
+        for (Region candidate : active) {
+            if (candidate.getUniqueId().equals(region.getUniqueId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Copies the identities AltBeacon ranged into the cycle buffer, mapped per format by
+     * {@link BeaconLayouts}; the pipeline takes it from there. With registeredOnly, frames
+     * whose UUID or namespace is not registered are dropped on their first identifier.
+     */
+    private void processCycle(Collection<Beacon> beacons) {
+        layouts.fill(cycle, beacons, pipeline.getRegistry(), pipeline.isRegisteredOnly());
+        pipeline.process(cycle);
     }
     
     // Add the required methods for MonitorNotifier interface
@@ -471,22 +1583,31 @@ public class BeaconDetectorPlugin extends CordovaPlugin implements RangeNotifier
     }
 
     private void sendPermissionRequestEvent(List<String> permissions) {
-        if (beaconDetectionCallback != null) {
-            try {
-                JSONObject eventData = new JSONObject();
-                eventData.put("type", "permission_request");
-                JSONArray permissionsArray = new JSONArray();
-                for (String permission : permissions) {
-                    permissionsArray.put(permission);
-                }
-                eventData.put("permissions", permissionsArray);
-                
+        try {
+            JSONObject eventData = new JSONObject();
+            eventData.put("type", "permission_request");
+            JSONArray permissionsArray = new JSONArray();
+            for (String permission : permissions) {
+                permissionsArray.put(permission);
+            }
+            eventData.put("permissions", permissionsArray);
+            journalEvent(eventData);
+            
+            CallbackContext callback = beaconDetectionCallback;
+            if (callback != null) {
                 PluginResult result = new PluginResult(PluginResult.Status.OK, eventData);
                 result.setKeepCallback(true);
-                beaconDetectionCallback.sendPluginResult(result);
-            } catch (Exception e) {
-                Log.e(TAG, "Error sending permission request event", e);
+                callback.sendPluginResult(result);
             }
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending permission request event", e);
+        }
+    }
+
+    private void journalEvent(JSONObject event) {
+        EventJournal journal = pipeline.getJournal();
+        if (journal != null) {
+            journal.appendEvent(event, System.currentTimeMillis());
         }
     }
 
@@ -504,11 +1625,13 @@ public class BeaconDetectorPlugin extends CordovaPlugin implements RangeNotifier
         try {
             result.put("type", "permission_result");
             result.put("granted", allGranted);
+            journalEvent(result);
             
-            if (beaconDetectionCallback != null) {
+            CallbackContext callback = beaconDetectionCallback;
+            if (callback != null) {
                 PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, result);
                 pluginResult.setKeepCallback(true);
-                beaconDetectionCallback.sendPluginResult(pluginResult);
+                callback.sendPluginResult(pluginResult);
             }
         } catch (Exception e) {
             Log.e(TAG, "Error sending permission result", e);
@@ -0,0 +1,226 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.UUID;
+
+/**
+ * Per-subscription selection of the beacons in a ranging cycle, applied to the primitive
+ * columns before any result is built.
+ *
+ * A beacon passes when its UUID and major are in the allow-lists (if given), it is
+ * registered (if registeredOnly), within maxDistance and at or above minRssi. Of those, topK
+ * keeps the K nearest by smoothed distance (raw distance for beacons the smoother does not
+ * track) through a bounded max-heap, O(n log K), and hands them on nearest first. Not
+ * thread-safe: each subscription's filter runs on the cycle thread only.
+ */
+final class BeaconFilter {
+    private final int topK;
+    private final double maxDistance;
+    private final int minRssi;
+    private final boolean registeredOnly;
+    // Allow-lists; null means any
+    private final long[] uuidMsb;
+    private final long[] uuidLsb;
+    private final int[] majors;
+
+    // Max-heap of cycle indexes by distance, for topK
+    private final int[] heap;
+    private final double[] heapDistance;
+
+    private BeaconFilter(int topK, double maxDistance, int minRssi, boolean registeredOnly, long[] uuidMsb,
+                         long[] uuidLsb, int[] majors) {
+        this.topK = topK;
+        this.maxDistance = maxDistance;
+        this.minRssi = minRssi;
+        this.registeredOnly = registeredOnly;
+        this.uuidMsb = uuidMsb;
+        this.uuidLsb = uuidLsb;
+        this.majors = majors;
+        heap = new int[Math.max(0, topK)];
+        heapDistance = new double[Math.max(0, topK)];
+    }
+
+    /**
+     * Builds the filter from onBeaconDetected options: topK, maxDistance, minRssi,
+     * registeredOnly, uuids (array of UUID strings) and majors (array of ints). Returns null
+     * when none is set, so callers can skip filtering altogether.
+     */
+    static BeaconFilter fromOptions(JSONObject options) throws JSONException {
+        if (options == null) {
+            return null;
+        }
+        long[] msb = null;
+        long[] lsb = null;
+        JSONArray uuids = options.optJSONArray("uuids");
+        if (uuids != null) {
+            msb = new long[uuids.length()];
+            lsb = new long[uuids.length()];
+            for (int i = 0; i < uuids.length(); i++) {
+                UUID uuid = UUID.fromString(uuids.getString(i));
+                msb[i] = uuid.getMostSignificantBits();
+                lsb[i] = uuid.getLeastSignificantBits();
+            }
+        }
+        int[] majors = null;
+        JSONArray majorList = options.optJSONArray("majors");
+        if (majorList != null) {
+            majors = new int[majorList.length()];
+            for (int i = 0; i < majors.length; i++) {
+                majors[i] = majorList.getInt(i);
+            }
+        }
+
+        BeaconFilter filter = new BeaconFilter(
+            options.optInt("topK", 0),
+            options.optDouble("maxDistance", Double.MAX_VALUE),
+            options.optInt("minRssi", Integer.MIN_VALUE),
+            options.optBoolean("registeredOnly", false),
+            msb, lsb, majors);
+        return filter.isPassThrough() ? null : filter;
+    }
+
+    private boolean isPassThrough() {
+        return topK <= 0 && maxDistance == Double.MAX_VALUE && minRssi == Integer.MIN_VALUE && !registeredOnly
+            && uuidMsb == null && majors == null;
+    }
+
+    /**
+     * Copies the selected beacons of in to out (cleared first); with topK, nearest first.
+     */
+    void apply(BeaconCycle in, BeaconCycle out, BeaconRegistry registry, BeaconSmoother smoother) {
+        out.clear();
+        int heapSize = 0;
+        for (int i = 0; i < in.size(); i++) {
+            long msb = in.msb(i);
+            long lsb = in.lsb(i);
+            int majorMinor = in.majorMinor(i);
+            if (in.rssi(i) < minRssi || !allowed(msb, lsb, BeaconIdMap.major(majorMinor))) {
+                continue;
+            }
+            if (registeredOnly && registry.find(msb, lsb, BeaconIdMap.major(majorMinor),
+                    BeaconIdMap.minor(majorMinor)) < 0) {
+                continue;
+            }
+            double distance = in.distance(i);
+            int track = smoother != null ? smoother.find(msb, lsb, majorMinor) : -1;
+            if (track >= 0) {
+                distance = smoother.distance(track);
+            }
+            if (distance > maxDistance || (distance < 0 && maxDistance != Double.MAX_VALUE)) {
+                continue;
+            }
+
+            if (topK <= 0) {
+                out.add(msb, lsb, majorMinor, in.distance(i), in.rssi(i));
+                continue;
+            }
+            // Unknown distances sort last
+            double key = distance < 0 ? Double.MAX_VALUE : distance;
+            if (heapSize < topK) {
+                heap[heapSize] = i;
+                heapDistance[heapSize] = key;
+                siftUp(heapSize++);
+            } else if (key < heapDistance[0]) {
+                heap[0] = i;
+                heapDistance[0] = key;
+                siftDown(0, heapSize);
+            }
+        }
+
+        if (topK > 0) {
+            // Popping the max to the back of the heap leaves it sorted nearest first
+            for (int end = heapSize - 1; end > 0; end--) {
+                swap(0, end);
+                siftDown(0, end);
+            }
+            for (int k = 0; k < heapSize; k++) {
+                int i = heap[k];
+                out.add(in.msb(i), in.lsb(i), in.majorMinor(i), in.distance(i), in.rssi(i));
+            }
+        }
+    }
+
+    private boolean allowed(long msb, long lsb, int major) {
+        if (uuidMsb != null) {
+            boolean found = false;
+            for (int k = 0; k < uuidMsb.length && !found; k++) {
+                found = uuidMsb[k] == msb && uuidLsb[k] == lsb;
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        if (majors != null) {
+            for (int allowedMajor : majors) {
+                if (allowedMajor == major) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private void siftUp(int k) {
+        while (k > 0) {
+            int parent = (k - 1) / 2;
+            if (heapDistance[parent] >= heapDistance[k]) {
+                return;
+            }
+            swap(parent, k);
+            k = parent;
+        }
+    }
+
+    private void siftDown(int k, int size) {
+        while (true) {
+            int largest = k;
+            int left = 2 * k + 1;
+            int right = left + 1;
+            if (left < size && heapDistance[left] > heapDistance[largest]) {
+                largest = left;
+            }
+            if (right < size && heapDistance[right] > heapDistance[largest]) {
+                largest = right;
+            }
+            if (largest == k) {
+                return;
+            }
+            swap(k, largest);
+            k = largest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int index = heap[a];
+        heap[a] = heap[b];
+        heap[b] = index;
+        double distance = heapDistance[a];
+        heapDistance[a] = heapDistance[b];
+        heapDistance[b] = distance;
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        if (topK > 0) {
+            json.put("topK", topK);
+        }
+        if (maxDistance != Double.MAX_VALUE) {
+            json.put("maxDistance", maxDistance);
+        }
+        if (minRssi != Integer.MIN_VALUE) {
+            json.put("minRssi", minRssi);
+        }
+        json.put("registeredOnly", registeredOnly);
+        if (uuidMsb != null) {
+            json.put("uuids", uuidMsb.length);
+        }
+        if (majors != null) {
+            json.put("majors", majors.length);
+        }
+        return json;
+    }
+}
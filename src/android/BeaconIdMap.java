@@ -0,0 +1,221 @@
+package com.example;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressed map from a beacon identity to a small int handle.
+ *
+ * An identity is 128 bits (two longs, e.g. the iBeacon UUID) plus an int (e.g.
+ * major/minor packed by {@link #pack(int, int)}). Handles are dense, stay stable
+ * until the entry is removed and are then recycled, so callers can keep their
+ * per-beacon state in plain primitive arrays indexed by handle.
+ */
+final class BeaconIdMap {
+    static final int NONE = -1;
+
+    private long[] hi;
+    private long[] lo;
+    private int[] ext;
+    private boolean[] live;
+    private int highWater;
+    private int size;
+
+    private int[] freeHandles;
+    private int freeCount;
+
+    // Slots hold a handle or NONE; capacity is a power of two kept at most half full
+    private int[] table;
+    private int mask;
+
+    BeaconIdMap() {
+        this(16);
+    }
+
+    BeaconIdMap(int expectedSize) {
+        int capacity = Math.max(expectedSize, 4);
+        hi = new long[capacity];
+        lo = new long[capacity];
+        ext = new int[capacity];
+        live = new boolean[capacity];
+        freeHandles = new int[capacity];
+        allocateTable(tableCapacityFor(capacity));
+    }
+
+    /**
+     * Returns the handle for the identity, or {@link #NONE} if it is not present.
+     */
+    int get(long hiBits, long loBits, int extBits) {
+        int slot = hash(hiBits, loBits, extBits) & mask;
+        while (true) {
+            int handle = table[slot];
+            if (handle == NONE) {
+                return NONE;
+            }
+            if (hi[handle] == hiBits && lo[handle] == loBits && ext[handle] == extBits) {
+                return handle;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Returns the handle for the identity, adding it if it is not present yet.
+     * Use {@link #size()} before and after to tell whether it was added.
+     */
+    int put(long hiBits, long loBits, int extBits) {
+        int existing = get(hiBits, loBits, extBits);
+        if (existing != NONE) {
+            return existing;
+        }
+
+        int handle;
+        if (freeCount > 0) {
+            handle = freeHandles[--freeCount];
+        } else {
+            if (highWater == hi.length) {
+                growHandles();
+            }
+            handle = highWater++;
+        }
+        if ((size + 1) * 2 > table.length) {
+            allocateTable(table.length * 2);
+            for (int h = 0; h < highWater; h++) {
+                if (live[h]) {
+                    insertSlot(h);
+                }
+            }
+        }
+
+        hi[handle] = hiBits;
+        lo[handle] = loBits;
+        ext[handle] = extBits;
+        live[handle] = true;
+        insertSlot(handle);
+        size++;
+        return handle;
+    }
+
+    /**
+     * Removes the entry behind the handle; the handle may be handed out again by a later put.
+     */
+    void remove(int handle) {
+        if (handle < 0 || handle >= highWater || !live[handle]) {
+            return;
+        }
+        int slot = hash(hi[handle], lo[handle], ext[handle]) & mask;
+        while (table[slot] != handle) {
+            slot = (slot + 1) & mask;
+        }
+
+        // Backward-shift deletion keeps probe chains intact without tombstones
+        table[slot] = NONE;
+        int next = (slot + 1) & mask;
+        while (table[next] != NONE) {
+            int moved = table[next];
+            int ideal = hash(hi[moved], lo[moved], ext[moved]) & mask;
+            if (((next - ideal) & mask) >= ((next - slot) & mask)) {
+                table[slot] = moved;
+                table[next] = NONE;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+
+        live[handle] = false;
+        freeHandles[freeCount++] = handle;
+        size--;
+    }
+
+    void clear() {
+        Arrays.fill(table, NONE);
+        Arrays.fill(live, 0, highWater, false);
+        highWater = 0;
+        freeCount = 0;
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Upper bound (exclusive) of handles handed out so far; iterate 0..highWater() and skip !isLive.
+     */
+    int highWater() {
+        return highWater;
+    }
+
+    /**
+     * Current handle capacity; callers size their parallel arrays to at least this.
+     */
+    int capacity() {
+        return hi.length;
+    }
+
+    boolean isLive(int handle) {
+        return handle >= 0 && handle < highWater && live[handle];
+    }
+
+    long hi(int handle) {
+        return hi[handle];
+    }
+
+    long lo(int handle) {
+        return lo[handle];
+    }
+
+    int ext(int handle) {
+        return ext[handle];
+    }
+
+    private void insertSlot(int handle) {
+        int slot = hash(hi[handle], lo[handle], ext[handle]) & mask;
+        while (table[slot] != NONE) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = handle;
+    }
+
+    private void growHandles() {
+        int capacity = hi.length * 2;
+        hi = Arrays.copyOf(hi, capacity);
+        lo = Arrays.copyOf(lo, capacity);
+        ext = Arrays.copyOf(ext, capacity);
+        live = Arrays.copyOf(live, capacity);
+        freeHandles = Arrays.copyOf(freeHandles, capacity);
+    }
+
+    private void allocateTable(int capacity) {
+        table = new int[capacity];
+        Arrays.fill(table, NONE);
+        mask = capacity - 1;
+    }
+
+    private static int tableCapacityFor(int entries) {
+        int capacity = 8;
+        while (capacity < entries * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    static int pack(int major, int minor) {
+        return (major << 16) | (minor & 0xFFFF);
+    }
+
+    static int major(int packed) {
+        return packed >>> 16;
+    }
+
+    static int minor(int packed) {
+        return packed & 0xFFFF;
+    }
+
+    private static int hash(long hiBits, long loBits, int extBits) {
+        long h = hiBits * 0x9E3779B97F4A7C15L ^ loBits * 0xC2B2AE3D27D4EB4FL ^ extBits;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
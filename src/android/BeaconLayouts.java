@@ -0,0 +1,311 @@
+package com.example;
+
+import org.altbeacon.beacon.Beacon;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The frame formats AltBeacon is asked to parse, and how each one's identity maps into the
+ * registry's 128-bit + major/minor key.
+ *
+ * iBeacon and AltBeacon frames carry a 16-byte first identifier and two 16-bit ones, used
+ * as is. An Eddystone-UID frame's 10-byte namespace and 6-byte instance are joined into the
+ * 128 bits (so a registry entry's uuid is the namespace hex followed by the instance hex)
+ * with major and minor 0. Eddystone-TLM frames carry no identity; AltBeacon attaches them
+ * to the UID frame of the same device, and they are only counted here.
+ *
+ * While scanning is restricted to registered beacons, a frame whose first identifier
+ * (UUID or namespace) is not in the registry is rejected before its other identifiers are
+ * even read. Accepted and rejected frames are counted per format. Only the ranging thread
+ * calls {@link #admit}; stats read elsewhere may lag by a cycle.
+ */
+final class BeaconLayouts {
+    static final int IBEACON = 0;
+    static final int ALTBEACON = 1;
+    static final int EDDYSTONE_UID = 2;
+    static final int EDDYSTONE_TLM = 3;
+
+    // Parser identifiers, also the names used in setBeaconLayouts
+    private static final String[] NAMES = {"ibeacon", "altbeacon", "eddystone_uid", "eddystone_tlm"};
+    private static final String[] LAYOUTS = {
+        "m:2-3=0215,i:4-19,i:20-21,i:22-23,p:24-24",
+        "m:2-3=beac,i:4-19,i:20-21,i:22-23,p:24-24,d:25-25",
+        "s:0-1=feaa,m:2-2=00,p:3-3:-41,i:4-13,i:14-19",
+        "x,s:0-1=feaa,m:2-2=20,d:3-3,d:4-5,d:6-7,d:8-11,d:12-15",
+    };
+    private static final int NAMESPACE_BYTES = 10;
+    private static final int INSTANCE_BYTES = 6;
+    // The namespace's last two bytes in the low half of the joined identity
+    private static final long NAMESPACE_MASK = 0xFFFF000000000000L;
+    // Index keys: full identities and namespace prefixes live apart
+    private static final int UUID_KEY = 0;
+    private static final int NAMESPACE_KEY = 1;
+
+    private final boolean[] enabled = new boolean[NAMES.length];
+    private final long[] accepted = new long[NAMES.length];
+    private final long[] rejected = new long[NAMES.length];
+    private long unknown;
+
+    // First identifiers of the registry, rebuilt when its identities change
+    private BeaconIdMap registered = new BeaconIdMap();
+    private BeaconRegistry indexed;
+    private int indexedRevision;
+
+    private BeaconLayouts() {
+    }
+
+    /**
+     * iBeacon plus AltBeacon, the formats the plugin has always ranged. Both get parsers of
+     * their own: applying layouts replaces BeaconManager's whole parser list, including the
+     * AltBeacon parser it starts with.
+     */
+    static BeaconLayouts defaults() {
+        BeaconLayouts layouts = new BeaconLayouts();
+        layouts.enabled[IBEACON] = true;
+        layouts.enabled[ALTBEACON] = true;
+        return layouts;
+    }
+
+    /**
+     * Builds the layouts from setBeaconLayouts options: formats, an array of "ibeacon",
+     * "altbeacon", "eddystone_uid" and "eddystone_tlm". TLM needs UID, which identifies it.
+     */
+    static BeaconLayouts fromOptions(JSONObject options) throws JSONException {
+        JSONArray formats = options != null ? options.optJSONArray("formats") : null;
+        if (formats == null) {
+            return defaults();
+        }
+        BeaconLayouts layouts = new BeaconLayouts();
+        for (int i = 0; i < formats.length(); i++) {
+            int format = indexOf(formats.getString(i));
+            if (format < 0) {
+                throw new IllegalArgumentException("Unknown beacon format: " + formats.getString(i));
+            }
+            layouts.enabled[format] = true;
+        }
+        if (layouts.enabled[EDDYSTONE_TLM] && !layouts.enabled[EDDYSTONE_UID]) {
+            throw new IllegalArgumentException("eddystone_tlm needs eddystone_uid");
+        }
+        if (!layouts.enabled[IBEACON] && !layouts.enabled[ALTBEACON] && !layouts.enabled[EDDYSTONE_UID]) {
+            throw new IllegalArgumentException("At least one identifying beacon format is required");
+        }
+        return layouts;
+    }
+
+    private static int indexOf(String name) {
+        for (int format = 0; format < NAMES.length; format++) {
+            if (NAMES[format].equals(name)) {
+                return format;
+            }
+        }
+        return -1;
+    }
+
+    static int formatCount() {
+        return NAMES.length;
+    }
+
+    boolean isEnabled(int format) {
+        return enabled[format];
+    }
+
+    static String name(int format) {
+        return NAMES[format];
+    }
+
+    static String layout(int format) {
+        return LAYOUTS[format];
+    }
+
+    /**
+     * Whether every enabled format's first identifier is a UUID, so ranging regions planned
+     * from the registry match all of them.
+     */
+    boolean isUuidOnly() {
+        return !enabled[EDDYSTONE_UID];
+    }
+
+    /**
+     * The enabled format a parser identifier belongs to, or -1; a frame from a parser this
+     * plugin did not register is counted as unknown.
+     */
+    int formatOf(String parserIdentifier) {
+        int format = parserIdentifier != null ? indexOf(parserIdentifier) : -1;
+        if (format < 0 || !enabled[format]) {
+            unknown++;
+            return -1;
+        }
+        return format;
+    }
+
+    /**
+     * Counts a TLM frame, attached to its UID frame or reported on its own.
+     */
+    void countTelemetry() {
+        accepted[EDDYSTONE_TLM]++;
+    }
+
+    /**
+     * Decides on a frame from its first identifier alone: its length must fit the format
+     * and, with registeredOnly, the UUID or namespace must be in the registry.
+     */
+    boolean admit(int format, byte[] id1, BeaconRegistry registry, boolean registeredOnly) {
+        int expected = format == EDDYSTONE_UID ? NAMESPACE_BYTES : 16;
+        if (id1.length != expected) {
+            rejected[format]++;
+            return false;
+        }
+        if (registeredOnly) {
+            index(registry);
+            boolean known = format == EDDYSTONE_UID
+                ? registered.get(high(id1), low(id1) & NAMESPACE_MASK, NAMESPACE_KEY) != BeaconIdMap.NONE
+                : registered.get(high(id1), low(id1), UUID_KEY) != BeaconIdMap.NONE;
+            if (!known) {
+                rejected[format]++;
+                return false;
+            }
+        }
+        accepted[format]++;
+        return true;
+    }
+
+    /**
+     * Maps one ranging callback's frames into the cycle buffer by identity, rejecting frames
+     * of unknown formats and, with registeredOnly, foreign ones on their first identifier.
+     */
+    void fill(BeaconCycle cycle, Collection<Beacon> beacons, BeaconRegistry registry, boolean registeredOnly) {
+        cycle.clear();
+        for (Beacon beacon : beacons) {
+            int format = formatOf(beacon.getParserIdentifier());
+            if (format < 0) {
+                continue;
+            }
+            if (format == EDDYSTONE_TLM) {
+                // Telemetry reported on its own rather than attached to its UID frame
+                countTelemetry();
+                continue;
+            }
+            byte[] id1 = beacon.getId1().toByteArray();
+            if (!admit(format, id1, registry, registeredOnly)) {
+                continue;
+            }
+            if (format == EDDYSTONE_UID) {
+                List<Long> telemetry = beacon.getExtraDataFields();
+                if (telemetry != null && !telemetry.isEmpty()) {
+                    countTelemetry();
+                }
+                cycle.add(high(id1), eddystoneLow(id1, beacon.getId2().toByteArray()), 0,
+                    beacon.getDistance(), beacon.getRssi());
+            } else {
+                cycle.add(high(id1), low(id1),
+                    BeaconIdMap.pack(beacon.getId2().toInt(), beacon.getId3().toInt()),
+                    beacon.getDistance(), beacon.getRssi());
+            }
+        }
+    }
+
+    private void index(BeaconRegistry registry) {
+        int revision = registry.revision();
+        if (registry == indexed && revision == indexedRevision) {
+            return;
+        }
+        BeaconIdMap keys = new BeaconIdMap(registry.size() * 2);
+        synchronized (registry) {
+            for (int index = 0; index < registry.highWater(); index++) {
+                if (registry.contains(index)) {
+                    long msb = registry.uuidMsb(index);
+                    long lsb = registry.uuidLsb(index);
+                    keys.put(msb, lsb, UUID_KEY);
+                    keys.put(msb, lsb & NAMESPACE_MASK, NAMESPACE_KEY);
+                }
+            }
+        }
+        registered = keys;
+        indexed = registry;
+        indexedRevision = revision;
+    }
+
+    /**
+     * First eight bytes of an identifier, big-endian.
+     */
+    static long high(byte[] id) {
+        return pack(id, 0, 8);
+    }
+
+    /**
+     * Bytes 8 on of a 16-byte identifier, or of a 10-byte namespace left-aligned in the
+     * low half.
+     */
+    static long low(byte[] id) {
+        return pack(id, 8, id.length) << (8 * (16 - id.length));
+    }
+
+    /**
+     * Low half of the joined Eddystone-UID identity: the namespace's last two bytes, then
+     * the instance.
+     */
+    static long eddystoneLow(byte[] namespace, byte[] instance) {
+        if (instance.length != INSTANCE_BYTES) {
+            throw new IllegalArgumentException("Eddystone instance must be 6 bytes");
+        }
+        return low(namespace) | pack(instance, 0, INSTANCE_BYTES);
+    }
+
+    private static long pack(byte[] bytes, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Registry uuid for an initialize/upsertBeacons entry: its uuid, or for Eddystone-UID
+     * entries the namespace (20 hex digits) and instance (12) joined in UUID form.
+     */
+    static String registryUuid(JSONObject beaconObj) throws JSONException {
+        if (!beaconObj.has("namespace")) {
+            return beaconObj.getString("uuid");
+        }
+        String hex = beaconObj.getString("namespace").replace("0x", "")
+            + beaconObj.getString("instance").replace("0x", "");
+        if (hex.length() != 32) {
+            throw new IllegalArgumentException("Eddystone namespace and instance must be 10 and 6 bytes");
+        }
+        return hex.substring(0, 8) + "-" + hex.substring(8, 12) + "-" + hex.substring(12, 16) + "-"
+            + hex.substring(16, 20) + "-" + hex.substring(20);
+    }
+
+    /**
+     * Major of a registry entry; Eddystone-UID entries have none and use 0.
+     */
+    static int registryMajor(JSONObject beaconObj) throws JSONException {
+        return beaconObj.has("namespace") ? 0 : beaconObj.getInt("major");
+    }
+
+    static int registryMinor(JSONObject beaconObj) throws JSONException {
+        return beaconObj.has("namespace") ? 0 : beaconObj.getInt("minor");
+    }
+
+    JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        JSONArray formats = new JSONArray();
+        for (int format = 0; format < NAMES.length; format++) {
+            if (!enabled[format]) {
+                continue;
+            }
+            formats.put(NAMES[format]);
+            JSONObject counts = new JSONObject();
+            counts.put("accepted", accepted[format]);
+            counts.put("rejected", rejected[format]);
+            stats.put(NAMES[format], counts);
+        }
+        stats.put("formats", formats);
+        stats.put("unknown", unknown);
+        return stats;
+    }
+}
@@ -0,0 +1,686 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Everything the plugin does with a ranging cycle between AltBeacon and the bridge:
+ * dropping foreign beacons, the sighting table and history, the adaptive scan scheduler, smoothing,
+ * delta tracking, batching, JSON/binary encoding, zones, position estimates, the journal, the
+ * session recorder, and the background buffer that stands in for delivery while the app is
+ * paused.
+ *
+ * It depends only on org.json and the plugin's own helper classes. Cycles come in as a
+ * {@link BeaconCycle} and results leave through a {@link Sink}, so the whole pipeline can
+ * be driven on a plain JVM with stand-ins for AltBeacon and Cordova, or by a
+ * {@link ReplaySource}. Several subscriptions may be active, each with its own filter,
+ * delivery mode and encoding. Configuration may be swapped from any thread through volatile
+ * fields holding freshly built helpers; cycles and flushes are expected on one thread (the
+ * main looper in the plugin).
+ */
+final class BeaconPipeline {
+    /**
+     * Where results go; in the plugin, a kept onBeaconDetected callback.
+     */
+    interface Sink {
+        void sendJson(JSONArray beacons);
+
+        void sendBinary(byte[] payload);
+
+        void sendError(String message);
+    }
+
+    /**
+     * One onBeaconDetected subscriber: where its results go and how they are selected and shaped.
+     */
+    static final class Subscription {
+        final String id;
+        final Sink sink;
+        // Non-null in "delta" mode; null means full snapshots
+        final BeaconTracker deltaTracker;
+        // Deliver BinaryBeaconEncoder payloads (ArrayBuffer in JS) instead of JSON arrays
+        final boolean binaryEncoding;
+        // Null delivers every beacon of the cycle
+        final BeaconFilter filter;
+        private final BeaconCycle selected = new BeaconCycle(16);
+
+        Subscription(String id, Sink sink, BeaconTracker deltaTracker, boolean binaryEncoding, BeaconFilter filter) {
+            this.id = id;
+            this.sink = sink;
+            this.deltaTracker = deltaTracker;
+            this.binaryEncoding = binaryEncoding;
+            this.filter = filter;
+        }
+
+        private BeaconCycle select(BeaconCycle cycle, BeaconRegistry registry, BeaconSmoother smoother) {
+            if (filter == null) {
+                return cycle;
+            }
+            filter.apply(cycle, selected, registry, smoother);
+            return selected;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("deliveryMode", deltaTracker != null ? "delta" : "snapshot");
+            json.put("encoding", binaryEncoding ? "binary" : "json");
+            if (filter != null) {
+                json.put("filter", filter.toJson());
+            }
+            return json;
+        }
+    }
+
+    /**
+     * Id of the subscription onBeaconDetected replaces when no id is given; batching applies
+     * to it only.
+     */
+    static final String DEFAULT_SUBSCRIPTION = "default";
+
+    /**
+     * Applies a between-scan period chosen by the adaptive scheduler.
+     */
+    interface ScanPeriodControl {
+        void setBetweenScanPeriod(long periodMs);
+    }
+
+    private final PluginMetrics metrics = new PluginMetrics();
+    private final ScanPeriodControl scanPeriods;
+
+    private volatile BeaconRegistry registry = new BeaconRegistry();
+    // Copied on write, so a cycle always sees a consistent set
+    private volatile Subscription[] subscriptions = new Subscription[0];
+    // Non-null when a filter is selected; smoothed values are sent next to the raw ones
+    private volatile BeaconSmoother smoother;
+    // Non-null when coalesced delivery is on; null means one result per cycle
+    private volatile ResultBatcher batcher;
+    private volatile ScanScheduler scanScheduler = ScanScheduler.defaults();
+    private volatile SightingTable sightings;
+    // Non-null after setHistory; visits for dwell-time queries
+    private volatile SightingHistory history;
+    // Drop beacons that are not in the registry before anything else sees them
+    private volatile boolean registeredOnly;
+    private volatile long foreignBeaconsFiltered;
+    // Non-null after setZones; zone transitions go to their own sink
+    private volatile ZoneEngine zoneEngine;
+    private volatile Sink zoneSink;
+    // Non-null after setPositioning; fixes go to their own sink
+    private volatile PositionEstimator positionEstimator;
+    private volatile Sink positionSink;
+    // Non-null after setJournal; cycles and zone transitions are appended to it
+    private volatile EventJournal journal;
+    // Non-null while recording; raw cycles are appended to it before any filtering
+    private volatile EventJournal recorder;
+    // Non-null while the app is paused; results are coalesced there instead of delivered
+    private volatile BackgroundBuffer backgroundBuffer;
+
+    BeaconPipeline(ScanPeriodControl scanPeriods, long sightingTtlMs) {
+        this.scanPeriods = scanPeriods;
+        this.sightings = new SightingTable(sightingTtlMs);
+    }
+
+    BeaconRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Swaps in a complete registry, so ranging never sees a partial one.
+     */
+    void setRegistry(BeaconRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Adds the subscription, replacing one with the same id.
+     */
+    synchronized void subscribe(Subscription subscription) {
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].id.equals(subscription.id)) {
+                Subscription[] replaced = current.clone();
+                replaced[i] = subscription;
+                subscriptions = replaced;
+                return;
+            }
+        }
+        Subscription[] added = Arrays.copyOf(current, current.length + 1);
+        added[current.length] = subscription;
+        subscriptions = added;
+    }
+
+    /**
+     * Removes the subscription with the given id; returns false if there was none.
+     */
+    synchronized boolean unsubscribe(String id) {
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].id.equals(id)) {
+                Subscription[] removed = new Subscription[current.length - 1];
+                System.arraycopy(current, 0, removed, 0, i);
+                System.arraycopy(current, i + 1, removed, i, current.length - i - 1);
+                subscriptions = removed;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean hasSubscriber() {
+        return subscriptions.length > 0;
+    }
+
+    JSONArray getSubscriptionStats() throws JSONException {
+        JSONArray stats = new JSONArray();
+        for (Subscription subscription : subscriptions) {
+            stats.put(subscription.toJson());
+        }
+        return stats;
+    }
+
+    private Subscription defaultSubscription() {
+        for (Subscription subscription : subscriptions) {
+            if (DEFAULT_SUBSCRIPTION.equals(subscription.id)) {
+                return subscription;
+            }
+        }
+        return null;
+    }
+
+    BeaconSmoother getSmoother() {
+        return smoother;
+    }
+
+    void setSmoother(BeaconSmoother smoother) {
+        this.smoother = smoother;
+    }
+
+    ResultBatcher getBatcher() {
+        return batcher;
+    }
+
+    void setBatcher(ResultBatcher batcher) {
+        this.batcher = batcher;
+    }
+
+    ScanScheduler getScanScheduler() {
+        return scanScheduler;
+    }
+
+    void setScanScheduler(ScanScheduler scanScheduler) {
+        this.scanScheduler = scanScheduler;
+    }
+
+    SightingTable getSightings() {
+        return sightings;
+    }
+
+    void setSightings(SightingTable sightings) {
+        this.sightings = sightings;
+    }
+
+    SightingHistory getHistory() {
+        return history;
+    }
+
+    void setHistory(SightingHistory history) {
+        this.history = history;
+    }
+
+    boolean isRegisteredOnly() {
+        return registeredOnly;
+    }
+
+    void setRegisteredOnly(boolean registeredOnly) {
+        this.registeredOnly = registeredOnly;
+    }
+
+    long getForeignBeaconsFiltered() {
+        return foreignBeaconsFiltered;
+    }
+
+    ZoneEngine getZoneEngine() {
+        return zoneEngine;
+    }
+
+    /**
+     * Routes zone transitions of the given engine to the sink; a null engine turns zones off.
+     */
+    void setZones(ZoneEngine zoneEngine, Sink zoneSink) {
+        this.zoneSink = zoneSink;
+        this.zoneEngine = zoneEngine;
+    }
+
+    PositionEstimator getPositionEstimator() {
+        return positionEstimator;
+    }
+
+    /**
+     * Routes fixes of the given estimator to the sink; a null estimator turns positioning off.
+     */
+    void setPositioning(PositionEstimator positionEstimator, Sink positionSink) {
+        this.positionSink = positionSink;
+        this.positionEstimator = positionEstimator;
+    }
+
+    EventJournal getJournal() {
+        return journal;
+    }
+
+    void setJournal(EventJournal journal) {
+        this.journal = journal;
+    }
+
+    EventJournal getRecorder() {
+        return recorder;
+    }
+
+    void setRecorder(EventJournal recorder) {
+        this.recorder = recorder;
+    }
+
+    BackgroundBuffer getBackgroundBuffer() {
+        return backgroundBuffer;
+    }
+
+    /**
+     * Buffers cycles, zone transitions and fixes in the given buffer instead of sending them;
+     * null goes back to live delivery.
+     */
+    void setBackgroundBuffer(BackgroundBuffer backgroundBuffer) {
+        this.backgroundBuffer = backgroundBuffer;
+    }
+
+    PluginMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Runs one ranging cycle through the pipeline. The cycle is compacted in place when
+     * foreign beacons are dropped.
+     */
+    void process(BeaconCycle cycle) {
+        process(cycle, System.currentTimeMillis());
+    }
+
+    /**
+     * Runs one cycle stamped with the given time; replay passes its own clock so recorded
+     * cycle spacing holds at any speed.
+     */
+    void process(BeaconCycle cycle, long now) {
+        long cycleStart = System.nanoTime();
+        EventJournal currentRecorder = recorder;
+        if (currentRecorder != null) {
+            currentRecorder.appendCycle(cycle, now);
+        }
+        if (registeredOnly) {
+            dropForeign(cycle);
+        }
+        EventJournal currentJournal = journal;
+        if (currentJournal != null) {
+            currentJournal.appendCycle(cycle, now);
+        }
+
+        recordSightings(cycle, now);
+
+        ScanScheduler scheduler = scanScheduler;
+        if (scheduler.isAdaptive()) {
+            adaptScanPeriods(scheduler, cycle);
+        }
+        feedSmoother(cycle, now);
+        metrics.recordMatch(System.nanoTime() - cycleStart);
+
+        Subscription[] current = subscriptions;
+        BackgroundBuffer buffer = backgroundBuffer;
+        if (buffer != null) {
+            bufferCycle(buffer, current, cycle, now);
+        } else {
+            if (current.length == 0 && !cycle.isEmpty()) {
+                metrics.droppedResult();
+            }
+            for (Subscription subscription : current) {
+                deliver(subscription, cycle, now);
+            }
+        }
+        updateZones(cycle, now);
+        updatePosition(cycle, now);
+        metrics.recordCycle(cycle.size(), System.nanoTime() - cycleStart);
+    }
+
+    /**
+     * Folds the cycle into the background buffer; transitions it flags as immediate go to
+     * every subscriber at once, as JSON delta records whatever their filter or encoding.
+     */
+    private void bufferCycle(BackgroundBuffer buffer, Subscription[] current, BeaconCycle cycle, long now) {
+        try {
+            JSONArray urgent = new JSONArray();
+            buffer.record(cycle, now, current.length > 0 ? jsonCollector(urgent) : null);
+            if (urgent.length() > 0) {
+                ResultBatcher currentBatcher = batcher;
+                for (Subscription subscription : current) {
+                    subscription.sink.sendJson(urgent);
+                    if (currentBatcher != null && DEFAULT_SUBSCRIPTION.equals(subscription.id)) {
+                        currentBatcher.sentUnbatched(now);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            metrics.callbackError();
+            for (Subscription subscription : current) {
+                subscription.sink.sendError("Error buffering beacon detection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Feeds every sample of the cycle to the smoother once, before any subscriber's filter
+     * or records read smoothed values.
+     */
+    private void feedSmoother(BeaconCycle cycle, long now) {
+        BeaconSmoother currentSmoother = smoother;
+        if (currentSmoother == null) {
+            return;
+        }
+        currentSmoother.evictIdle(now);
+        for (int i = 0; i < cycle.size(); i++) {
+            currentSmoother.update(cycle.msb(i), cycle.lsb(i), cycle.majorMinor(i), cycle.distance(i), cycle.rssi(i),
+                now);
+        }
+    }
+
+    private void deliver(Subscription subscription, BeaconCycle fullCycle, long now) {
+        Sink target = subscription.sink;
+        try {
+            long serializeStart = System.nanoTime();
+            BeaconTracker tracker = subscription.deltaTracker;
+            BeaconSmoother currentSmoother = smoother;
+            BeaconCycle cycle = subscription.select(fullCycle, registry, currentSmoother);
+
+            ResultBatcher currentBatcher = DEFAULT_SUBSCRIPTION.equals(subscription.id) ? batcher : null;
+            if (currentBatcher != null) {
+                forEachRecord(cycle, tracker, null, currentBatcher::offer, now);
+                currentBatcher.endCycle();
+                metrics.recordSerialize(System.nanoTime() - serializeStart);
+                if (currentBatcher.isFull()) {
+                    flush(currentBatcher);
+                }
+                return;
+            }
+
+            if (subscription.binaryEncoding) {
+                BinaryBeaconEncoder encoder = new BinaryBeaconEncoder(registry, currentSmoother, cycle.size());
+                forEachRecord(cycle, tracker, null, encoder, now);
+
+                // In delta mode a cycle without transitions is not worth a bridge crossing
+                if (tracker != null && encoder.size() == 0) {
+                    return;
+                }
+                byte[] payload = encoder.toByteArray();
+                metrics.recordSerialize(System.nanoTime() - serializeStart);
+                long sendStart = System.nanoTime();
+                target.sendBinary(payload);
+                metrics.recordSend(System.nanoTime() - sendStart);
+            } else {
+                JSONArray beaconArray = new JSONArray();
+                forEachRecord(cycle, tracker, null, jsonCollector(beaconArray), now);
+
+                // In delta mode a cycle without transitions is not worth a bridge crossing
+                if (tracker != null && beaconArray.length() == 0) {
+                    return;
+                }
+                metrics.recordSerialize(System.nanoTime() - serializeStart);
+                long sendStart = System.nanoTime();
+                target.sendJson(beaconArray);
+                metrics.recordSend(System.nanoTime() - sendStart);
+            }
+        } catch (Exception e) {
+            metrics.callbackError();
+            target.sendError("Error processing beacon detection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Feeds the cycle to the zone engine after delivery, so smoothed distances include it.
+     */
+    private void updateZones(BeaconCycle cycle, long now) {
+        ZoneEngine engine = zoneEngine;
+        Sink target = zoneSink;
+        EventJournal currentJournal = journal;
+        BackgroundBuffer buffer = backgroundBuffer;
+        if (engine == null || (target == null && currentJournal == null && buffer == null)) {
+            return;
+        }
+        try {
+            BeaconRegistry current = registry;
+            JSONArray events = new JSONArray();
+            engine.update(cycle, current, smoother, now, (event, zone, registryIndex, distance) -> {
+                if (currentJournal != null) {
+                    currentJournal.appendZone(event, engine.zoneId(zone), distance, now);
+                }
+                // Buffered while paused unless zone transitions are marked immediate
+                if (buffer != null && !buffer.recordZone(event, engine.zoneId(zone), distance, now)) {
+                    return;
+                }
+                if (target == null) {
+                    return;
+                }
+                JSONObject zoneEvent = new JSONObject();
+                zoneEvent.put("event", event);
+                zoneEvent.put("zone", engine.zoneId(zone));
+                String title = engine.zoneTitle(zone);
+                String url = engine.zoneUrl(zone);
+                if (registryIndex >= 0 && current.contains(registryIndex)) {
+                    zoneEvent.put("uuid", current.uuid(registryIndex));
+                    zoneEvent.put("major", current.major(registryIndex));
+                    zoneEvent.put("minor", current.minor(registryIndex));
+                    title = title != null ? title : current.title(registryIndex);
+                    url = url != null ? url : current.url(registryIndex);
+                }
+                zoneEvent.put("title", title);
+                zoneEvent.put("url", url);
+                zoneEvent.put("distance", distance);
+                zoneEvent.put("timestamp", now);
+                events.put(zoneEvent);
+            });
+            if (events.length() > 0) {
+                target.sendJson(events);
+            }
+        } catch (Exception e) {
+            metrics.callbackError();
+            if (target != null) {
+                target.sendError("Error processing zones: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Feeds the cycle to the position estimator and sends a fix when it produced one; while
+     * paused only the latest fix is kept, for the summary.
+     */
+    private void updatePosition(BeaconCycle cycle, long now) {
+        PositionEstimator estimator = positionEstimator;
+        Sink target = positionSink;
+        BackgroundBuffer buffer = backgroundBuffer;
+        if (estimator == null || (target == null && buffer == null)) {
+            return;
+        }
+        try {
+            if (!estimator.update(cycle, registry, smoother, now)) {
+                return;
+            }
+            if (buffer != null) {
+                buffer.recordPosition(estimator.toJson(now));
+            } else {
+                JSONArray fixes = new JSONArray();
+                fixes.put(estimator.toJson(now));
+                target.sendJson(fixes);
+            }
+        } catch (Exception e) {
+            metrics.callbackError();
+            if (target != null) {
+                target.sendError("Error estimating position: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Drains what the batcher has ready (honouring its in-flight limit) to the default
+     * subscription.
+     */
+    void flush(ResultBatcher batcher) throws JSONException {
+        Subscription subscription = defaultSubscription();
+        if (subscription == null) {
+            return;
+        }
+        Sink target = subscription.sink;
+        try {
+            long serializeStart = System.nanoTime();
+            long now = System.currentTimeMillis();
+            if (subscription.binaryEncoding) {
+                BinaryBeaconEncoder encoder = new BinaryBeaconEncoder(registry, smoother, 64);
+                if (batcher.drain(encoder, now) > 0) {
+                    byte[] payload = encoder.toByteArray();
+                    metrics.recordSerialize(System.nanoTime() - serializeStart);
+                    long sendStart = System.nanoTime();
+                    target.sendBinary(payload);
+                    metrics.recordSend(System.nanoTime() - sendStart);
+                }
+            } else {
+                JSONArray batch = new JSONArray();
+                if (batcher.drain(jsonCollector(batch), now) > 0) {
+                    metrics.recordSerialize(System.nanoTime() - serializeStart);
+                    long sendStart = System.nanoTime();
+                    target.sendJson(batch);
+                    metrics.recordSend(System.nanoTime() - sendStart);
+                }
+            }
+        } catch (JSONException | RuntimeException e) {
+            metrics.callbackError();
+            throw e;
+        }
+    }
+
+    /**
+     * Removes beacons that are not in the registry, counting them as foreign.
+     */
+    void dropForeign(BeaconCycle cycle) {
+        BeaconRegistry current = registry;
+        int kept = 0;
+        for (int i = 0; i < cycle.size(); i++) {
+            int majorMinor = cycle.majorMinor(i);
+            if (current.find(cycle.msb(i), cycle.lsb(i), BeaconIdMap.major(majorMinor),
+                    BeaconIdMap.minor(majorMinor)) >= 0) {
+                cycle.move(i, kept++);
+            } else {
+                foreignBeaconsFiltered++;
+            }
+        }
+        cycle.truncate(kept);
+    }
+
+    private void recordSightings(BeaconCycle cycle, long now) {
+        SightingTable table = sightings;
+        for (int i = 0; i < cycle.size(); i++) {
+            table.record(cycle.msb(i), cycle.lsb(i), cycle.majorMinor(i), cycle.distance(i), cycle.rssi(i), now);
+        }
+        table.evict(now);
+
+        SightingHistory currentHistory = history;
+        if (currentHistory != null) {
+            for (int i = 0; i < cycle.size(); i++) {
+                currentHistory.record(cycle.msb(i), cycle.lsb(i), cycle.majorMinor(i), now);
+            }
+            currentHistory.sweep(now);
+        }
+    }
+
+    /**
+     * Lets the adaptive scheduler look at one ranging cycle and retunes the scanner if it asks to.
+     */
+    private void adaptScanPeriods(ScanScheduler scheduler, BeaconCycle cycle) {
+        boolean active = false;
+        for (int i = 0; i < cycle.size(); i++) {
+            active |= scheduler.observe(cycle.msb(i), cycle.lsb(i), cycle.majorMinor(i), cycle.distance(i));
+        }
+
+        long before = scheduler.getBetweenScanPeriod();
+        long next = scheduler.endCycle(cycle.size(), active);
+        if (next != before) {
+            scanPeriods.setBetweenScanPeriod(next);
+        }
+    }
+
+    /**
+     * Snapshot of one cycle as JSON; samples are fed to the smoother first when one is given.
+     */
+    JSONArray toJsonArray(BeaconCycle cycle, BeaconSmoother feed) throws JSONException {
+        JSONArray beaconArray = new JSONArray();
+        forEachRecord(cycle, null, feed, jsonCollector(beaconArray), System.currentTimeMillis());
+        return beaconArray;
+    }
+
+    BeaconTracker.Listener jsonCollector(JSONArray beaconArray) {
+        return (event, msb, lsb, majorMinor, distance, rssi) ->
+            beaconArray.put(toRecordJson(msb, lsb, majorMinor, event, distance, rssi));
+    }
+
+    /**
+     * Feeds one ranging cycle to the listener by identity: straight through as snapshot
+     * records (null event) or, when a tracker is given, as its delta transitions. Samples
+     * go to the smoother first when one is given.
+     */
+    static void forEachRecord(BeaconCycle cycle, BeaconTracker tracker, BeaconSmoother feed,
+                              BeaconTracker.Listener listener, long now) throws JSONException {
+        for (int i = 0; i < cycle.size(); i++) {
+            long msb = cycle.msb(i);
+            long lsb = cycle.lsb(i);
+            int majorMinor = cycle.majorMinor(i);
+            if (feed != null) {
+                feed.update(msb, lsb, majorMinor, cycle.distance(i), cycle.rssi(i), now);
+            }
+            if (tracker != null) {
+                tracker.update(msb, lsb, majorMinor, cycle.distance(i), cycle.rssi(i), now, listener);
+            } else {
+                listener.onTransition(null, msb, lsb, majorMinor, cycle.distance(i), cycle.rssi(i));
+            }
+        }
+
+        if (tracker != null) {
+            tracker.expire(now, listener);
+        }
+    }
+
+    private JSONObject toRecordJson(long msb, long lsb, int majorMinor, String event, double distance, int rssi)
+            throws JSONException {
+        BeaconRegistry current = registry;
+        int major = BeaconIdMap.major(majorMinor);
+        int minor = BeaconIdMap.minor(majorMinor);
+        int index = current.find(msb, lsb, major, minor);
+
+        JSONObject beaconObj = new JSONObject();
+        beaconObj.put("uuid", new UUID(msb, lsb).toString());
+        beaconObj.put("major", major);
+        beaconObj.put("minor", minor);
+        beaconObj.put("distance", distance);
+        beaconObj.put("rssi", rssi);
+        if (index >= 0) {
+            beaconObj.put("title", current.title(index));
+            beaconObj.put("url", current.url(index));
+        }
+
+        BeaconSmoother currentSmoother = smoother;
+        int track = currentSmoother != null ? currentSmoother.find(msb, lsb, majorMinor) : -1;
+        if (track >= 0) {
+            beaconObj.put("smoothedDistance", currentSmoother.distance(track));
+            beaconObj.put("smoothedRssi", currentSmoother.rssi(track));
+        }
+        if (event != null) {
+            beaconObj.put("event", event);
+        }
+        return beaconObj;
+    }
+}
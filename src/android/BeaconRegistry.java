@@ -0,0 +1,321 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Registered beacons indexed by identity.
+ *
+ * Each entry is keyed by its 128-bit UUID (as two longs) plus major/minor packed
+ * into an int through a {@link BeaconIdMap}, so a ranged beacon can be matched in
+ * O(1) without string compares or boxing. The entry index is the map handle.
+ *
+ * The plugin never changes a registry ranging already reads: initialize() builds a new one
+ * and upserts or removals go to a {@link #copy()}, which is then swapped in whole. Access is
+ * still synchronized so readers iterating entries see a consistent snapshot. Positions never
+ * move: removed entries leave a gap and new ones are appended.
+ *
+ * Entries may carry map coordinates (x, y in meters, plus a floor) for the position
+ * estimator; x and y are NaN for entries without them.
+ */
+final class BeaconRegistry {
+    private static final int MAX_ID = 0xFFFF;
+
+    private final BeaconIdMap ids;
+    private String[] titles;
+    private String[] urls;
+    private int[] positions;
+    private double[] xs;
+    private double[] ys;
+    private int[] floors;
+    private int nextPosition;
+    private String etag;
+    // Bumped whenever an identity is added or removed, so derived indexes know to rebuild
+    private int revision;
+
+    BeaconRegistry() {
+        this(16);
+    }
+
+    BeaconRegistry(int expectedSize) {
+        ids = new BeaconIdMap(expectedSize);
+        titles = new String[ids.capacity()];
+        urls = new String[ids.capacity()];
+        positions = new int[ids.capacity()];
+        xs = new double[ids.capacity()];
+        ys = new double[ids.capacity()];
+        floors = new int[ids.capacity()];
+    }
+
+    /**
+     * Builds a registry from the initialize() argument, each entry at its index in the array
+     * and with its map coordinates if it has them.
+     */
+    static BeaconRegistry fromJson(JSONArray beaconDataArray) throws JSONException {
+        BeaconRegistry registry = new BeaconRegistry(beaconDataArray.length());
+        for (int i = 0; i < beaconDataArray.length(); i++) {
+            JSONObject beaconObj = beaconDataArray.getJSONObject(i);
+            registry.add(
+                BeaconLayouts.registryUuid(beaconObj),
+                BeaconLayouts.registryMajor(beaconObj),
+                BeaconLayouts.registryMinor(beaconObj),
+                beaconObj.getString("title"),
+                beaconObj.getString("url"),
+                i);
+            registry.applyLocation(beaconObj);
+        }
+        registry.setNextPosition(beaconDataArray.length());
+        return registry;
+    }
+
+    /**
+     * Independent copy with the same entries, coordinates, positions, etag and revision, to
+     * apply a batch of changes to before swapping it in.
+     */
+    synchronized BeaconRegistry copy() {
+        BeaconRegistry copy = new BeaconRegistry(ids.size());
+        for (int index = 0; index < ids.highWater(); index++) {
+            if (ids.isLive(index)) {
+                int ext = ids.ext(index);
+                copy.add(ids.hi(index), ids.lo(index), BeaconIdMap.major(ext), BeaconIdMap.minor(ext),
+                    titles[index], urls[index], positions[index]);
+                copy.setLocation(copy.ids.get(ids.hi(index), ids.lo(index), ext), xs[index], ys[index], floors[index]);
+            }
+        }
+        copy.nextPosition = nextPosition;
+        copy.etag = etag;
+        copy.revision = revision;
+        return copy;
+    }
+
+    /**
+     * Adds a beacon found at the given position of the initialize() array. Returns false
+     * if the same identity is already registered, in which case the first entry is kept.
+     */
+    boolean add(String uuid, int major, int minor, String title, String url, int position) {
+        UUID parsed = UUID.fromString(uuid);
+        return add(parsed.getMostSignificantBits(), parsed.getLeastSignificantBits(), major, minor,
+            title, url, position);
+    }
+
+    synchronized boolean add(long msb, long lsb, int major, int minor, String title, String url, int position) {
+        checkRange(major, minor);
+        int sizeBefore = ids.size();
+        int index = ids.put(msb, lsb, BeaconIdMap.pack(major, minor));
+        if (ids.size() == sizeBefore) {
+            return false;
+        }
+
+        if (index >= titles.length) {
+            titles = Arrays.copyOf(titles, ids.capacity());
+            urls = Arrays.copyOf(urls, ids.capacity());
+            positions = Arrays.copyOf(positions, ids.capacity());
+            xs = Arrays.copyOf(xs, ids.capacity());
+            ys = Arrays.copyOf(ys, ids.capacity());
+            floors = Arrays.copyOf(floors, ids.capacity());
+        }
+        titles[index] = title;
+        urls[index] = url;
+        positions[index] = position;
+        xs[index] = Double.NaN;
+        ys[index] = Double.NaN;
+        floors[index] = 0;
+        nextPosition = Math.max(nextPosition, position + 1);
+        revision++;
+        return true;
+    }
+
+    /**
+     * Replaces title and url of a registered beacon, or registers it at the next free
+     * position. Returns the entry's position.
+     */
+    synchronized int upsert(String uuid, int major, int minor, String title, String url) {
+        checkRange(major, minor);
+        UUID parsed = UUID.fromString(uuid);
+        long msb = parsed.getMostSignificantBits();
+        long lsb = parsed.getLeastSignificantBits();
+        int index = ids.get(msb, lsb, BeaconIdMap.pack(major, minor));
+        if (index != BeaconIdMap.NONE) {
+            titles[index] = title;
+            urls[index] = url;
+            return positions[index];
+        }
+        int position = nextPosition;
+        add(msb, lsb, major, minor, title, url, position);
+        return position;
+    }
+
+    /**
+     * Unregisters a beacon and returns the position it had, or -1 if it was not registered.
+     */
+    synchronized int remove(String uuid, int major, int minor) {
+        UUID parsed = UUID.fromString(uuid);
+        int index = find(parsed.getMostSignificantBits(), parsed.getLeastSignificantBits(), major, minor);
+        if (index == BeaconIdMap.NONE) {
+            return -1;
+        }
+        ids.remove(index);
+        titles[index] = null;
+        urls[index] = null;
+        revision++;
+        return positions[index];
+    }
+
+    /**
+     * Sets the map coordinates of a registered beacon; NaN x or y clears them. Returns false
+     * if the beacon is not registered.
+     */
+    synchronized boolean setLocation(String uuid, int major, int minor, double x, double y, int floor) {
+        UUID parsed = UUID.fromString(uuid);
+        int index = find(parsed.getMostSignificantBits(), parsed.getLeastSignificantBits(), major, minor);
+        if (index == BeaconIdMap.NONE) {
+            return false;
+        }
+        setLocation(index, x, y, floor);
+        return true;
+    }
+
+    /**
+     * Stores the optional map coordinates of an initialize/upsertBeacons entry; entries
+     * without x and y keep what they had.
+     */
+    void applyLocation(JSONObject beaconObj) throws JSONException {
+        if (beaconObj.has("x") && beaconObj.has("y")) {
+            setLocation(
+                BeaconLayouts.registryUuid(beaconObj),
+                BeaconLayouts.registryMajor(beaconObj),
+                BeaconLayouts.registryMinor(beaconObj),
+                beaconObj.getDouble("x"),
+                beaconObj.getDouble("y"),
+                beaconObj.optInt("floor", 0));
+        }
+    }
+
+    synchronized void setLocation(int index, double x, double y, int floor) {
+        boolean known = !Double.isNaN(x) && !Double.isNaN(y);
+        xs[index] = known ? x : Double.NaN;
+        ys[index] = known ? y : Double.NaN;
+        floors[index] = floor;
+    }
+
+    /**
+     * Returns the entry index for the given identity, or -1 if it is not registered.
+     */
+    synchronized int find(long msb, long lsb, int major, int minor) {
+        if (major < 0 || major > MAX_ID || minor < 0 || minor > MAX_ID) {
+            return BeaconIdMap.NONE;
+        }
+        return ids.get(msb, lsb, BeaconIdMap.pack(major, minor));
+    }
+
+    synchronized int size() {
+        return ids.size();
+    }
+
+    synchronized boolean isEmpty() {
+        return ids.size() == 0;
+    }
+
+    /**
+     * Upper bound (exclusive) of entry indexes; iterate 0..highWater() and skip !contains,
+     * holding the registry lock so entries do not change underneath.
+     */
+    synchronized int highWater() {
+        return ids.highWater();
+    }
+
+    synchronized boolean contains(int index) {
+        return ids.isLive(index);
+    }
+
+    synchronized long uuidMsb(int index) {
+        return ids.hi(index);
+    }
+
+    synchronized long uuidLsb(int index) {
+        return ids.lo(index);
+    }
+
+    synchronized String uuid(int index) {
+        return new UUID(ids.hi(index), ids.lo(index)).toString();
+    }
+
+    synchronized int major(int index) {
+        return BeaconIdMap.major(ids.ext(index));
+    }
+
+    synchronized int minor(int index) {
+        return BeaconIdMap.minor(ids.ext(index));
+    }
+
+    synchronized String title(int index) {
+        return titles[index];
+    }
+
+    synchronized String url(int index) {
+        return urls[index];
+    }
+
+    /**
+     * Position of the entry in the array JS passed to initialize(), which is how compact
+     * payloads refer to its title and url.
+     */
+    synchronized int position(int index) {
+        return positions[index];
+    }
+
+    synchronized boolean hasLocation(int index) {
+        return !Double.isNaN(xs[index]);
+    }
+
+    synchronized double x(int index) {
+        return xs[index];
+    }
+
+    synchronized double y(int index) {
+        return ys[index];
+    }
+
+    synchronized int floor(int index) {
+        return floors[index];
+    }
+
+    /**
+     * Count of identity changes so far; equal values mean the same set of identities.
+     */
+    synchronized int revision() {
+        return revision;
+    }
+
+    /**
+     * Position the next new entry gets; one past the highest ever used.
+     */
+    synchronized int nextPosition() {
+        return nextPosition;
+    }
+
+    synchronized void setNextPosition(int position) {
+        nextPosition = Math.max(nextPosition, position);
+    }
+
+    /**
+     * Version tag the app attached to this content, or null.
+     */
+    synchronized String getEtag() {
+        return etag;
+    }
+
+    synchronized void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    private static void checkRange(int major, int minor) {
+        if (major < 0 || major > MAX_ID || minor < 0 || minor > MAX_ID) {
+            throw new IllegalArgumentException("major/minor out of range: " + major + "/" + minor);
+        }
+    }
+}
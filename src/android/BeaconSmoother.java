@@ -0,0 +1,209 @@
+package com.example;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Per-beacon smoothing of ranged distance and RSSI.
+ *
+ * Each tracked beacon gets a slot in flat primitive arrays (a fixed-size ring buffer
+ * for the running average, filter state otherwise), so once the tracks are allocated
+ * a sample costs no allocation. Filters: running average over the last windowSize
+ * samples, exponential moving average, or a 1-D Kalman filter. Tracks not updated
+ * for idleTimeout ms are evicted so memory stays bounded by the beacons actually
+ * around.
+ */
+final class BeaconSmoother {
+    static final int MEAN = 0;
+    static final int EXPONENTIAL = 1;
+    static final int KALMAN = 2;
+
+    private final int filter;
+    private final int windowSize;
+    private final double alpha;
+    private final double distanceQ;
+    private final double distanceR;
+    private final double rssiQ;
+    private final double rssiR;
+    private final long idleTimeoutMs;
+
+    private final BeaconIdMap tracks = new BeaconIdMap();
+    private long[] lastSeen;
+    private double[] distance;
+    private double[] rssi;
+    // Kalman error covariance, or sample count for the running average
+    private double[] distanceP;
+    private double[] rssiP;
+    // Running average ring buffers, windowSize entries per track
+    private double[] distanceRing;
+    private double[] rssiRing;
+    private int[] distanceHead;
+    private int[] rssiHead;
+    private long lastEviction;
+
+    BeaconSmoother(int filter, int windowSize, double alpha, double distanceQ, double distanceR,
+                   double rssiQ, double rssiR, long idleTimeoutMs) {
+        this.filter = filter;
+        this.windowSize = Math.max(1, windowSize);
+        this.alpha = alpha;
+        this.distanceQ = distanceQ;
+        this.distanceR = distanceR;
+        this.rssiQ = rssiQ;
+        this.rssiR = rssiR;
+        this.idleTimeoutMs = idleTimeoutMs;
+        allocate(tracks.capacity());
+    }
+
+    /**
+     * Returns null when options select no filter.
+     */
+    static BeaconSmoother fromOptions(JSONObject options) {
+        String name = options.optString("filter", "none");
+        int filter;
+        if ("mean".equals(name)) {
+            filter = MEAN;
+        } else if ("exponential".equals(name)) {
+            filter = EXPONENTIAL;
+        } else if ("kalman".equals(name)) {
+            filter = KALMAN;
+        } else {
+            return null;
+        }
+        return new BeaconSmoother(
+            filter,
+            options.optInt("windowSize", 5),
+            options.optDouble("alpha", 0.3),
+            options.optDouble("processNoise", 0.05),
+            options.optDouble("measurementNoise", 0.25),
+            options.optDouble("rssiProcessNoise", 0.5),
+            options.optDouble("rssiMeasurementNoise", 16),
+            options.optLong("idleTimeout", 30000));
+    }
+
+    /**
+     * Feeds one sample. Negative distances (not computable) leave the distance estimate untouched.
+     */
+    synchronized void update(long msb, long lsb, int majorMinor, double rawDistance, int rawRssi, long now) {
+        int sizeBefore = tracks.size();
+        int handle = tracks.put(msb, lsb, majorMinor);
+        if (handle >= lastSeen.length) {
+            grow(tracks.capacity());
+        }
+        lastSeen[handle] = now;
+
+        if (tracks.size() != sizeBefore) {
+            distance[handle] = rawDistance;
+            rssi[handle] = rawRssi;
+            distanceP[handle] = 0;
+            rssiP[handle] = 0;
+            distanceHead[handle] = 0;
+            rssiHead[handle] = 0;
+        }
+        if (rawDistance >= 0) {
+            distance[handle] = filter(handle, distance, distanceP, distanceRing, distanceHead,
+                distanceQ, distanceR, rawDistance);
+        }
+        rssi[handle] = filter(handle, rssi, rssiP, rssiRing, rssiHead, rssiQ, rssiR, rawRssi);
+    }
+
+    /**
+     * One filter step for one signal. p is 0 until the first sample; after that it is the
+     * sample count for the running average and the error covariance for the Kalman filter.
+     */
+    private double filter(int handle, double[] estimate, double[] p, double[] ring, int[] head,
+                          double q, double r, double sample) {
+        if (filter == MEAN) {
+            int slot = handle * windowSize + head[handle];
+            int count = (int) p[handle];
+            double sum = estimate[handle] * count;
+            if (count == windowSize) {
+                sum -= ring[slot];
+            } else {
+                count++;
+            }
+            ring[slot] = sample;
+            head[handle] = (head[handle] + 1) % windowSize;
+            p[handle] = count;
+            return (sum + sample) / count;
+        }
+
+        if (p[handle] == 0) {
+            p[handle] = filter == KALMAN ? r : 1;
+            return sample;
+        }
+        if (filter == EXPONENTIAL) {
+            return estimate[handle] + alpha * (sample - estimate[handle]);
+        }
+        double predicted = p[handle] + q;
+        double gain = predicted / (predicted + r);
+        p[handle] = (1 - gain) * predicted;
+        return estimate[handle] + gain * (sample - estimate[handle]);
+    }
+
+    /**
+     * Returns the track handle for the identity, or -1 when it is not tracked.
+     */
+    synchronized int find(long msb, long lsb, int majorMinor) {
+        return tracks.get(msb, lsb, majorMinor);
+    }
+
+    synchronized double distance(int handle) {
+        return distance[handle];
+    }
+
+    synchronized double rssi(int handle) {
+        return rssi[handle];
+    }
+
+    /**
+     * Drops tracks idle for longer than the timeout; cheap to call every cycle.
+     */
+    synchronized void evictIdle(long now) {
+        if (now - lastEviction < idleTimeoutMs / 4) {
+            return;
+        }
+        lastEviction = now;
+        for (int handle = 0; handle < tracks.highWater(); handle++) {
+            if (tracks.isLive(handle) && now - lastSeen[handle] > idleTimeoutMs) {
+                tracks.remove(handle);
+            }
+        }
+    }
+
+    synchronized JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("filter", filter == MEAN ? "mean" : filter == EXPONENTIAL ? "exponential" : "kalman");
+        stats.put("tracks", tracks.size());
+        stats.put("trackCapacity", lastSeen.length);
+        return stats;
+    }
+
+    private void allocate(int capacity) {
+        lastSeen = new long[capacity];
+        distance = new double[capacity];
+        rssi = new double[capacity];
+        distanceP = new double[capacity];
+        rssiP = new double[capacity];
+        distanceHead = new int[capacity];
+        rssiHead = new int[capacity];
+        int ringLength = filter == MEAN ? capacity * windowSize : 0;
+        distanceRing = new double[ringLength];
+        rssiRing = new double[ringLength];
+    }
+
+    private void grow(int capacity) {
+        lastSeen = Arrays.copyOf(lastSeen, capacity);
+        distance = Arrays.copyOf(distance, capacity);
+        rssi = Arrays.copyOf(rssi, capacity);
+        distanceP = Arrays.copyOf(distanceP, capacity);
+        rssiP = Arrays.copyOf(rssiP, capacity);
+        distanceHead = Arrays.copyOf(distanceHead, capacity);
+        rssiHead = Arrays.copyOf(rssiHead, capacity);
+        if (filter == MEAN) {
+            distanceRing = Arrays.copyOf(distanceRing, capacity * windowSize);
+            rssiRing = Arrays.copyOf(rssiRing, capacity * windowSize);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.example;
+
+import org.json.JSONException;
+
+import java.util.Arrays;
+
+/**
+ * Per-beacon presence state for the delta subscription mode of onBeaconDetected.
+ *
+ * Fed once per ranging cycle, it reports a beacon as entered the first time it is
+ * seen, changed when its distance or RSSI has moved past a threshold since the last
+ * report, and exited once it has not been seen for the absence timeout. Only the
+ * ranging thread touches an instance.
+ */
+final class BeaconTracker {
+    static final String ENTERED = "entered";
+    static final String CHANGED = "changed";
+    static final String EXITED = "exited";
+
+    interface Listener {
+        void onTransition(String event, long msb, long lsb, int majorMinor, double distance, int rssi)
+            throws JSONException;
+    }
+
+    private final long exitTimeoutMs;
+    private final double distanceThreshold;
+    private final int rssiThreshold;
+
+    private final BeaconIdMap tracked = new BeaconIdMap();
+    private long[] lastSeen = new long[tracked.capacity()];
+    private double[] reportedDistance = new double[tracked.capacity()];
+    private int[] reportedRssi = new int[tracked.capacity()];
+
+    BeaconTracker(long exitTimeoutMs, double distanceThreshold, int rssiThreshold) {
+        this.exitTimeoutMs = exitTimeoutMs;
+        this.distanceThreshold = distanceThreshold;
+        this.rssiThreshold = rssiThreshold;
+    }
+
+    /**
+     * Records one sighting and reports entered/changed transitions.
+     */
+    void update(long msb, long lsb, int majorMinor, double distance, int rssi, long now, Listener listener)
+            throws JSONException {
+        int sizeBefore = tracked.size();
+        int handle = tracked.put(msb, lsb, majorMinor);
+        if (handle >= lastSeen.length) {
+            lastSeen = Arrays.copyOf(lastSeen, tracked.capacity());
+            reportedDistance = Arrays.copyOf(reportedDistance, tracked.capacity());
+            reportedRssi = Arrays.copyOf(reportedRssi, tracked.capacity());
+        }
+        lastSeen[handle] = now;
+
+        if (tracked.size() != sizeBefore) {
+            reportedDistance[handle] = distance;
+            reportedRssi[handle] = rssi;
+            listener.onTransition(ENTERED, msb, lsb, majorMinor, distance, rssi);
+        } else if (Math.abs(distance - reportedDistance[handle]) > distanceThreshold
+                || Math.abs(rssi - reportedRssi[handle]) > rssiThreshold) {
+            reportedDistance[handle] = distance;
+            reportedRssi[handle] = rssi;
+            listener.onTransition(CHANGED, msb, lsb, majorMinor, distance, rssi);
+        }
+    }
+
+    /**
+     * Reports and forgets every beacon not seen within the absence timeout.
+     */
+    void expire(long now, Listener listener) throws JSONException {
+        for (int handle = 0; handle < tracked.highWater(); handle++) {
+            if (tracked.isLive(handle) && now - lastSeen[handle] >= exitTimeoutMs) {
+                long msb = tracked.hi(handle);
+                long lsb = tracked.lo(handle);
+                int majorMinor = tracked.ext(handle);
+                tracked.remove(handle);
+                listener.onTransition(EXITED, msb, lsb, majorMinor, reportedDistance[handle], reportedRssi[handle]);
+            }
+        }
+    }
+
+    int size() {
+        return tracked.size();
+    }
+}
@@ -0,0 +1,96 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Fixed-layout binary encoding of beacon records, the opt-in alternative to one
+ * JSONObject per beacon. Sent as a byte[] PluginResult (an ArrayBuffer in JS) and
+ * decoded by decodeBeacons() in www/beaconDetector.js.
+ *
+ * Big-endian layout: an 8-byte header (magic 'B' 'D', version, record size, int32
+ * record count) followed by one 40-byte record per beacon:
+ * <pre>
+ *  0  int64   UUID most significant bits
+ *  8  int64   UUID least significant bits
+ * 16  uint16  major
+ * 18  uint16  minor
+ * 20  int32   position of the beacon in the initialize() array, -1 if not registered
+ * 24  float32 distance in meters
+ * 28  int16   RSSI in dBm
+ * 30  uint8   event: 0 none (snapshot), 1 entered, 2 changed, 3 exited
+ * 31  uint8   reserved
+ * 32  float32 smoothed distance, NaN when smoothing is off
+ * 36  float32 smoothed RSSI, NaN when smoothing is off
+ * </pre>
+ * Titles and urls are not repeated; JS looks them up by position.
+ */
+final class BinaryBeaconEncoder implements BeaconTracker.Listener {
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_SIZE = 40;
+    private static final byte VERSION = 2;
+
+    private final BeaconRegistry registry;
+    private final BeaconSmoother smoother;
+    private ByteBuffer buffer;
+    private int count;
+
+    BinaryBeaconEncoder(BeaconRegistry registry, BeaconSmoother smoother, int expectedRecords) {
+        this.registry = registry;
+        this.smoother = smoother;
+        this.buffer = ByteBuffer.wrap(new byte[HEADER_SIZE + RECORD_SIZE * Math.max(expectedRecords, 1)]);
+        buffer.position(HEADER_SIZE);
+    }
+
+    @Override
+    public void onTransition(String event, long msb, long lsb, int majorMinor, double distance, int rssi) {
+        if (buffer.remaining() < RECORD_SIZE) {
+            ByteBuffer larger = ByteBuffer.wrap(Arrays.copyOf(buffer.array(), buffer.capacity() * 2));
+            larger.position(buffer.position());
+            buffer = larger;
+        }
+
+        int major = BeaconIdMap.major(majorMinor);
+        int minor = BeaconIdMap.minor(majorMinor);
+        int index = registry.find(msb, lsb, major, minor);
+
+        buffer.putLong(msb);
+        buffer.putLong(lsb);
+        buffer.putShort((short) major);
+        buffer.putShort((short) minor);
+        buffer.putInt(index >= 0 ? registry.position(index) : -1);
+        buffer.putFloat((float) distance);
+        buffer.putShort((short) rssi);
+        buffer.put(eventCode(event));
+        buffer.put((byte) 0);
+
+        int track = smoother != null ? smoother.find(msb, lsb, majorMinor) : -1;
+        buffer.putFloat(track >= 0 ? (float) smoother.distance(track) : Float.NaN);
+        buffer.putFloat(track >= 0 ? (float) smoother.rssi(track) : Float.NaN);
+        count++;
+    }
+
+    int size() {
+        return count;
+    }
+
+    byte[] toByteArray() {
+        buffer.put(0, (byte) 'B');
+        buffer.put(1, (byte) 'D');
+        buffer.put(2, VERSION);
+        buffer.put(3, (byte) RECORD_SIZE);
+        buffer.putInt(4, count);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static byte eventCode(String event) {
+        if (event == null) {
+            return 0;
+        } else if (BeaconTracker.ENTERED.equals(event)) {
+            return 1;
+        } else if (BeaconTracker.CHANGED.equals(event)) {
+            return 2;
+        }
+        return 3;
+    }
+}
@@ -0,0 +1,643 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only on-device journal of detections, zone transitions and plugin events, for bulk
+ * export by the app when it is online.
+ *
+ * Records are addressed by their byte offset in the journal as a whole, which never goes
+ * back. They live in segment files named after the offset they start at and rotated once a
+ * segment passes segmentBytes; beyond maxBytes the oldest segments are deleted. Callers on
+ * the ranging thread only encode into an in-memory buffer; a writer thread drains it every
+ * flushInterval ms (or as soon as batchBytes are pending) with one channel write per batch.
+ * When the writer falls behind and the buffer is full, records are dropped and counted, as
+ * is a batch whose write fails.
+ *
+ * Big-endian record layout: int32 length of what follows the CRC, int32 CRC32 of it, int8
+ * type, int64 timestamp, then the payload:
+ * - detection: uint16 count, then per beacon int64 UUID msb, int64 UUID lsb, int32 packed
+ *   major/minor, float32 distance, int16 RSSI
+ * - zone: int8 event (0 entered, 1 exited), zone id as uint16 length + UTF-8, float32 distance
+ * - event: the event's JSON as UTF-8
+ * A torn record at the end of the last segment is cut off when the journal is opened.
+ *
+ * Recordings for replay are journals of their own, detections only, read back through
+ * {@link CycleReader}.
+ */
+final class EventJournal {
+    static final byte DETECTION = 1;
+    static final byte ZONE = 2;
+    static final byte EVENT = 3;
+
+    private static final String SUFFIX = ".jrn";
+    private static final String ACK_FILE = "acked";
+    private static final int RECORD_HEADER = 8;
+    private static final int BEACON_BYTES = 26;
+
+    private final File dir;
+    private final long segmentBytes;
+    private final long maxBytes;
+    private final int batchBytes;
+    private final boolean detections;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final Runnable flushTask = () -> {
+        flushQueued.set(false);
+        flushQuietly();
+    };
+
+    // Encoded records not yet written; swapped with spare by flush()
+    private final Object pendingLock = new Object();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer pending;
+    private ByteBuffer spare;
+    private long droppedRecords;
+
+    // Segment files by start offset, and the one being appended to; guarded by this
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+    private FileChannel out;
+    private long outBase;
+    private long firstOffset;
+    private long endOffset;
+    private long deletedBytes;
+    private long lostBytes;
+    private long writeErrors;
+    private String lastError;
+    private boolean closed;
+
+    private EventJournal(File dir, long segmentBytes, long maxBytes, int batchBytes, int bufferBytes,
+                         boolean detections) {
+        this.dir = dir;
+        this.segmentBytes = Math.max(4096, segmentBytes);
+        this.maxBytes = Math.max(this.segmentBytes * 2, maxBytes);
+        this.batchBytes = batchBytes;
+        this.detections = detections;
+        pending = ByteBuffer.allocate(bufferBytes);
+        spare = ByteBuffer.allocate(bufferBytes);
+    }
+
+    /**
+     * Opens (or creates) the journal in dir with setJournal options and starts its writer.
+     */
+    static EventJournal open(File dir, JSONObject options) throws IOException {
+        EventJournal journal = new EventJournal(dir,
+            options.optLong("segmentBytes", 1024 * 1024),
+            options.optLong("maxBytes", 16 * 1024 * 1024),
+            options.optInt("batchBytes", 32 * 1024),
+            Math.max(64 * 1024, options.optInt("bufferBytes", 256 * 1024)),
+            options.optBoolean("detections", true));
+        journal.recover();
+        long interval = Math.max(100, options.optLong("flushInterval", 2000));
+        journal.writer.scheduleWithFixedDelay(journal::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        return journal;
+    }
+
+    private synchronized void recover() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SUFFIX)) {
+                    try {
+                        segments.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), file);
+                    } catch (NumberFormatException e) {
+                        // Not ours
+                    }
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            startSegment(0);
+        } else {
+            Map.Entry<Long, File> last = segments.lastEntry();
+            outBase = last.getKey();
+            out = FileChannel.open(last.getValue().toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long valid = validLength(out);
+            if (valid < out.size()) {
+                out.truncate(valid);
+            }
+            out.position(valid);
+            endOffset = outBase + valid;
+        }
+        firstOffset = Math.max(segments.firstKey(), Math.min(readAck(), endOffset));
+    }
+
+    /**
+     * Length of the run of intact records at the start of the channel.
+     */
+    private static long validLength(FileChannel channel) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        CRC32 check = new CRC32();
+        while (buffer.remaining() >= RECORD_HEADER) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int expected = buffer.getInt();
+            if (length < 9 || length > buffer.remaining()) {
+                return start;
+            }
+            byte[] body = new byte[length];
+            buffer.get(body);
+            check.reset();
+            check.update(body, 0, length);
+            if ((int) check.getValue() != expected) {
+                return start;
+            }
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Journals the beacons of one ranging cycle, unless detections are turned off.
+     */
+    void appendCycle(BeaconCycle cycle, long now) {
+        if (!detections || cycle.isEmpty()) {
+            return;
+        }
+        int count = Math.min(cycle.size(), 0xFFFF);
+        int length = 1 + 8 + 2 + count * BEACON_BYTES;
+        synchronized (pendingLock) {
+            if (!reserve(RECORD_HEADER + length)) {
+                return;
+            }
+            int start = beginRecord(length, DETECTION, now);
+            pending.putShort((short) count);
+            for (int i = 0; i < count; i++) {
+                pending.putLong(cycle.msb(i));
+                pending.putLong(cycle.lsb(i));
+                pending.putInt(cycle.majorMinor(i));
+                pending.putFloat((float) cycle.distance(i));
+                pending.putShort((short) cycle.rssi(i));
+            }
+            sealRecord(start, length);
+        }
+        flushIfBatchReady();
+    }
+
+    void appendZone(String event, String zone, double distance, long now) {
+        byte[] zoneBytes = zone.getBytes(StandardCharsets.UTF_8);
+        int zoneLength = Math.min(zoneBytes.length, 0xFFFF);
+        int length = 1 + 8 + 1 + 2 + zoneLength + 4;
+        synchronized (pendingLock) {
+            if (!reserve(RECORD_HEADER + length)) {
+                return;
+            }
+            int start = beginRecord(length, ZONE, now);
+            pending.put((byte) (ZoneEngine.ENTERED.equals(event) ? 0 : 1));
+            pending.putShort((short) zoneLength);
+            pending.put(zoneBytes, 0, zoneLength);
+            pending.putFloat((float) distance);
+            sealRecord(start, length);
+        }
+        flushIfBatchReady();
+    }
+
+    void appendEvent(JSONObject event, long now) {
+        byte[] json = event.toString().getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 8 + json.length;
+        synchronized (pendingLock) {
+            if (!reserve(RECORD_HEADER + length)) {
+                return;
+            }
+            int start = beginRecord(length, EVENT, now);
+            pending.put(json);
+            sealRecord(start, length);
+        }
+        flushIfBatchReady();
+    }
+
+    private boolean reserve(int bytes) {
+        if (pending.remaining() < bytes) {
+            droppedRecords++;
+            return false;
+        }
+        return true;
+    }
+
+    private int beginRecord(int length, byte type, long now) {
+        int start = pending.position();
+        pending.putInt(length);
+        pending.putInt(0);
+        pending.put(type);
+        pending.putLong(now);
+        return start;
+    }
+
+    private void sealRecord(int start, int length) {
+        crc.reset();
+        crc.update(pending.array(), start + RECORD_HEADER, length);
+        pending.putInt(start + 4, (int) crc.getValue());
+    }
+
+    private void flushIfBatchReady() {
+        boolean ready;
+        synchronized (pendingLock) {
+            ready = pending.position() >= batchBytes;
+        }
+        if (ready && flushQueued.compareAndSet(false, true)) {
+            try {
+                writer.execute(flushTask);
+            } catch (RejectedExecutionException e) {
+                // Closed; nothing is written any more
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            // The batch is gone either way; flush() counted it in lostBytes
+        }
+    }
+
+    /**
+     * Writes everything appended so far; called by the writer thread and before reads. A
+     * batch that fails to write is dropped and counted in lostBytes.
+     */
+    synchronized void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        ByteBuffer batch;
+        synchronized (pendingLock) {
+            if (pending.position() == 0) {
+                return;
+            }
+            batch = pending;
+            pending = spare;
+            spare = batch;
+        }
+
+        batch.flip();
+        try {
+            if (out.position() >= segmentBytes) {
+                rotate();
+            }
+            long written = 0;
+            try {
+                while (batch.hasRemaining()) {
+                    written += out.write(batch);
+                }
+            } catch (IOException e) {
+                // Cut off what made it to disk so the segment ends on a whole record
+                out.truncate(endOffset - outBase);
+                out.position(endOffset - outBase);
+                throw e;
+            }
+            endOffset += written;
+        } catch (IOException e) {
+            // Not retried: the buffer keeps filling meanwhile, so the batch is dropped
+            lostBytes += batch.limit();
+            writeErrors++;
+            lastError = e.toString();
+            throw e;
+        } finally {
+            batch.clear();
+        }
+        deleteOldSegments();
+    }
+
+    /**
+     * Moves appends to a new segment starting at endOffset. The new file is opened before the
+     * old one is closed, so when that fails appends go on into the old segment and the next
+     * flush tries again.
+     */
+    private void rotate() throws IOException {
+        out.force(false);
+        FileChannel previous = out;
+        startSegment(endOffset);
+        try {
+            previous.close();
+        } catch (IOException e) {
+            // Already forced; only its descriptor is at stake
+        }
+    }
+
+    private void startSegment(long base) throws IOException {
+        File file = new File(dir, String.format(Locale.US, "%019d%s", base, SUFFIX));
+        out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        outBase = base;
+        endOffset = base;
+        segments.put(base, file);
+    }
+
+    /**
+     * Deletes whole segments that are acknowledged or beyond maxBytes; never the current one.
+     */
+    private void deleteOldSegments() {
+        while (segments.size() > 1) {
+            Map.Entry<Long, File> oldest = segments.firstEntry();
+            long nextBase = segments.higherKey(oldest.getKey());
+            boolean acked = nextBase <= firstOffset;
+            if (!acked && endOffset - oldest.getKey() <= maxBytes) {
+                return;
+            }
+            if (!acked) {
+                deletedBytes += nextBase - Math.max(firstOffset, oldest.getKey());
+            }
+            oldest.getValue().delete();
+            segments.remove(oldest.getKey());
+            firstOffset = Math.max(firstOffset, nextBase);
+        }
+    }
+
+    /**
+     * Decodes up to maxRecords records from fromOffset (or the oldest one still kept) into
+     * {records, nextOffset, firstOffset, endOffset}; nextOffset is where to continue.
+     */
+    synchronized JSONObject read(long fromOffset, int maxRecords) throws IOException, JSONException {
+        flush();
+        long offset = Math.max(fromOffset, firstOffset);
+        JSONArray records = new JSONArray();
+        while (records.length() < maxRecords && offset < endOffset) {
+            Map.Entry<Long, File> segment = segments.floorEntry(offset);
+            Long nextBase = segments.higherKey(segment.getKey());
+            long segmentEnd = nextBase != null ? nextBase : endOffset;
+
+            try (FileChannel channel = FileChannel.open(segment.getValue().toPath(), StandardOpenOption.READ)) {
+                long start = offset - segment.getKey();
+                long size = Math.min(channel.size(), segmentEnd - segment.getKey()) - start;
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+                CRC32 check = new CRC32();
+                while (records.length() < maxRecords && buffer.remaining() >= RECORD_HEADER) {
+                    int length = buffer.getInt();
+                    int expected = buffer.getInt();
+                    if (length < 9 || length > buffer.remaining()) {
+                        throw new IOException("No journal record at offset " + offset);
+                    }
+                    byte[] body = new byte[length];
+                    buffer.get(body);
+                    check.reset();
+                    check.update(body, 0, length);
+                    if ((int) check.getValue() != expected) {
+                        throw new IOException("No journal record at offset " + offset);
+                    }
+                    records.put(decode(offset, ByteBuffer.wrap(body)));
+                    offset += RECORD_HEADER + length;
+                }
+                if (buffer.remaining() < RECORD_HEADER && records.length() < maxRecords) {
+                    offset = segmentEnd;
+                }
+            }
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("records", records);
+        result.put("nextOffset", offset);
+        result.put("firstOffset", firstOffset);
+        result.put("endOffset", endOffset);
+        return result;
+    }
+
+    private static JSONObject decode(long offset, ByteBuffer body) throws JSONException {
+        byte type = body.get();
+        JSONObject record = new JSONObject();
+        record.put("offset", offset);
+        record.put("timestamp", body.getLong());
+        if (type == DETECTION) {
+            record.put("type", "detection");
+            int count = body.getShort() & 0xFFFF;
+            JSONArray beacons = new JSONArray();
+            for (int i = 0; i < count; i++) {
+                JSONObject beacon = new JSONObject();
+                beacon.put("uuid", new UUID(body.getLong(), body.getLong()).toString());
+                int majorMinor = body.getInt();
+                beacon.put("major", BeaconIdMap.major(majorMinor));
+                beacon.put("minor", BeaconIdMap.minor(majorMinor));
+                beacon.put("distance", (double) body.getFloat());
+                beacon.put("rssi", body.getShort());
+                beacons.put(beacon);
+            }
+            record.put("beacons", beacons);
+        } else if (type == ZONE) {
+            record.put("type", "zone");
+            record.put("event", body.get() == 0 ? ZoneEngine.ENTERED : ZoneEngine.EXITED);
+            byte[] zone = new byte[body.getShort() & 0xFFFF];
+            body.get(zone);
+            record.put("zone", new String(zone, StandardCharsets.UTF_8));
+            record.put("distance", (double) body.getFloat());
+        } else {
+            record.put("type", "event");
+            byte[] json = new byte[body.remaining()];
+            body.get(json);
+            record.put("event", new JSONObject(new String(json, StandardCharsets.UTF_8)));
+        }
+        return record;
+    }
+
+    /**
+     * Marks every record that ends at or before offset as exported: it is no longer returned
+     * and its segments are deleted once wholly acknowledged. The offset is kept across restarts.
+     */
+    synchronized void ack(long offset) throws IOException {
+        flush();
+        long boundary = recordBoundary(Math.min(offset, endOffset));
+        if (boundary <= firstOffset) {
+            return;
+        }
+        firstOffset = boundary;
+        File temp = new File(dir, ACK_FILE + ".tmp");
+        try (FileOutputStream ackOut = new FileOutputStream(temp)) {
+            ackOut.write(ByteBuffer.allocate(8).putLong(firstOffset).array());
+            ackOut.getFD().sync();
+        }
+        if (!temp.renameTo(new File(dir, ACK_FILE))) {
+            temp.delete();
+            throw new IOException("Could not save journal ack");
+        }
+        deleteOldSegments();
+    }
+
+    /**
+     * Start of the last record that begins at or before offset, or offset itself if it is the
+     * end of a segment; walks the record headers of offset's segment.
+     */
+    private long recordBoundary(long offset) throws IOException {
+        Map.Entry<Long, File> segment = segments.floorEntry(offset);
+        if (segment == null) {
+            return offset;
+        }
+        long base = segment.getKey();
+        long position = base;
+        ByteBuffer header = ByteBuffer.allocate(4);
+        try (FileChannel channel = FileChannel.open(segment.getValue().toPath(), StandardOpenOption.READ)) {
+            while (true) {
+                header.clear();
+                if (channel.read(header, position - base) < 4) {
+                    return position;
+                }
+                long next = position + RECORD_HEADER + header.getInt(0);
+                if (next > offset) {
+                    return position;
+                }
+                position = next;
+            }
+        }
+    }
+
+    private long readAck() {
+        File file = new File(dir, ACK_FILE);
+        if (file.length() != 8) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Fill the buffer
+            }
+            buffer.flip();
+            return buffer.getLong();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Streams the detection records of a journal directory into a cycle, oldest first; replay
+     * reads recordings through it. Zone and event records are skipped, and a torn or garbled
+     * record ends a segment, as it does when the journal is opened. Not for a journal that
+     * is still being written.
+     */
+    static final class CycleReader implements Closeable {
+        private final File[] files;
+        private final CRC32 check = new CRC32();
+        private byte[] body = new byte[256];
+        private int fileIndex;
+        private MappedByteBuffer buffer;
+        private long timestamp;
+
+        CycleReader(File dir) throws IOException {
+            File[] listed = dir.listFiles((parent, name) -> name.endsWith(SUFFIX));
+            if (listed == null || listed.length == 0) {
+                throw new IOException("No recording in " + dir);
+            }
+            // Zero-padded base offsets sort by name
+            Arrays.sort(listed, (a, b) -> a.getName().compareTo(b.getName()));
+            files = listed;
+        }
+
+        /**
+         * Fills cycle with the next detection record; false at the end of the journal.
+         */
+        boolean next(BeaconCycle cycle) throws IOException {
+            while (true) {
+                if (buffer == null || buffer.remaining() < RECORD_HEADER) {
+                    if (fileIndex == files.length) {
+                        return false;
+                    }
+                    try (FileChannel channel = FileChannel.open(files[fileIndex++].toPath(),
+                            StandardOpenOption.READ)) {
+                        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    }
+                    continue;
+                }
+                int length = buffer.getInt();
+                int expected = buffer.getInt();
+                if (length < 9 || length > buffer.remaining()) {
+                    buffer = null;
+                    continue;
+                }
+                if (length > body.length) {
+                    body = new byte[Math.max(length, body.length * 2)];
+                }
+                buffer.get(body, 0, length);
+                check.reset();
+                check.update(body, 0, length);
+                if ((int) check.getValue() != expected) {
+                    buffer = null;
+                    continue;
+                }
+                if (body[0] != DETECTION) {
+                    continue;
+                }
+
+                ByteBuffer record = ByteBuffer.wrap(body, 1, length - 1);
+                timestamp = record.getLong();
+                int count = record.getShort() & 0xFFFF;
+                cycle.clear();
+                for (int i = 0; i < count; i++) {
+                    cycle.add(record.getLong(), record.getLong(), record.getInt(), record.getFloat(),
+                        record.getShort());
+                }
+                return true;
+            }
+        }
+
+        /**
+         * Timestamp of the record last returned by {@link #next}.
+         */
+        long timestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public void close() {
+            buffer = null;
+            fileIndex = files.length;
+        }
+    }
+
+    /**
+     * Writes what is pending and stops the writer; appends after this are dropped.
+     */
+    void close() {
+        writer.shutdown();
+        synchronized (this) {
+            flushQuietly();
+            closed = true;
+            try {
+                out.force(false);
+                out.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+    }
+
+    synchronized JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("segments", segments.size());
+        stats.put("firstOffset", firstOffset);
+        stats.put("endOffset", endOffset);
+        stats.put("deletedBytes", deletedBytes);
+        stats.put("lostBytes", lostBytes);
+        stats.put("writeErrors", writeErrors);
+        if (lastError != null) {
+            stats.put("lastError", lastError);
+        }
+        synchronized (pendingLock) {
+            stats.put("pendingBytes", pending.position());
+            stats.put("droppedRecords", droppedRecords);
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,36 @@
+package com.example;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+
+/**
+ * Sends pipeline results to a kept callback, so the same JS callback hears every cycle.
+ */
+class KeptSink implements BeaconPipeline.Sink {
+    private final CallbackContext callbackContext;
+
+    KeptSink(CallbackContext callbackContext) {
+        this.callbackContext = callbackContext;
+    }
+
+    @Override
+    public void sendJson(JSONArray beacons) {
+        send(new PluginResult(PluginResult.Status.OK, beacons));
+    }
+
+    @Override
+    public void sendBinary(byte[] payload) {
+        send(new PluginResult(PluginResult.Status.OK, payload));
+    }
+
+    @Override
+    public void sendError(String message) {
+        send(new PluginResult(PluginResult.Status.ERROR, message));
+    }
+
+    private void send(PluginResult result) {
+        result.setKeepCallback(true); // Keep the callback for future beacon detections
+        callbackContext.sendPluginResult(result);
+    }
+}
@@ -0,0 +1,184 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and fixed-bucket histograms for the ranging hot path, read by getMetrics.
+ *
+ * Each ranging cycle is timed in three stages: match (foreign-beacon filter, sighting
+ * table, scan scheduler), serialize (building the JSON or binary result, registry lookups
+ * included) and send (sendPluginResult). Recording only touches atomics, so it takes no
+ * lock and allocates nothing; a reset racing a record may lose that one sample.
+ */
+final class PluginMetrics {
+    // Upper bounds in microseconds; a last overflow bucket catches the rest
+    private static final long[] LATENCY_BOUNDS_US = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000};
+    private static final long[] BEACON_BOUNDS = {0, 1, 2, 5, 10, 20, 50, 100, 200, 500};
+
+    private final Histogram cycleLatency = new Histogram(LATENCY_BOUNDS_US);
+    private final Histogram matchLatency = new Histogram(LATENCY_BOUNDS_US);
+    private final Histogram serializeLatency = new Histogram(LATENCY_BOUNDS_US);
+    private final Histogram sendLatency = new Histogram(LATENCY_BOUNDS_US);
+    private final Histogram beaconsPerCycle = new Histogram(BEACON_BOUNDS);
+    private final AtomicLong beacons = new AtomicLong();
+    private final AtomicLong results = new AtomicLong();
+    private final AtomicLong callbackErrors = new AtomicLong();
+    private final AtomicLong droppedResults = new AtomicLong();
+    private volatile long since = System.currentTimeMillis();
+
+    void recordCycle(int beaconCount, long nanos) {
+        cycleLatency.record(nanos / 1000);
+        beaconsPerCycle.record(beaconCount);
+        beacons.addAndGet(beaconCount);
+    }
+
+    void recordMatch(long nanos) {
+        matchLatency.record(nanos / 1000);
+    }
+
+    void recordSerialize(long nanos) {
+        serializeLatency.record(nanos / 1000);
+    }
+
+    void recordSend(long nanos) {
+        sendLatency.record(nanos / 1000);
+        results.incrementAndGet();
+    }
+
+    void callbackError() {
+        callbackErrors.incrementAndGet();
+    }
+
+    /**
+     * A cycle with beacons that nobody was subscribed to receive.
+     */
+    void droppedResult() {
+        droppedResults.incrementAndGet();
+    }
+
+    JSONObject toJson(long now) throws JSONException {
+        long cycles = cycleLatency.count();
+        double seconds = Math.max(1, now - since) / 1000.0;
+
+        JSONObject metrics = new JSONObject();
+        metrics.put("since", since);
+        metrics.put("cycles", cycles);
+        metrics.put("cyclesPerSecond", cycles / seconds);
+        metrics.put("beacons", beacons.get());
+        metrics.put("beaconsPerSecond", beacons.get() / seconds);
+        metrics.put("results", results.get());
+        metrics.put("callbackErrors", callbackErrors.get());
+        metrics.put("droppedResults", droppedResults.get());
+        metrics.put("beaconsPerCycle", beaconsPerCycle.toJson());
+        metrics.put("cycleLatencyUs", cycleLatency.toJson());
+        metrics.put("matchLatencyUs", matchLatency.toJson());
+        metrics.put("serializeLatencyUs", serializeLatency.toJson());
+        metrics.put("sendLatencyUs", sendLatency.toJson());
+        return metrics;
+    }
+
+    void reset(long now) {
+        cycleLatency.reset();
+        matchLatency.reset();
+        serializeLatency.reset();
+        sendLatency.reset();
+        beaconsPerCycle.reset();
+        beacons.set(0);
+        results.set(0);
+        callbackErrors.set(0);
+        droppedResults.set(0);
+        since = now;
+    }
+
+    /**
+     * Counts per bucket: bucket i holds values up to bounds[i], the last one everything above.
+     * Percentiles are reported as the upper bound of the bucket they fall in.
+     */
+    static final class Histogram {
+        private final long[] bounds;
+        private final AtomicLongArray counts;
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.counts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        void record(long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+            sum.addAndGet(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        long count() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        void reset() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+            sum.set(0);
+            max.set(0);
+        }
+
+        JSONObject toJson() throws JSONException {
+            long[] snapshot = new long[counts.length()];
+            long total = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+
+            JSONObject histogram = new JSONObject();
+            histogram.put("count", total);
+            histogram.put("mean", total > 0 ? (double) sum.get() / total : 0);
+            histogram.put("max", max.get());
+            histogram.put("p50", percentile(snapshot, total, 0.50));
+            histogram.put("p95", percentile(snapshot, total, 0.95));
+            histogram.put("p99", percentile(snapshot, total, 0.99));
+            JSONArray bucketBounds = new JSONArray();
+            JSONArray bucketCounts = new JSONArray();
+            for (int i = 0; i < snapshot.length; i++) {
+                // The overflow bucket has no upper bound
+                bucketBounds.put(i < bounds.length ? bounds[i] : -1);
+                bucketCounts.put(snapshot[i]);
+            }
+            histogram.put("bounds", bucketBounds);
+            histogram.put("counts", bucketCounts);
+            return histogram;
+        }
+
+        private long percentile(long[] snapshot, long total, double fraction) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return i < bounds.length ? bounds[i] : max.get();
+                }
+            }
+            return max.get();
+        }
+    }
+}
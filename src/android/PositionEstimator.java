@@ -0,0 +1,305 @@
+package com.example;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Estimates the device's map position from the registered beacons that carry coordinates.
+ *
+ * Each cycle takes the maxBeacons strongest located beacons on the floor of the strongest one
+ * and fits a position to their distances by weighted least squares (weights 1/d², so near
+ * beacons count most): a linearized solve for a cold start, then a few Gauss-Newton steps on
+ * the true range residuals, warm-started from the previous fix afterwards. Work per cycle is
+ * O(cycle size × maxBeacons), however many beacons are registered. Fixes are blended into
+ * the reported position with weight alpha; a floor change or a gap of resetAfter ms starts
+ * over.
+ *
+ * With two beacons, or beacons on a line, it falls back to their weighted centroid; with one
+ * it reports that beacon's coordinates.
+ */
+final class PositionEstimator {
+    static final String LEAST_SQUARES = "leastSquares";
+    static final String CENTROID = "centroid";
+    static final String NEAREST = "nearest";
+
+    private static final int REFINE_STEPS = 3;
+    private static final double MIN_DISTANCE = 0.1;
+    private static final double SINGULAR = 1e-9;
+
+    private final int maxBeacons;
+    private final double maxDistance;
+    private final double alpha;
+    private final long resetAfterMs;
+
+    // Scratch for the beacons used in one cycle, strongest first
+    private final double[] bx;
+    private final double[] by;
+    private final double[] br;
+    private final int[] brssi;
+    private int used;
+
+    private boolean hasFix;
+    private double x;
+    private double y;
+    private int floor;
+    private double accuracy;
+    private String method;
+    private long lastFix;
+    private long fixes;
+
+    private PositionEstimator(int maxBeacons, double maxDistance, double alpha, long resetAfterMs) {
+        this.maxBeacons = Math.max(1, maxBeacons);
+        this.maxDistance = maxDistance;
+        this.alpha = Math.min(1.0, Math.max(0.01, alpha));
+        this.resetAfterMs = resetAfterMs;
+        bx = new double[this.maxBeacons];
+        by = new double[this.maxBeacons];
+        br = new double[this.maxBeacons];
+        brssi = new int[this.maxBeacons];
+    }
+
+    /**
+     * Builds the estimator from setPositioning options.
+     */
+    static PositionEstimator fromOptions(JSONObject options) {
+        return new PositionEstimator(
+            options.optInt("maxBeacons", 5),
+            options.optDouble("maxDistance", 15.0),
+            options.optDouble("alpha", 0.4),
+            options.optLong("resetAfter", 10000));
+    }
+
+    /**
+     * Runs one ranging cycle and returns true when it produced a fix. Distances and RSSI are
+     * taken from the smoother when it tracks the beacon.
+     */
+    synchronized boolean update(BeaconCycle cycle, BeaconRegistry registry, BeaconSmoother smoother, long now) {
+        int cycleFloor = 0;
+        int strongest = Integer.MIN_VALUE;
+        used = 0;
+
+        // One pass picks the floor of the strongest located beacon, the next the best on it
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < cycle.size(); i++) {
+                int majorMinor = cycle.majorMinor(i);
+                int index = registry.find(cycle.msb(i), cycle.lsb(i),
+                    BeaconIdMap.major(majorMinor), BeaconIdMap.minor(majorMinor));
+                if (index < 0 || !registry.hasLocation(index)) {
+                    continue;
+                }
+                double distance = cycle.distance(i);
+                int rssi = cycle.rssi(i);
+                int track = smoother != null ? smoother.find(cycle.msb(i), cycle.lsb(i), majorMinor) : -1;
+                if (track >= 0) {
+                    distance = smoother.distance(track);
+                    rssi = (int) Math.round(smoother.rssi(track));
+                }
+                if (distance < 0 || distance > maxDistance) {
+                    continue;
+                }
+
+                if (pass == 0) {
+                    if (rssi > strongest) {
+                        strongest = rssi;
+                        cycleFloor = registry.floor(index);
+                    }
+                } else if (registry.floor(index) == cycleFloor) {
+                    insert(registry.x(index), registry.y(index), Math.max(MIN_DISTANCE, distance), rssi);
+                }
+            }
+            if (strongest == Integer.MIN_VALUE) {
+                return false;
+            }
+        }
+
+        boolean warm = hasFix && floor == cycleFloor && now - lastFix < resetAfterMs;
+        double fixX;
+        double fixY;
+        String fixMethod;
+        if (used == 1) {
+            fixX = bx[0];
+            fixY = by[0];
+            fixMethod = NEAREST;
+        } else {
+            double[] fix = null;
+            if (used >= 3) {
+                fix = warm ? new double[] {x, y} : linearSolve();
+                if (fix == null) {
+                    fix = centroid();
+                }
+                if (!refine(fix)) {
+                    fix = null;
+                }
+            }
+            fixMethod = fix != null ? LEAST_SQUARES : CENTROID;
+            if (fix == null) {
+                fix = centroid();
+            }
+            fixX = fix[0];
+            fixY = fix[1];
+        }
+
+        if (warm) {
+            x += alpha * (fixX - x);
+            y += alpha * (fixY - y);
+        } else {
+            x = fixX;
+            y = fixY;
+        }
+        floor = cycleFloor;
+        accuracy = residual(fixX, fixY);
+        method = fixMethod;
+        hasFix = true;
+        lastFix = now;
+        fixes++;
+        return true;
+    }
+
+    /**
+     * Keeps the maxBeacons strongest candidates, sorted by RSSI, in the scratch arrays.
+     */
+    private void insert(double beaconX, double beaconY, double distance, int rssi) {
+        int slot;
+        if (used < maxBeacons) {
+            slot = used++;
+        } else if (rssi > brssi[used - 1]) {
+            slot = used - 1;
+        } else {
+            return;
+        }
+        while (slot > 0 && brssi[slot - 1] < rssi) {
+            bx[slot] = bx[slot - 1];
+            by[slot] = by[slot - 1];
+            br[slot] = br[slot - 1];
+            brssi[slot] = brssi[slot - 1];
+            slot--;
+        }
+        bx[slot] = beaconX;
+        by[slot] = beaconY;
+        br[slot] = distance;
+        brssi[slot] = rssi;
+    }
+
+    /**
+     * Linearizes the range equations against the strongest beacon and solves the weighted
+     * normal equations; null when they are singular (fewer than three beacons or collinear).
+     */
+    private double[] linearSolve() {
+        double a11 = 0;
+        double a12 = 0;
+        double a22 = 0;
+        double b1 = 0;
+        double b2 = 0;
+        double x0 = bx[0];
+        double y0 = by[0];
+        double k0 = x0 * x0 + y0 * y0 - br[0] * br[0];
+        for (int i = 1; i < used; i++) {
+            double ax = 2 * (bx[i] - x0);
+            double ay = 2 * (by[i] - y0);
+            double b = bx[i] * bx[i] + by[i] * by[i] - br[i] * br[i] - k0;
+            double w = 1.0 / (br[i] * br[i]);
+            a11 += w * ax * ax;
+            a12 += w * ax * ay;
+            a22 += w * ay * ay;
+            b1 += w * ax * b;
+            b2 += w * ay * b;
+        }
+        double det = a11 * a22 - a12 * a12;
+        if (Math.abs(det) < SINGULAR * Math.max(1.0, a11 * a22)) {
+            return null;
+        }
+        return new double[] {(a22 * b1 - a12 * b2) / det, (a11 * b2 - a12 * b1) / det};
+    }
+
+    /**
+     * Gauss-Newton steps minimizing the weighted squared range residuals, in place. Returns
+     * false if the geometry gives no solution from the start (collinear beacons).
+     */
+    private boolean refine(double[] position) {
+        for (int step = 0; step < REFINE_STEPS; step++) {
+            double a11 = 0;
+            double a12 = 0;
+            double a22 = 0;
+            double g1 = 0;
+            double g2 = 0;
+            for (int i = 0; i < used; i++) {
+                double dx = position[0] - bx[i];
+                double dy = position[1] - by[i];
+                double range = Math.max(MIN_DISTANCE, Math.sqrt(dx * dx + dy * dy));
+                double jx = dx / range;
+                double jy = dy / range;
+                double r = range - br[i];
+                double w = 1.0 / (br[i] * br[i]);
+                a11 += w * jx * jx;
+                a12 += w * jx * jy;
+                a22 += w * jy * jy;
+                g1 += w * jx * r;
+                g2 += w * jy * r;
+            }
+            double det = a11 * a22 - a12 * a12;
+            if (Math.abs(det) < SINGULAR * Math.max(1.0, a11 * a22)) {
+                return step > 0;
+            }
+            double stepX = (a22 * g1 - a12 * g2) / det;
+            double stepY = (a11 * g2 - a12 * g1) / det;
+            position[0] -= stepX;
+            position[1] -= stepY;
+            if (stepX * stepX + stepY * stepY < 1e-6) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    private double[] centroid() {
+        double sumX = 0;
+        double sumY = 0;
+        double sumW = 0;
+        for (int i = 0; i < used; i++) {
+            double w = 1.0 / (br[i] * br[i]);
+            sumX += w * bx[i];
+            sumY += w * by[i];
+            sumW += w;
+        }
+        return new double[] {sumX / sumW, sumY / sumW};
+    }
+
+    /**
+     * Weighted RMS range residual of a fix in meters, reported as its accuracy.
+     */
+    private double residual(double fixX, double fixY) {
+        double sum = 0;
+        double sumW = 0;
+        for (int i = 0; i < used; i++) {
+            double dx = fixX - bx[i];
+            double dy = fixY - by[i];
+            double r = Math.sqrt(dx * dx + dy * dy) - br[i];
+            double w = 1.0 / (br[i] * br[i]);
+            sum += w * r * r;
+            sumW += w;
+        }
+        return used > 1 ? Math.sqrt(sum / sumW) : br[0];
+    }
+
+    synchronized JSONObject toJson(long now) throws JSONException {
+        JSONObject position = new JSONObject();
+        position.put("x", x);
+        position.put("y", y);
+        position.put("floor", floor);
+        position.put("accuracy", accuracy);
+        position.put("beacons", used);
+        position.put("method", method);
+        position.put("timestamp", now);
+        return position;
+    }
+
+    synchronized JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("maxBeacons", maxBeacons);
+        stats.put("alpha", alpha);
+        stats.put("fixes", fixes);
+        stats.put("hasFix", hasFix);
+        stats.put("lastFix", lastFix);
+        return stats;
+    }
+}
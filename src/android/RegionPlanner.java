@@ -0,0 +1,73 @@
+package com.example;
+
+import org.altbeacon.beacon.Identifier;
+import org.altbeacon.beacon.Region;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * Derives the smallest useful set of ranging regions from the registry.
+ *
+ * Registered beacons are grouped by UUID. A UUID whose beacons use only a few majors
+ * gets one region per (UUID, major); otherwise one region for the whole UUID. If that
+ * would exceed maxRegions, majors are folded back into their UUID, and if the UUIDs
+ * alone still exceed it a single wildcard region is used. Regions only narrow what
+ * AltBeacon hands to the range notifier; exact registry matching still happens in the
+ * plugin.
+ */
+final class RegionPlanner {
+    private RegionPlanner() {
+    }
+
+    static Region wildcard(String uniqueId) {
+        return new Region(uniqueId, null, null, null);
+    }
+
+    static List<Region> plan(BeaconRegistry registry, String idPrefix, int maxRegions, int maxMajorsPerUuid) {
+        Map<UUID, Set<Integer>> majorsByUuid = new LinkedHashMap<>();
+        synchronized (registry) {
+            for (int index = 0; index < registry.highWater(); index++) {
+                if (registry.contains(index)) {
+                    UUID uuid = new UUID(registry.uuidMsb(index), registry.uuidLsb(index));
+                    Set<Integer> majors = majorsByUuid.get(uuid);
+                    if (majors == null) {
+                        majors = new TreeSet<>();
+                        majorsByUuid.put(uuid, majors);
+                    }
+                    majors.add(registry.major(index));
+                }
+            }
+        }
+
+        if (majorsByUuid.isEmpty() || majorsByUuid.size() > maxRegions) {
+            return Collections.singletonList(wildcard(idPrefix + "All"));
+        }
+
+        int perMajorRegions = 0;
+        for (Set<Integer> majors : majorsByUuid.values()) {
+            perMajorRegions += majors.size() <= maxMajorsPerUuid ? majors.size() : 1;
+        }
+        boolean splitByMajor = perMajorRegions <= maxRegions;
+
+        List<Region> regions = new ArrayList<>();
+        for (Map.Entry<UUID, Set<Integer>> entry : majorsByUuid.entrySet()) {
+            Identifier uuid = Identifier.fromUuid(entry.getKey());
+            Set<Integer> majors = entry.getValue();
+            if (splitByMajor && majors.size() <= maxMajorsPerUuid) {
+                for (int major : majors) {
+                    regions.add(new Region(idPrefix + regions.size(), uuid, Identifier.fromInt(major), null));
+                }
+            } else {
+                regions.add(new Region(idPrefix + regions.size(), uuid, null, null));
+            }
+        }
+        return regions;
+    }
+}
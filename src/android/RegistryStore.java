@@ -0,0 +1,149 @@
+package com.example;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * On-disk copy of the beacon registry, so a warm start can skip the JSON initialize().
+ *
+ * Big-endian layout: a header (magic "BREG", int32 version, int32 entry count, int32
+ * next position, etag as int16 length + UTF-8, -1 for none) followed per entry by
+ * int64 UUID msb, int64 UUID lsb, uint16 major, uint16 minor, int32 position, float64 x,
+ * float64 y (NaN without coordinates), int32 floor, then title and url as int16 length +
+ * UTF-8. Loading maps the file read-only and reads
+ * it straight into a {@link BeaconRegistry}; saving writes a temporary file and
+ * renames it over the old one so a crash never leaves a torn registry behind.
+ */
+final class RegistryStore {
+    private static final int MAGIC = 0x42524547;
+    private static final int VERSION = 2;
+    private static final int MAX_STRING = Short.MAX_VALUE;
+
+    private final File file;
+
+    RegistryStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the stored registry, or null when there is none or it was written by another
+     * version. A truncated or garbled file is reported as an IOException.
+     */
+    BeaconRegistry load() throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 16 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            int count = buffer.getInt();
+            int nextPosition = buffer.getInt();
+            String etag = readString(buffer);
+
+            BeaconRegistry registry = new BeaconRegistry(count);
+            for (int i = 0; i < count; i++) {
+                long msb = buffer.getLong();
+                long lsb = buffer.getLong();
+                int major = buffer.getShort() & 0xFFFF;
+                int minor = buffer.getShort() & 0xFFFF;
+                int position = buffer.getInt();
+                double x = buffer.getDouble();
+                double y = buffer.getDouble();
+                int floor = buffer.getInt();
+                registry.add(msb, lsb, major, minor, readString(buffer), readString(buffer), position);
+                registry.setLocation(registry.find(msb, lsb, major, minor), x, y, floor);
+            }
+            registry.setNextPosition(nextPosition);
+            registry.setEtag(etag);
+            return registry;
+        } catch (RuntimeException e) {
+            // Truncated or garbled file: BufferUnderflowException and friends
+            throw new IOException("Corrupt registry cache " + file, e);
+        }
+    }
+
+    synchronized void save(BeaconRegistry registry) throws IOException {
+        ByteBuffer buffer;
+        synchronized (registry) {
+            buffer = ByteBuffer.allocate(estimateSize(registry));
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(registry.size());
+            buffer.putInt(registry.nextPosition());
+            writeString(buffer, registry.getEtag());
+            for (int index = 0; index < registry.highWater(); index++) {
+                if (registry.contains(index)) {
+                    buffer.putLong(registry.uuidMsb(index));
+                    buffer.putLong(registry.uuidLsb(index));
+                    buffer.putShort((short) registry.major(index));
+                    buffer.putShort((short) registry.minor(index));
+                    buffer.putInt(registry.position(index));
+                    buffer.putDouble(registry.x(index));
+                    buffer.putDouble(registry.y(index));
+                    buffer.putInt(registry.floor(index));
+                    writeString(buffer, registry.title(index));
+                    writeString(buffer, registry.url(index));
+                }
+            }
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(buffer.array(), 0, buffer.position());
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    void delete() {
+        file.delete();
+    }
+
+    private static int estimateSize(BeaconRegistry registry) {
+        int size = 18 + utf8Length(registry.getEtag());
+        for (int index = 0; index < registry.highWater(); index++) {
+            if (registry.contains(index)) {
+                size += 24 + 20 + 4 + utf8Length(registry.title(index)) + utf8Length(registry.url(index));
+            }
+        }
+        return size;
+    }
+
+    private static int utf8Length(String value) {
+        return value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void writeString(ByteBuffer buffer, String value) throws IOException {
+        if (value == null) {
+            buffer.putShort((short) -1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING) {
+            throw new IOException("String too long for registry cache: " + bytes.length + " bytes");
+        }
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
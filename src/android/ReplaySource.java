@@ -0,0 +1,379 @@
+package com.example;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A beacon source that stands in for AltBeacon ranging: it feeds recorded or generated
+ * cycles to the same {@link BeaconPipeline#process(BeaconCycle, long)} live cycles go
+ * through, for reproducing field load on a desk.
+ *
+ * Recordings are {@link EventJournal} directories written with startRecording, read back
+ * with {@link EventJournal.CycleReader}. The synthetic feed is a seeded random walk through
+ * a grid of beacons (registered ones first), so a run with the same options is the same run.
+ *
+ * A worker thread reads ahead into a small pool of cycles and hands them to the target, which
+ * runs them on the pipeline thread and recycles them; when the pipeline falls behind, the
+ * pool runs dry and the worker waits, so throughput at speed 0 (as fast as possible) is what
+ * the pipeline sustains. Each cycle is stamped with a replay clock that starts at the wall
+ * clock and advances by the recorded spacing, so time-based state (exit timeouts, smoothing,
+ * history) sees the recorded timeline whatever the speed; speed only sets how fast that clock
+ * is played out.
+ */
+final class ReplaySource {
+    /**
+     * Runs cycles on the pipeline thread.
+     */
+    interface Target {
+        /**
+         * Processes cycle stamped now, then runs recycle to return it to the pool.
+         */
+        void deliver(BeaconCycle cycle, long now, Runnable recycle);
+
+        /**
+         * Called once at the end, after the last delivered cycle was recycled: from the
+         * worker, or from the pipeline thread if that recycle came last. error is null
+         * unless reading failed.
+         */
+        void finished(ReplaySource source, Exception error);
+    }
+
+    private interface Feed {
+        boolean next(BeaconCycle cycle) throws IOException;
+
+        long timestamp();
+
+        void close();
+    }
+
+    private static final int POOL = 4;
+    // UUID of synthetic beacons beyond the registered ones
+    private static final long SYNTHETIC_MSB = 0x5E5E5E5E00000000L;
+    private static final long SYNTHETIC_LSB = 0x8000000000000000L;
+
+    private final File recording;
+    private final JSONObject synthetic;
+    private final BeaconRegistry registry;
+    private final double speed;
+    private final int loops;
+    private final Target target;
+    private final BlockingQueue<BeaconCycle> free = new ArrayBlockingQueue<>(POOL);
+    private volatile boolean stopped;
+    private Thread worker;
+
+    // Progress, written by the worker
+    private volatile long cycles;
+    private volatile long beacons;
+    private volatile long startNanos;
+    private volatile long maxBehindMs;
+    // Set once reading is done and every delivered cycle was processed
+    private volatile long endNanos;
+    // Guarded by this
+    private long processed;
+    private boolean readDone;
+    private Exception readError;
+
+    private ReplaySource(File recording, JSONObject synthetic, BeaconRegistry registry, double speed, int loops,
+                         Target target) {
+        this.recording = recording;
+        this.synthetic = synthetic;
+        this.registry = registry;
+        this.speed = Math.max(0, speed);
+        this.loops = Math.max(1, loops);
+        this.target = target;
+        for (int i = 0; i < POOL; i++) {
+            free.add(new BeaconCycle(64));
+        }
+    }
+
+    /**
+     * Builds a replay from startReplay options: name (a recording under recordingsDir) or
+     * synthetic ({beacons, cycles, interval, range, walkSpeed, seed}), speed (1 real time,
+     * 0 as fast as possible, default 1) and loops (default 1).
+     */
+    static ReplaySource fromOptions(File recordingsDir, BeaconRegistry registry, JSONObject options, Target target)
+            throws IOException {
+        JSONObject synthetic = options.optJSONObject("synthetic");
+        File recording = null;
+        if (synthetic == null) {
+            recording = new File(recordingsDir, recordingName(options.optString("name", "")));
+            if (!recording.isDirectory()) {
+                throw new IOException("No recording named " + options.optString("name"));
+            }
+        }
+        return new ReplaySource(recording, synthetic, registry, options.optDouble("speed", 1.0),
+            options.optInt("loops", 1), target);
+    }
+
+    /**
+     * Validates a recording name; names become directory names, so only letters, digits,
+     * '-' and '_' are allowed.
+     */
+    static String recordingName(String name) {
+        if (!name.matches("[A-Za-z0-9_-]{1,64}")) {
+            throw new IllegalArgumentException("Recording names are 1-64 letters, digits, '-' or '_'");
+        }
+        return name;
+    }
+
+    synchronized void start() {
+        worker = new Thread(this::run, "BeaconReplay");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stops the worker; the target's finished() still runs once.
+     */
+    synchronized void stop() {
+        stopped = true;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    boolean isRunning() {
+        return endNanos == 0;
+    }
+
+    private void run() {
+        Exception error = null;
+        startNanos = System.nanoTime();
+        long clockBase = System.currentTimeMillis();
+        long replayed = 0;
+        try {
+            for (int loop = 0; loop < loops && !stopped; loop++) {
+                Feed feed = synthetic != null ? new SyntheticFeed(synthetic, registry) : recordingFeed();
+                try {
+                    long first = Long.MIN_VALUE;
+                    long last = 0;
+                    while (!stopped) {
+                        BeaconCycle cycle = free.take();
+                        if (!feed.next(cycle)) {
+                            free.add(cycle);
+                            break;
+                        }
+                        if (first == Long.MIN_VALUE) {
+                            first = feed.timestamp();
+                        }
+                        last = feed.timestamp() - first;
+                        long now = clockBase + replayed + last;
+                        pace(replayed + last);
+                        cycles++;
+                        beacons += cycle.size();
+                        target.deliver(cycle, now, () -> recycle(cycle));
+                    }
+                    // The next loop continues the clock a second after this one ended
+                    replayed += last + 1000;
+                } finally {
+                    feed.close();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            error = e;
+        }
+        synchronized (this) {
+            readDone = true;
+            readError = error;
+        }
+        finishIfProcessed();
+    }
+
+    private void recycle(BeaconCycle cycle) {
+        free.add(cycle);
+        synchronized (this) {
+            processed++;
+        }
+        finishIfProcessed();
+    }
+
+    /**
+     * Stamps the end and reports it once reading is done and the pipeline has been through
+     * every cycle, so the rates cover processing and not just reading ahead.
+     */
+    private void finishIfProcessed() {
+        Exception error;
+        synchronized (this) {
+            if (!readDone || processed < cycles || endNanos != 0) {
+                return;
+            }
+            endNanos = System.nanoTime();
+            error = readError;
+        }
+        target.finished(this, error);
+    }
+
+    private Feed recordingFeed() throws IOException {
+        EventJournal.CycleReader reader = new EventJournal.CycleReader(recording);
+        return new Feed() {
+            @Override
+            public boolean next(BeaconCycle cycle) throws IOException {
+                return reader.next(cycle);
+            }
+
+            @Override
+            public long timestamp() {
+                return reader.timestamp();
+            }
+
+            @Override
+            public void close() {
+                reader.close();
+            }
+        };
+    }
+
+    /**
+     * Waits until offsetMs of recorded time is due at the replay speed.
+     */
+    private void pace(long offsetMs) throws InterruptedException {
+        if (speed == 0) {
+            return;
+        }
+        long dueMs = (long) (offsetMs / speed);
+        long elapsedMs = (System.nanoTime() - startNanos) / 1000000;
+        if (dueMs > elapsedMs) {
+            Thread.sleep(dueMs - elapsedMs);
+        } else if (elapsedMs - dueMs > maxBehindMs) {
+            maxBehindMs = elapsedMs - dueMs;
+        }
+    }
+
+    /**
+     * A walker moving between random waypoints through a square grid of beacons 5 m apart,
+     * ranging those within range with noisy distances and log-distance RSSI.
+     */
+    private static final class SyntheticFeed implements Feed {
+        private static final double SPACING = 5.0;
+
+        private final Random random;
+        private final int cycles;
+        private final long interval;
+        private final double range;
+        private final double step;
+        private final long[] msb;
+        private final long[] lsb;
+        private final int[] majorMinor;
+        private final double[] bx;
+        private final double[] by;
+        private final double side;
+        private double x;
+        private double y;
+        private double targetX;
+        private double targetY;
+        private int produced;
+
+        SyntheticFeed(JSONObject options, BeaconRegistry registry) {
+            random = new Random(options.optLong("seed", 1));
+            int count = Math.max(1, options.optInt("beacons", 500));
+            cycles = Math.max(1, options.optInt("cycles", 10000));
+            interval = Math.max(1, options.optLong("interval", 1000));
+            range = options.optDouble("range", 25.0);
+            step = options.optDouble("walkSpeed", 1.4) * interval / 1000.0;
+
+            msb = new long[count];
+            lsb = new long[count];
+            majorMinor = new int[count];
+            bx = new double[count];
+            by = new double[count];
+            int columns = (int) Math.ceil(Math.sqrt(count));
+            side = columns * SPACING;
+            int used = 0;
+            synchronized (registry) {
+                for (int index = 0; index < registry.highWater() && used < count; index++) {
+                    if (registry.contains(index)) {
+                        msb[used] = registry.uuidMsb(index);
+                        lsb[used] = registry.uuidLsb(index);
+                        majorMinor[used++] = BeaconIdMap.pack(registry.major(index), registry.minor(index));
+                    }
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                if (i >= used) {
+                    msb[i] = SYNTHETIC_MSB;
+                    lsb[i] = SYNTHETIC_LSB;
+                    majorMinor[i] = BeaconIdMap.pack(i >>> 16, i & 0xFFFF);
+                }
+                bx[i] = (i % columns) * SPACING;
+                by[i] = (i / columns) * SPACING;
+            }
+            x = random.nextDouble() * side;
+            y = random.nextDouble() * side;
+            pickTarget();
+        }
+
+        private void pickTarget() {
+            targetX = random.nextDouble() * side;
+            targetY = random.nextDouble() * side;
+        }
+
+        @Override
+        public boolean next(BeaconCycle cycle) {
+            if (produced == cycles) {
+                return false;
+            }
+            produced++;
+            double dx = targetX - x;
+            double dy = targetY - y;
+            double remaining = Math.sqrt(dx * dx + dy * dy);
+            if (remaining <= step) {
+                x = targetX;
+                y = targetY;
+                pickTarget();
+            } else {
+                x += dx / remaining * step;
+                y += dy / remaining * step;
+            }
+
+            cycle.clear();
+            for (int i = 0; i < msb.length; i++) {
+                double ex = bx[i] - x;
+                double ey = by[i] - y;
+                double distance = Math.sqrt(ex * ex + ey * ey);
+                if (distance > range) {
+                    continue;
+                }
+                double measured = Math.max(0.1, distance * (1 + 0.15 * random.nextGaussian()));
+                int rssi = (int) Math.round(-59 - 20 * Math.log10(Math.max(0.1, distance))
+                    + 2 * random.nextGaussian());
+                cycle.add(msb[i], lsb[i], majorMinor[i], measured, rssi);
+            }
+            return true;
+        }
+
+        @Override
+        public long timestamp() {
+            return produced * interval;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("source", synthetic != null ? "synthetic" : recording.getName());
+        stats.put("speed", speed);
+        stats.put("running", isRunning());
+        stats.put("stopped", stopped);
+        long done = cycles;
+        long end = endNanos != 0 ? endNanos : System.nanoTime();
+        double seconds = startNanos != 0 ? (end - startNanos) / 1e9 : 0;
+        stats.put("cycles", done);
+        stats.put("beacons", beacons);
+        stats.put("elapsedMs", Math.round(seconds * 1000));
+        stats.put("cyclesPerSecond", seconds > 0 ? done / seconds : 0);
+        stats.put("beaconsPerSecond", seconds > 0 ? beacons / seconds : 0);
+        stats.put("maxBehindMs", maxBehindMs);
+        return stats;
+    }
+}
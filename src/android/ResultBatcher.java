@@ -0,0 +1,197 @@
+package com.example;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Coalescing buffer between the ranging callback and the WebView.
+ *
+ * Ranging cycles are offered record by record; records for the same beacon are
+ * merged into the latest value until the next flush, so a batch carries each beacon
+ * at most once no matter how many cycles it spans. Pending records are capped at
+ * maxPending (the stalest one is dropped to make room) and, when maxInFlight is set,
+ * no new batch is drained while that many batches are still waiting for an ack from
+ * JS, so a slow consumer gets fewer, fuller batches instead of a growing queue.
+ */
+final class ResultBatcher {
+    private final long flushIntervalMs;
+    private final int maxBatchSize;
+    private final int maxPending;
+    private final int maxInFlight;
+    private final long ackTimeoutMs;
+
+    private final BeaconIdMap pending = new BeaconIdMap();
+    private String[] events = new String[pending.capacity()];
+    private double[] distances = new double[pending.capacity()];
+    private int[] rssis = new int[pending.capacity()];
+    private long[] updatedSeq = new long[pending.capacity()];
+    private long seq;
+
+    private int inFlight;
+    private long lastSendTime;
+
+    private long cyclesOffered;
+    private long recordsOffered;
+    private long recordsCoalesced;
+    private long recordsDropped;
+    private long batchesSent;
+    private long batchesDeferred;
+    private long ackTimeouts;
+
+    ResultBatcher(long flushIntervalMs, int maxBatchSize, int maxPending, int maxInFlight, long ackTimeoutMs) {
+        this.flushIntervalMs = flushIntervalMs;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxPending = Math.max(this.maxBatchSize, maxPending);
+        this.maxInFlight = maxInFlight;
+        this.ackTimeoutMs = ackTimeoutMs;
+    }
+
+    static ResultBatcher fromOptions(JSONObject options) {
+        return new ResultBatcher(
+            options.optLong("flushInterval", 1000),
+            options.optInt("maxBatchSize", 200),
+            options.optInt("maxPending", 1000),
+            options.optInt("maxInFlight", 0),
+            options.optLong("ackTimeout", 10000));
+    }
+
+    long getFlushIntervalMs() {
+        return flushIntervalMs;
+    }
+
+    /**
+     * Merges one record into the pending batch. event is null for snapshot records.
+     */
+    synchronized void offer(String event, long msb, long lsb, int majorMinor, double distance, int rssi) {
+        recordsOffered++;
+        int handle = pending.get(msb, lsb, majorMinor);
+
+        if (handle != BeaconIdMap.NONE) {
+            recordsCoalesced++;
+            String previous = events[handle];
+            if (BeaconTracker.ENTERED.equals(previous) && BeaconTracker.EXITED.equals(event)) {
+                // JS never saw it arrive, so it need not see it leave either
+                pending.remove(handle);
+                return;
+            }
+            if (BeaconTracker.ENTERED.equals(previous) && BeaconTracker.CHANGED.equals(event)) {
+                event = BeaconTracker.ENTERED;
+            } else if (BeaconTracker.EXITED.equals(previous) && BeaconTracker.ENTERED.equals(event)) {
+                event = BeaconTracker.CHANGED;
+            }
+        } else {
+            if (pending.size() >= maxPending) {
+                dropStalest();
+            }
+            handle = pending.put(msb, lsb, majorMinor);
+            if (handle >= events.length) {
+                events = Arrays.copyOf(events, pending.capacity());
+                distances = Arrays.copyOf(distances, pending.capacity());
+                rssis = Arrays.copyOf(rssis, pending.capacity());
+                updatedSeq = Arrays.copyOf(updatedSeq, pending.capacity());
+            }
+        }
+
+        events[handle] = event;
+        distances[handle] = distance;
+        rssis[handle] = rssi;
+        updatedSeq[handle] = seq++;
+    }
+
+    synchronized void endCycle() {
+        cyclesOffered++;
+    }
+
+    /**
+     * True when enough records are pending to flush without waiting for the interval.
+     */
+    synchronized boolean isFull() {
+        return pending.size() >= maxBatchSize;
+    }
+
+    /**
+     * Hands up to maxBatchSize pending records to the listener and returns how many it got;
+     * 0 when there is nothing to send or the consumer still has maxInFlight batches unacknowledged.
+     */
+    synchronized int drain(BeaconTracker.Listener listener, long now) throws JSONException {
+        if (pending.size() == 0) {
+            return 0;
+        }
+        if (maxInFlight > 0 && inFlight >= maxInFlight) {
+            if (now - lastSendTime < ackTimeoutMs) {
+                batchesDeferred++;
+                return 0;
+            }
+            // Consumer never acked; assume those batches are gone rather than stall forever
+            ackTimeouts++;
+            inFlight = 0;
+        }
+
+        int drained = 0;
+        for (int handle = 0; handle < pending.highWater() && drained < maxBatchSize; handle++) {
+            if (pending.isLive(handle)) {
+                listener.onTransition(events[handle], pending.hi(handle), pending.lo(handle), pending.ext(handle),
+                    distances[handle], rssis[handle]);
+                events[handle] = null;
+                pending.remove(handle);
+                drained++;
+            }
+        }
+
+        inFlight++;
+        lastSendTime = now;
+        batchesSent++;
+        return drained;
+    }
+
+    /**
+     * Counts a result sent to the batched consumer outside a batch (an immediate background
+     * event): JS acks every result it gets, so it is in flight like a batch.
+     */
+    synchronized void sentUnbatched(long now) {
+        if (maxInFlight > 0) {
+            inFlight++;
+            lastSendTime = now;
+        }
+    }
+
+    synchronized void ack() {
+        if (inFlight > 0) {
+            inFlight--;
+        }
+    }
+
+    synchronized JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("flushInterval", flushIntervalMs);
+        stats.put("maxBatchSize", maxBatchSize);
+        stats.put("maxPending", maxPending);
+        stats.put("maxInFlight", maxInFlight);
+        stats.put("pending", pending.size());
+        stats.put("inFlight", inFlight);
+        stats.put("cyclesOffered", cyclesOffered);
+        stats.put("recordsOffered", recordsOffered);
+        stats.put("recordsCoalesced", recordsCoalesced);
+        stats.put("recordsDropped", recordsDropped);
+        stats.put("batchesSent", batchesSent);
+        stats.put("batchesDeferred", batchesDeferred);
+        stats.put("ackTimeouts", ackTimeouts);
+        return stats;
+    }
+
+    private void dropStalest() {
+        int stalest = BeaconIdMap.NONE;
+        for (int handle = 0; handle < pending.highWater(); handle++) {
+            if (pending.isLive(handle) && (stalest == BeaconIdMap.NONE || updatedSeq[handle] < updatedSeq[stalest])) {
+                stalest = handle;
+            }
+        }
+        if (stalest != BeaconIdMap.NONE) {
+            events[stalest] = null;
+            pending.remove(stalest);
+            recordsDropped++;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.example;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Scan lifecycle as an explicit state machine: IDLE, STARTING, SCANNING, STOPPING.
+ *
+ * startScanning/stopScanning only record the wanted state and queue their reply; a single
+ * worker thread then moves the machine towards the latest wanted state and answers every
+ * reply queued meanwhile. Commands that arrive while the worker is busy therefore coalesce:
+ * start, stop, start collapses into at most one start. Each reply reports the outcome for
+ * what its command asked for, or that a later command superseded it. Changes that must not
+ * overlap a scan (such as the parser list) run on the same worker through {@link #whenIdle}.
+ *
+ * The actual ranging calls go through {@link Driver}, so the machine knows nothing about
+ * AltBeacon. State is held in atomics and may be read from any thread.
+ */
+final class ScanLifecycle {
+    enum State { IDLE, STARTING, SCANNING, STOPPING }
+
+    interface Driver {
+        /**
+         * Begins ranging with the startScanning options (may be null).
+         */
+        void start(JSONObject options) throws Exception;
+
+        void stop() throws Exception;
+    }
+
+    /**
+     * Where the answer to one start/stop command goes.
+     */
+    interface Reply {
+        void success(String message);
+
+        void error(String message);
+    }
+
+    private static final class Target {
+        final boolean scanning;
+        final JSONObject options;
+
+        Target(boolean scanning, JSONObject options) {
+            this.scanning = scanning;
+            this.options = options;
+        }
+    }
+
+    private static final class Pending {
+        final boolean scanning;
+        final Reply reply;
+
+        Pending(boolean scanning, Reply reply) {
+            this.scanning = scanning;
+            this.reply = reply;
+        }
+    }
+
+    private static final Target STOP = new Target(false, null);
+
+    private final Driver driver;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final AtomicReference<State> state = new AtomicReference<>(State.IDLE);
+    private final AtomicReference<Target> target = new AtomicReference<>(STOP);
+    private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong transitions = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    ScanLifecycle(Driver driver) {
+        this.driver = driver;
+    }
+
+    State getState() {
+        return state.get();
+    }
+
+    void start(JSONObject options, Reply reply) {
+        submit(new Target(true, options), reply);
+    }
+
+    void stop(Reply reply) {
+        submit(STOP, reply);
+    }
+
+    /**
+     * Runs change on the worker if the machine is idle when its turn comes, so no start can
+     * begin halfway through it; otherwise answers reply with busy. Start and stop commands
+     * queued before it are reconciled first.
+     */
+    void whenIdle(Runnable change, String busy, Reply reply) {
+        commands.incrementAndGet();
+        executor.execute(() -> {
+            if (state.get() != State.IDLE) {
+                reply.error(busy);
+                return;
+            }
+            change.run();
+        });
+    }
+
+    /**
+     * Runs change on the worker if the machine is scanning when its turn comes, to adjust the
+     * running scan without racing a stop; otherwise drops it.
+     */
+    void whenScanning(Runnable change) {
+        executor.execute(() -> {
+            if (state.get() == State.SCANNING) {
+                change.run();
+            }
+        });
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void submit(Target next, Reply reply) {
+        commands.incrementAndGet();
+        // Target first, then the reply: a worker that sees the reply also sees this target
+        target.set(next);
+        pending.add(new Pending(next.scanning, reply));
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::reconcile);
+        }
+    }
+
+    /**
+     * Runs on the worker thread only, so transitions never race each other; the CAS on
+     * state just documents and checks the expected edge.
+     */
+    private void reconcile() {
+        scheduled.set(false);
+        List<Pending> replies = new ArrayList<>();
+        for (Pending next = pending.poll(); next != null; next = pending.poll()) {
+            replies.add(next);
+        }
+        Target wanted = target.get();
+
+        boolean changed = false;
+        String failure = null;
+        if (wanted.scanning && state.get() == State.IDLE) {
+            transition(State.IDLE, State.STARTING);
+            try {
+                driver.start(wanted.options);
+                transition(State.STARTING, State.SCANNING);
+                changed = true;
+            } catch (Exception e) {
+                failure = e.getMessage();
+                failures.incrementAndGet();
+                transition(State.STARTING, State.IDLE);
+                // Do not retry on the next command unless it asks again
+                target.compareAndSet(wanted, STOP);
+            }
+        } else if (!wanted.scanning && state.get() == State.SCANNING) {
+            transition(State.SCANNING, State.STOPPING);
+            try {
+                driver.stop();
+                transition(State.STOPPING, State.IDLE);
+                changed = true;
+            } catch (Exception e) {
+                failure = e.getMessage();
+                failures.incrementAndGet();
+                transition(State.STOPPING, State.SCANNING);
+                target.compareAndSet(wanted, new Target(true, null));
+            }
+        }
+
+        boolean scanning = state.get() == State.SCANNING;
+        for (Pending reply : replies) {
+            if (reply.scanning == scanning) {
+                reply.reply.success(scanning
+                    ? (changed ? "Started scanning for beacons" : "Already scanning")
+                    : (changed ? "Stopped scanning for beacons" : "Not scanning"));
+            } else if (failure != null) {
+                reply.reply.error((reply.scanning ? "Error starting beacon scanning: "
+                    : "Error stopping beacon scanning: ") + failure);
+            } else {
+                reply.reply.error(reply.scanning ? "Superseded by stopScanning" : "Superseded by startScanning");
+            }
+        }
+    }
+
+    private void transition(State from, State to) {
+        if (!state.compareAndSet(from, to)) {
+            throw new IllegalStateException("Scan state was " + state.get() + ", expected " + from);
+        }
+        transitions.incrementAndGet();
+    }
+
+    JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("state", state.get().name());
+        stats.put("commands", commands.get());
+        stats.put("transitions", transitions.get());
+        stats.put("failures", failures.get());
+        return stats;
+    }
+}
@@ -0,0 +1,162 @@
+package com.example;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Adapts the foreground between-scan period to recent ranging activity.
+ *
+ * After every cycle it looks at what changed: a beacon that was not in the previous
+ * cycle, or a distance that moved by more than fastDistanceChange meters, snaps the
+ * period down to its minimum so a walking user is followed closely. Cycles with only
+ * known, steady beacons back the period off by backoffFactor up to the stable ceiling,
+ * and empty cycles keep backing off up to the maximum so an idle device barely scans.
+ * With adaptive off the configured periods are applied as they are.
+ */
+final class ScanScheduler {
+    private final boolean adaptive;
+    private final long scanPeriod;
+    private final long minBetweenScanPeriod;
+    private final long stableBetweenScanPeriod;
+    private final long maxBetweenScanPeriod;
+    private final long backgroundScanPeriod;
+    private final long backgroundBetweenScanPeriod;
+    private final double backoffFactor;
+    private final double fastDistanceChange;
+
+    private long betweenScanPeriod;
+    private long cycle;
+    private long adjustments;
+
+    private final BeaconIdMap previous = new BeaconIdMap();
+    private long[] seenCycle = new long[previous.capacity()];
+    private double[] lastDistance = new double[previous.capacity()];
+
+    ScanScheduler(boolean adaptive, long scanPeriod, long minBetweenScanPeriod, long stableBetweenScanPeriod,
+                  long maxBetweenScanPeriod, long backgroundScanPeriod, long backgroundBetweenScanPeriod,
+                  double backoffFactor, double fastDistanceChange) {
+        this.adaptive = adaptive;
+        this.scanPeriod = scanPeriod;
+        this.minBetweenScanPeriod = minBetweenScanPeriod;
+        this.maxBetweenScanPeriod = Math.max(minBetweenScanPeriod, maxBetweenScanPeriod);
+        this.stableBetweenScanPeriod = Math.min(Math.max(minBetweenScanPeriod, stableBetweenScanPeriod),
+            this.maxBetweenScanPeriod);
+        this.backgroundScanPeriod = backgroundScanPeriod;
+        this.backgroundBetweenScanPeriod = backgroundBetweenScanPeriod;
+        this.backoffFactor = Math.max(1, backoffFactor);
+        this.fastDistanceChange = fastDistanceChange;
+        this.betweenScanPeriod = minBetweenScanPeriod;
+    }
+
+    /**
+     * The fixed schedule the plugin has always used: scan 1.1 s, pause 2.2 s; 5 s / 60 s in background.
+     */
+    static ScanScheduler defaults() {
+        return new ScanScheduler(false, 1100, 2200, 2200, 2200, 5000, 60000, 1, 0);
+    }
+
+    static ScanScheduler fromOptions(JSONObject options) {
+        boolean adaptive = options.optBoolean("adaptive", false);
+        long between = options.optLong("betweenScanPeriod", 2200);
+        return new ScanScheduler(
+            adaptive,
+            options.optLong("scanPeriod", 1100),
+            adaptive ? options.optLong("minBetweenScanPeriod", 0) : between,
+            adaptive ? options.optLong("stableBetweenScanPeriod", 5000) : between,
+            adaptive ? options.optLong("maxBetweenScanPeriod", 30000) : between,
+            options.optLong("backgroundScanPeriod", 5000),
+            options.optLong("backgroundBetweenScanPeriod", 60000),
+            options.optDouble("backoffFactor", 2),
+            options.optDouble("fastDistanceChange", 1.0));
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    long getScanPeriod() {
+        return scanPeriod;
+    }
+
+    long getBackgroundScanPeriod() {
+        return backgroundScanPeriod;
+    }
+
+    long getBackgroundBetweenScanPeriod() {
+        return backgroundBetweenScanPeriod;
+    }
+
+    synchronized long getBetweenScanPeriod() {
+        return betweenScanPeriod;
+    }
+
+    /**
+     * Records one beacon of the cycle that is about to be closed by {@link #endCycle(int, boolean)}.
+     * Returns true if it counts as activity.
+     */
+    synchronized boolean observe(long msb, long lsb, int majorMinor, double distance) {
+        if (!adaptive) {
+            return false;
+        }
+        int sizeBefore = previous.size();
+        int handle = previous.put(msb, lsb, majorMinor);
+        if (handle >= seenCycle.length) {
+            seenCycle = Arrays.copyOf(seenCycle, previous.capacity());
+            lastDistance = Arrays.copyOf(lastDistance, previous.capacity());
+        }
+
+        boolean active = previous.size() != sizeBefore || seenCycle[handle] < cycle - 1
+            || (distance >= 0 && lastDistance[handle] >= 0
+                && Math.abs(distance - lastDistance[handle]) > fastDistanceChange);
+        seenCycle[handle] = cycle;
+        lastDistance[handle] = distance;
+        return active;
+    }
+
+    /**
+     * Closes a cycle and returns the between-scan period to use from now on.
+     */
+    synchronized long endCycle(int beaconCount, boolean active) {
+        if (!adaptive) {
+            return betweenScanPeriod;
+        }
+
+        // Forget beacons gone for a while so the table only holds what is around
+        for (int handle = 0; handle < previous.highWater(); handle++) {
+            if (previous.isLive(handle) && seenCycle[handle] < cycle - 1) {
+                previous.remove(handle);
+            }
+        }
+        cycle++;
+
+        long next;
+        if (active) {
+            next = minBetweenScanPeriod;
+        } else {
+            long ceiling = beaconCount > 0 ? stableBetweenScanPeriod : maxBetweenScanPeriod;
+            next = Math.min(ceiling, Math.max(1000, (long) (betweenScanPeriod * backoffFactor)));
+            next = Math.max(next, minBetweenScanPeriod);
+        }
+        if (next != betweenScanPeriod) {
+            adjustments++;
+            betweenScanPeriod = next;
+        }
+        return next;
+    }
+
+    synchronized JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("adaptive", adaptive);
+        stats.put("scanPeriod", scanPeriod);
+        stats.put("betweenScanPeriod", betweenScanPeriod);
+        stats.put("minBetweenScanPeriod", minBetweenScanPeriod);
+        stats.put("stableBetweenScanPeriod", stableBetweenScanPeriod);
+        stats.put("maxBetweenScanPeriod", maxBetweenScanPeriod);
+        stats.put("backgroundScanPeriod", backgroundScanPeriod);
+        stats.put("backgroundBetweenScanPeriod", backgroundBetweenScanPeriod);
+        stats.put("adjustments", adjustments);
+        return stats;
+    }
+}
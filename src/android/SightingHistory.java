@@ -0,0 +1,395 @@
+package com.example;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Bounded history of beacon visits for dwell-time and visit queries.
+ *
+ * Sightings of a beacon less than visitGap ms apart make one visit. Closed visits are kept at
+ * full resolution (beacon handle, first and last sighting) in a ring of at most maxVisits;
+ * once older than fineHorizon ms, or when the ring is full, they are folded into per-beacon
+ * buckets of bucket ms (dwell and visit count), themselves a ring of at most maxBuckets whose
+ * oldest entries are dropped. A beacon whose last bucket is dropped, with no visit open or
+ * retained, is forgotten, so its slot goes to the next new beacon; only beacons still holding
+ * history count towards maxBeacons. All storage is flat primitive arrays that grow up to these
+ * caps, so memory is bounded by maxBeacons, maxVisits and maxBuckets whatever the session
+ * length.
+ * Queries touch only the buckets, the visits in the window and one slot per beacon.
+ */
+final class SightingHistory {
+    /**
+     * Receives dwell totals per beacon; lastSeen is the beacon's last sighting overall.
+     */
+    interface DwellListener {
+        void onDwell(long msb, long lsb, int majorMinor, long dwellMs, int visits, long lastSeen)
+            throws JSONException;
+    }
+
+    /**
+     * Receives full-resolution visits; end is the last sighting so far for an open visit.
+     */
+    interface VisitListener {
+        void onVisit(long msb, long lsb, int majorMinor, long start, long end, boolean open) throws JSONException;
+    }
+
+    private static final int INITIAL_RING = 256;
+    // Approximate bytes per beacon: identity map slot plus openSince, lastSeen, lastBucket and
+    // the two reference counts
+    private static final int BEACON_BYTES = 68;
+    private static final int VISIT_BYTES = 20;
+    private static final int BUCKET_BYTES = 20;
+
+    private final long visitGapMs;
+    private final long fineHorizonMs;
+    private final long bucketMs;
+    private final int maxBeacons;
+    private final int maxVisits;
+    private final int maxBuckets;
+
+    private final BeaconIdMap ids = new BeaconIdMap();
+    // First sighting of the open visit, 0 when none is open
+    private long[] openSince = new long[ids.capacity()];
+    private long[] lastSeen = new long[ids.capacity()];
+    // Slot of the beacon's newest bucket, checked against the slot's owner before use
+    private int[] lastBucket = new int[ids.capacity()];
+    // Closed visits and buckets held for the beacon; at zero with no open visit it is evicted
+    private int[] visitRefs = new int[ids.capacity()];
+    private int[] bucketRefs = new int[ids.capacity()];
+
+    // Closed visits, oldest at visitFirst
+    private int[] visitBeacon;
+    private long[] visitStart;
+    private long[] visitEnd;
+    private int visitFirst;
+    private int visitCount;
+
+    // Folded visits, oldest at bucketFirst
+    private int[] bucketBeacon;
+    private long[] bucketStart;
+    private int[] bucketDwell;
+    private int[] bucketVisits;
+    private int bucketFirst;
+    private int bucketCount;
+
+    // Visits that ended at or before this are only known through buckets
+    private long foldedUntil;
+    private long untracked;
+    private long evicted;
+    private long droppedBuckets;
+    private long lastSweep;
+
+    private SightingHistory(long visitGapMs, long fineHorizonMs, long bucketMs, int maxBeacons, int maxVisits,
+                            int maxBuckets) {
+        this.visitGapMs = visitGapMs;
+        this.fineHorizonMs = fineHorizonMs;
+        this.bucketMs = Math.max(1000, bucketMs);
+        this.maxBeacons = Math.max(1, maxBeacons);
+        this.maxVisits = Math.max(1, maxVisits);
+        this.maxBuckets = Math.max(1, maxBuckets);
+
+        int visits = Math.min(INITIAL_RING, this.maxVisits);
+        visitBeacon = new int[visits];
+        visitStart = new long[visits];
+        visitEnd = new long[visits];
+        int buckets = Math.min(INITIAL_RING, this.maxBuckets);
+        bucketBeacon = new int[buckets];
+        bucketStart = new long[buckets];
+        bucketDwell = new int[buckets];
+        bucketVisits = new int[buckets];
+    }
+
+    /**
+     * Builds the history from setHistory options.
+     */
+    static SightingHistory fromOptions(JSONObject options) {
+        return new SightingHistory(
+            options.optLong("visitGap", 30000),
+            options.optLong("fineHorizon", 15 * 60000),
+            options.optLong("bucket", 300000),
+            options.optInt("maxBeacons", 4096),
+            options.optInt("maxVisits", 20000),
+            options.optInt("maxBuckets", 100000));
+    }
+
+    synchronized void record(long msb, long lsb, int majorMinor, long now) {
+        int handle = ids.get(msb, lsb, majorMinor);
+        if (handle == BeaconIdMap.NONE) {
+            if (ids.size() >= maxBeacons) {
+                untracked++;
+                return;
+            }
+            handle = ids.put(msb, lsb, majorMinor);
+            if (handle >= openSince.length) {
+                openSince = Arrays.copyOf(openSince, ids.capacity());
+                lastSeen = Arrays.copyOf(lastSeen, ids.capacity());
+                lastBucket = Arrays.copyOf(lastBucket, ids.capacity());
+                visitRefs = Arrays.copyOf(visitRefs, ids.capacity());
+                bucketRefs = Arrays.copyOf(bucketRefs, ids.capacity());
+            }
+            openSince[handle] = 0;
+            lastBucket[handle] = -1;
+            visitRefs[handle] = 0;
+            bucketRefs[handle] = 0;
+        }
+
+        if (openSince[handle] != 0 && now - lastSeen[handle] > visitGapMs) {
+            close(handle);
+        }
+        if (openSince[handle] == 0) {
+            openSince[handle] = now;
+        }
+        lastSeen[handle] = now;
+    }
+
+    /**
+     * Closes visits whose beacon has been gone for visitGap and folds aged visits into
+     * buckets; cheap to call every cycle.
+     */
+    synchronized void sweep(long now) {
+        if (now - lastSweep < visitGapMs / 4) {
+            return;
+        }
+        lastSweep = now;
+        for (int handle = 0; handle < ids.highWater(); handle++) {
+            if (openSince[handle] != 0 && now - lastSeen[handle] > visitGapMs) {
+                close(handle);
+            }
+        }
+        while (visitCount > 0 && visitEnd[visitFirst] < now - fineHorizonMs) {
+            foldOldest();
+        }
+    }
+
+    private void close(int handle) {
+        if (visitCount == visitBeacon.length) {
+            if (visitCount < maxVisits) {
+                growVisits();
+            } else {
+                foldOldest();
+            }
+        }
+        int slot = (visitFirst + visitCount) % visitBeacon.length;
+        visitBeacon[slot] = handle;
+        visitStart[slot] = openSince[handle];
+        visitEnd[slot] = lastSeen[handle];
+        visitCount++;
+        visitRefs[handle]++;
+        openSince[handle] = 0;
+    }
+
+    private void foldOldest() {
+        int slot = visitFirst;
+        int handle = visitBeacon[slot];
+        long start = visitStart[slot];
+        long end = visitEnd[slot];
+        visitFirst = (visitFirst + 1) % visitBeacon.length;
+        visitCount--;
+        foldedUntil = Math.max(foldedUntil, end);
+
+        // The visit counts in the bucket it started in; its dwell is split across the buckets it spans
+        long bucket = start - start % bucketMs;
+        addToBucket(handle, bucket, Math.min(end, bucket + bucketMs) - start, 1);
+        for (bucket += bucketMs; bucket < end; bucket += bucketMs) {
+            addToBucket(handle, bucket, Math.min(end, bucket + bucketMs) - bucket, 0);
+        }
+        // Only now, so dropping the beacon's own oldest bucket above cannot evict it
+        visitRefs[handle]--;
+    }
+
+    private void addToBucket(int handle, long start, long dwellMs, int visits) {
+        int slot = lastBucket[handle];
+        if (slot >= 0 && slot < bucketBeacon.length && bucketBeacon[slot] == handle && bucketStart[slot] == start) {
+            bucketDwell[slot] += (int) dwellMs;
+            bucketVisits[slot] += visits;
+            return;
+        }
+
+        if (bucketCount == bucketBeacon.length) {
+            if (bucketCount < maxBuckets) {
+                growBuckets();
+            } else {
+                int dropped = bucketBeacon[bucketFirst];
+                bucketFirst = (bucketFirst + 1) % bucketBeacon.length;
+                bucketCount--;
+                droppedBuckets++;
+                if (--bucketRefs[dropped] == 0 && visitRefs[dropped] == 0 && openSince[dropped] == 0) {
+                    ids.remove(dropped);
+                    evicted++;
+                }
+            }
+        }
+        slot = (bucketFirst + bucketCount) % bucketBeacon.length;
+        bucketBeacon[slot] = handle;
+        bucketStart[slot] = start;
+        bucketDwell[slot] = (int) dwellMs;
+        bucketVisits[slot] = visits;
+        bucketCount++;
+        bucketRefs[handle]++;
+        lastBucket[handle] = slot;
+    }
+
+    private void growVisits() {
+        int length = Math.min(maxVisits, visitBeacon.length * 2);
+        int[] beacons = new int[length];
+        long[] starts = new long[length];
+        long[] ends = new long[length];
+        for (int i = 0; i < visitCount; i++) {
+            int slot = (visitFirst + i) % visitBeacon.length;
+            beacons[i] = visitBeacon[slot];
+            starts[i] = visitStart[slot];
+            ends[i] = visitEnd[slot];
+        }
+        visitBeacon = beacons;
+        visitStart = starts;
+        visitEnd = ends;
+        visitFirst = 0;
+    }
+
+    private void growBuckets() {
+        int oldLength = bucketBeacon.length;
+        int length = Math.min(maxBuckets, oldLength * 2);
+        int[] beacons = new int[length];
+        long[] starts = new long[length];
+        int[] dwell = new int[length];
+        int[] visits = new int[length];
+        for (int i = 0; i < bucketCount; i++) {
+            int slot = (bucketFirst + i) % oldLength;
+            beacons[i] = bucketBeacon[slot];
+            starts[i] = bucketStart[slot];
+            dwell[i] = bucketDwell[slot];
+            visits[i] = bucketVisits[slot];
+        }
+        for (int handle = 0; handle < ids.highWater(); handle++) {
+            if (lastBucket[handle] >= 0) {
+                lastBucket[handle] = (lastBucket[handle] - bucketFirst + oldLength) % oldLength;
+            }
+        }
+        bucketBeacon = beacons;
+        bucketStart = starts;
+        bucketDwell = dwell;
+        bucketVisits = visits;
+        bucketFirst = 0;
+    }
+
+    /**
+     * Reports dwell time and visit count since the given time for every beacon with a visit in
+     * that window. Windows reaching past fineHorizon are resolved to whole buckets there.
+     * Returns how many beacons were reported.
+     */
+    synchronized int dwell(long since, DwellListener listener) throws JSONException {
+        int beacons = ids.highWater();
+        long[] dwell = new long[beacons];
+        int[] visits = new int[beacons];
+
+        for (int i = 0; i < bucketCount; i++) {
+            int slot = (bucketFirst + i) % bucketBeacon.length;
+            if (bucketStart[slot] + bucketMs > since) {
+                dwell[bucketBeacon[slot]] += bucketDwell[slot];
+                visits[bucketBeacon[slot]] += bucketVisits[slot];
+            }
+        }
+        // Visits are appended when closed, so ends are ordered to within about two gaps
+        for (int i = visitCount - 1; i >= 0; i--) {
+            int slot = (visitFirst + i) % visitBeacon.length;
+            if (visitEnd[slot] < since - 2 * visitGapMs) {
+                break;
+            }
+            if (visitEnd[slot] >= since) {
+                dwell[visitBeacon[slot]] += visitEnd[slot] - Math.max(visitStart[slot], since);
+                visits[visitBeacon[slot]]++;
+            }
+        }
+        for (int handle = 0; handle < beacons; handle++) {
+            if (openSince[handle] != 0 && lastSeen[handle] >= since) {
+                dwell[handle] += lastSeen[handle] - Math.max(openSince[handle], since);
+                visits[handle]++;
+            }
+        }
+
+        int reported = 0;
+        for (int handle = 0; handle < beacons; handle++) {
+            if (visits[handle] > 0 || dwell[handle] > 0) {
+                listener.onDwell(ids.hi(handle), ids.lo(handle), ids.ext(handle), dwell[handle], visits[handle],
+                    lastSeen[handle]);
+                reported++;
+            }
+        }
+        return reported;
+    }
+
+    /**
+     * Reports up to limit full-resolution visits that lasted until since or later, open ones
+     * first and then newest first. Returns how many were reported.
+     */
+    synchronized int visits(long since, int limit, VisitListener listener) throws JSONException {
+        int reported = 0;
+        for (int handle = 0; handle < ids.highWater() && reported < limit; handle++) {
+            if (openSince[handle] != 0 && lastSeen[handle] >= since) {
+                listener.onVisit(ids.hi(handle), ids.lo(handle), ids.ext(handle), openSince[handle],
+                    lastSeen[handle], true);
+                reported++;
+            }
+        }
+        for (int i = visitCount - 1; i >= 0 && reported < limit; i--) {
+            int slot = (visitFirst + i) % visitBeacon.length;
+            if (visitEnd[slot] < since - 2 * visitGapMs) {
+                break;
+            }
+            if (visitEnd[slot] >= since) {
+                int handle = visitBeacon[slot];
+                listener.onVisit(ids.hi(handle), ids.lo(handle), ids.ext(handle), visitStart[slot],
+                    visitEnd[slot], false);
+                reported++;
+            }
+        }
+        return reported;
+    }
+
+    /**
+     * Whether every visit lasting until since or later is still held at full resolution.
+     */
+    synchronized boolean isComplete(long since) {
+        return since > foldedUntil;
+    }
+
+    synchronized void clear() {
+        ids.clear();
+        visitFirst = 0;
+        visitCount = 0;
+        bucketFirst = 0;
+        bucketCount = 0;
+        foldedUntil = 0;
+    }
+
+    /**
+     * Approximate bytes held by the arrays as they are now.
+     */
+    synchronized long memoryBytes() {
+        return (long) openSince.length * BEACON_BYTES + (long) visitBeacon.length * VISIT_BYTES
+            + (long) bucketBeacon.length * BUCKET_BYTES;
+    }
+
+    /**
+     * Approximate bytes the arrays can grow to.
+     */
+    long maxMemoryBytes() {
+        return 2L * maxBeacons * BEACON_BYTES + (long) maxVisits * VISIT_BYTES + (long) maxBuckets * BUCKET_BYTES;
+    }
+
+    synchronized JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("beacons", ids.size());
+        stats.put("untrackedSightings", untracked);
+        stats.put("evictedBeacons", evicted);
+        stats.put("visits", visitCount);
+        stats.put("buckets", bucketCount);
+        stats.put("droppedBuckets", droppedBuckets);
+        stats.put("foldedUntil", foldedUntil);
+        stats.put("memoryBytes", memoryBytes());
+        stats.put("maxMemoryBytes", maxMemoryBytes());
+        return stats;
+    }
+}
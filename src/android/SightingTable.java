@@ -0,0 +1,90 @@
+package com.example;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Last sighting of every beacon ranged recently, so listDetectedBeacons can answer from
+ * memory while scanning is running instead of starting a scan of its own.
+ *
+ * Fed from the main ranging callback; entries older than ttl ms are evicted, so the table
+ * only holds what is around. Slots live in flat primitive arrays keyed by a {@link BeaconIdMap}
+ * and are reused as beacons come and go.
+ */
+final class SightingTable {
+    private final long ttlMs;
+
+    private final BeaconIdMap ids = new BeaconIdMap();
+    private long[] lastSeen = new long[ids.capacity()];
+    private double[] distance = new double[ids.capacity()];
+    private int[] rssi = new int[ids.capacity()];
+    private long lastUpdate;
+    private long lastEviction;
+
+    SightingTable(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    long getTtlMs() {
+        return ttlMs;
+    }
+
+    synchronized void record(long msb, long lsb, int majorMinor, double distance, int rssi, long now) {
+        int handle = ids.put(msb, lsb, majorMinor);
+        if (handle >= lastSeen.length) {
+            lastSeen = Arrays.copyOf(lastSeen, ids.capacity());
+            this.distance = Arrays.copyOf(this.distance, ids.capacity());
+            this.rssi = Arrays.copyOf(this.rssi, ids.capacity());
+        }
+        lastSeen[handle] = now;
+        this.distance[handle] = distance;
+        this.rssi[handle] = rssi;
+        lastUpdate = now;
+    }
+
+    /**
+     * Drops sightings older than the ttl; cheap to call every cycle.
+     */
+    synchronized void evict(long now) {
+        if (now - lastEviction < ttlMs / 4) {
+            return;
+        }
+        lastEviction = now;
+        for (int handle = 0; handle < ids.highWater(); handle++) {
+            if (ids.isLive(handle) && now - lastSeen[handle] > ttlMs) {
+                ids.remove(handle);
+            }
+        }
+    }
+
+    /**
+     * Feeds every sighting at most maxAgeMs old (capped by the ttl) to the listener as a
+     * snapshot record. Returns how many were reported.
+     */
+    synchronized int forEach(long maxAgeMs, long now, BeaconTracker.Listener listener) throws JSONException {
+        long maxAge = Math.min(maxAgeMs, ttlMs);
+        int reported = 0;
+        for (int handle = 0; handle < ids.highWater(); handle++) {
+            if (ids.isLive(handle) && now - lastSeen[handle] <= maxAge) {
+                listener.onTransition(null, ids.hi(handle), ids.lo(handle), ids.ext(handle),
+                    distance[handle], rssi[handle]);
+                reported++;
+            }
+        }
+        return reported;
+    }
+
+    synchronized void clear() {
+        ids.clear();
+    }
+
+    synchronized JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("ttl", ttlMs);
+        stats.put("sightings", ids.size());
+        stats.put("lastUpdate", lastUpdate);
+        return stats;
+    }
+}
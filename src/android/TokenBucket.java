@@ -0,0 +1,41 @@
+package com.example;
+
+/**
+ * Rate limit for one plugin action: up to capacity calls in a burst, refilled at one token
+ * every refillIntervalMs. Replaces the single 5 s window that start, stop and list used to
+ * share, so a burst of taps on one button no longer locks out the others.
+ */
+final class TokenBucket {
+    private final int capacity;
+    private final long refillIntervalMs;
+
+    private double tokens;
+    private long lastRefill;
+    private long rejected;
+
+    TokenBucket(int capacity, long refillIntervalMs) {
+        this.capacity = Math.max(1, capacity);
+        this.refillIntervalMs = Math.max(1, refillIntervalMs);
+        this.tokens = this.capacity;
+    }
+
+    /**
+     * Takes a token if one is available; returns false (and counts a rejection) otherwise.
+     */
+    synchronized boolean tryAcquire(long now) {
+        if (lastRefill != 0) {
+            tokens = Math.min(capacity, tokens + (double) (now - lastRefill) / refillIntervalMs);
+        }
+        lastRefill = now;
+        if (tokens < 1) {
+            rejected++;
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    synchronized long getRejected() {
+        return rejected;
+    }
+}
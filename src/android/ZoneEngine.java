@@ -0,0 +1,226 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Decides which registered zone the user is in and reports only transitions.
+ *
+ * A zone is either one registry entry (the default: the zone id is its position) or a
+ * named group of entries from the zones option; a zone's distance in a cycle is that of its
+ * nearest beacon. The engine keeps one current zone. It enters the nearest zone once that
+ * zone has stayed within enterDistance for enterDwell ms, and leaves the current one once it
+ * has been beyond exitDistance (or unseen) for exitDwell ms. Another zone only takes over
+ * when it is nearer by more than switchMargin meters for enterDwell ms, so two close
+ * beacons do not make the zone flap.
+ */
+final class ZoneEngine {
+    static final String ENTERED = "entered";
+    static final String EXITED = "exited";
+
+    interface Listener {
+        /**
+         * registryIndex is the entry that placed the user in the zone, or -1 if unknown.
+         */
+        void onZoneEvent(String event, int zone, int registryIndex, double distance) throws JSONException;
+    }
+
+    private final double enterDistance;
+    private final double exitDistance;
+    private final long enterDwellMs;
+    private final long exitDwellMs;
+    private final double switchMargin;
+
+    // Named zones; null when every registry entry is its own zone
+    private final String[] zoneIds;
+    private final String[] zoneTitles;
+    private final String[] zoneUrls;
+    private final BeaconIdMap members;
+    private final int[] zoneOfMember;
+
+    private int current = -1;
+    private int currentIndex = -1;
+    private long lastNear;
+    private int candidate = -1;
+    private long candidateSince;
+    private long transitions;
+
+    private ZoneEngine(double enterDistance, double exitDistance, long enterDwellMs, long exitDwellMs,
+                       double switchMargin, String[] zoneIds, String[] zoneTitles, String[] zoneUrls,
+                       BeaconIdMap members, int[] zoneOfMember) {
+        this.enterDistance = enterDistance;
+        this.exitDistance = Math.max(enterDistance, exitDistance);
+        this.enterDwellMs = enterDwellMs;
+        this.exitDwellMs = exitDwellMs;
+        this.switchMargin = switchMargin;
+        this.zoneIds = zoneIds;
+        this.zoneTitles = zoneTitles;
+        this.zoneUrls = zoneUrls;
+        this.members = members;
+        this.zoneOfMember = zoneOfMember;
+    }
+
+    /**
+     * Builds the engine from setZones options. zones, when present, is an array of
+     * {id, title?, url?, beacons: [{uuid, major, minor}]}; a beacon listed in several zones
+     * belongs to the first.
+     */
+    static ZoneEngine fromOptions(JSONObject options) throws JSONException {
+        String[] ids = null;
+        String[] titles = null;
+        String[] urls = null;
+        BeaconIdMap members = null;
+        int[] zoneOfMember = null;
+
+        JSONArray zones = options.optJSONArray("zones");
+        if (zones != null) {
+            ids = new String[zones.length()];
+            titles = new String[zones.length()];
+            urls = new String[zones.length()];
+            members = new BeaconIdMap();
+            zoneOfMember = new int[members.capacity()];
+            for (int zone = 0; zone < zones.length(); zone++) {
+                JSONObject definition = zones.getJSONObject(zone);
+                ids[zone] = definition.getString("id");
+                titles[zone] = definition.optString("title", null);
+                urls[zone] = definition.optString("url", null);
+                JSONArray beacons = definition.getJSONArray("beacons");
+                for (int i = 0; i < beacons.length(); i++) {
+                    JSONObject beacon = beacons.getJSONObject(i);
+                    UUID uuid = UUID.fromString(beacon.getString("uuid"));
+                    int sizeBefore = members.size();
+                    int handle = members.put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(),
+                        BeaconIdMap.pack(beacon.getInt("major"), beacon.getInt("minor")));
+                    if (members.size() == sizeBefore) {
+                        continue;
+                    }
+                    if (handle >= zoneOfMember.length) {
+                        zoneOfMember = Arrays.copyOf(zoneOfMember, members.capacity());
+                    }
+                    zoneOfMember[handle] = zone;
+                }
+            }
+        }
+
+        return new ZoneEngine(
+            options.optDouble("enterDistance", 2.0),
+            options.optDouble("exitDistance", 3.0),
+            options.optLong("enterDwell", 2000),
+            options.optLong("exitDwell", 5000),
+            options.optDouble("switchMargin", 0.5),
+            ids, titles, urls, members, zoneOfMember);
+    }
+
+    /**
+     * Runs one ranging cycle. Distances are taken from the smoother when it tracks the beacon.
+     */
+    synchronized void update(BeaconCycle cycle, BeaconRegistry registry, BeaconSmoother smoother, long now,
+                             Listener listener) throws JSONException {
+        int best = -1;
+        int bestIndex = -1;
+        double bestDistance = Double.MAX_VALUE;
+        int currentCandidateIndex = -1;
+        double currentDistance = Double.MAX_VALUE;
+
+        for (int i = 0; i < cycle.size(); i++) {
+            long msb = cycle.msb(i);
+            long lsb = cycle.lsb(i);
+            int majorMinor = cycle.majorMinor(i);
+            int index = registry.find(msb, lsb, BeaconIdMap.major(majorMinor), BeaconIdMap.minor(majorMinor));
+            int zone = zoneOf(msb, lsb, majorMinor, registry, index);
+            if (zone < 0) {
+                continue;
+            }
+            double distance = cycle.distance(i);
+            int track = smoother != null ? smoother.find(msb, lsb, majorMinor) : -1;
+            if (track >= 0) {
+                distance = smoother.distance(track);
+            }
+            if (distance < 0) {
+                continue;
+            }
+            if (distance < bestDistance) {
+                best = zone;
+                bestIndex = index;
+                bestDistance = distance;
+            }
+            if (zone == current && distance < currentDistance) {
+                currentDistance = distance;
+                currentCandidateIndex = index;
+            }
+        }
+
+        if (current >= 0) {
+            if (currentDistance <= exitDistance) {
+                lastNear = now;
+                if (currentCandidateIndex >= 0) {
+                    currentIndex = currentCandidateIndex;
+                }
+            } else if (now - lastNear >= exitDwellMs) {
+                emit(EXITED, currentDistance, listener);
+                current = -1;
+            }
+        }
+
+        boolean takesOver = best >= 0 && best != current && bestDistance <= enterDistance
+            && (current < 0 || bestDistance + switchMargin < currentDistance);
+        if (!takesOver) {
+            candidate = -1;
+            return;
+        }
+        if (candidate != best) {
+            candidate = best;
+            candidateSince = now;
+        }
+        if (now - candidateSince >= enterDwellMs) {
+            if (current >= 0) {
+                emit(EXITED, currentDistance, listener);
+            }
+            current = best;
+            currentIndex = bestIndex;
+            lastNear = now;
+            candidate = -1;
+            emit(ENTERED, bestDistance, listener);
+        }
+    }
+
+    private int zoneOf(long msb, long lsb, int majorMinor, BeaconRegistry registry, int index) {
+        if (members == null) {
+            return index >= 0 ? registry.position(index) : -1;
+        }
+        int handle = members.get(msb, lsb, majorMinor);
+        return handle >= 0 ? zoneOfMember[handle] : -1;
+    }
+
+    private void emit(String event, double distance, Listener listener) throws JSONException {
+        transitions++;
+        listener.onZoneEvent(event, current, currentIndex, distance == Double.MAX_VALUE ? -1 : distance);
+    }
+
+    /**
+     * Id reported for a zone: the configured id, or the registry position as a string.
+     */
+    String zoneId(int zone) {
+        return zoneIds != null ? zoneIds[zone] : String.valueOf(zone);
+    }
+
+    String zoneTitle(int zone) {
+        return zoneTitles != null ? zoneTitles[zone] : null;
+    }
+
+    String zoneUrl(int zone) {
+        return zoneUrls != null ? zoneUrls[zone] : null;
+    }
+
+    synchronized JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("zones", zoneIds != null ? zoneIds.length : -1);
+        stats.put("currentZone", current >= 0 ? zoneId(current) : JSONObject.NULL);
+        stats.put("transitions", transitions);
+        return stats;
+    }
+}
@@ -7,73 +7,46 @@ document.addEventListener('deviceready', function() {
         return;
     }
     
-    // Add debouncing functionality
-    function debounce(func, wait) {
-        let timeout;
-        return function() {
-            const context = this;
-            const args = arguments;
-            clearTimeout(timeout);
-            timeout = setTimeout(function() {
-                func.apply(context, args);
-            }, wait);
-        };
-    }
-    
     // Define la interfaz BeaconDetectorPlugin
     window.BeaconDetectorPlugin = {
-        // Add a flag to track if operations are in progress
-        _operationInProgress: false,
+        initialize: function(beaconData, options) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.initialize(beaconData, resolve, reject, options);
+            });
+        },
         
-        initialize: function(beaconData) {
+        restoreRegistry: function(options) {
             return new Promise(function(resolve, reject) {
-                window.beaconDetector.initialize(beaconData, resolve, reject);
+                window.beaconDetector.restoreRegistry(options, resolve, reject);
             });
         },
         
-        startScanning: debounce(function() {
-            if (this._operationInProgress) {
-                console.warn("Operation already in progress, please wait");
-                return Promise.reject("Operation already in progress");
-            }
-            
-            this._operationInProgress = true;
-            return new Promise((resolve, reject) => {
-                window.beaconDetector.startScanning(
-                    (result) => {
-                        this._operationInProgress = false;
-                        resolve(result);
-                    },
-                    (error) => {
-                        this._operationInProgress = false;
-                        reject(error);
-                    }
-                );
+        upsertBeacons: function(beaconData, options) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.upsertBeacons(beaconData, resolve, reject, options);
             });
-        }, 5000), // 5 second debounce
+        },
         
-        stopScanning: debounce(function() {
-            if (this._operationInProgress) {
-                console.warn("Operation already in progress, please wait");
-                return Promise.reject("Operation already in progress");
-            }
-            
-            this._operationInProgress = true;
-            return new Promise((resolve, reject) => {
-                window.beaconDetector.stopScanning(
-                    (result) => {
-                        this._operationInProgress = false;
-                        resolve(result);
-                    },
-                    (error) => {
-                        this._operationInProgress = false;
-                        reject(error);
-                    }
-                );
+        removeBeacons: function(beaconData, options) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.removeBeacons(beaconData, resolve, reject, options);
             });
-        }, 5000), // 5 second debounce
+        },
+        
+        // Sent straight through: native coalesces start/stop and rate-limits each action
+        startScanning: function(options) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.startScanning(resolve, reject, options);
+            });
+        },
+        
+        stopScanning: function() {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.stopScanning(resolve, reject);
+            });
+        },
         
-        onBeaconDetected: function(callback) {
+        onBeaconDetected: function(callback, options) {
             console.log("Configurando callback de detección de beacons");
             // Envolvemos el callback original para agregar logs y mejorar la visualización
             const wrappedCallback = function(beacons) {
@@ -88,7 +61,151 @@ document.addEventListener('deviceready', function() {
                 // Solo pasamos los datos al callback sin redirección
                 callback(beacons);
             };
-            window.beaconDetector.onBeaconDetected(wrappedCallback);
+            window.beaconDetector.onBeaconDetected(wrappedCallback, options);
+        },
+        
+        offBeaconDetected: function(id) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.offBeaconDetected(id, resolve, reject);
+            });
+        },
+        
+        setSmoothing: function(options) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.setSmoothing(options, resolve, reject);
+            });
+        },
+        
+        setScanPolicy: function(options) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.setScanPolicy(options, resolve, reject);
+            });
+        },
+        
+        setBeaconLayouts: function(options) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.setBeaconLayouts(options, resolve, reject);
+            });
+        },
+        
+        setBatching: function(options) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.setBatching(options, resolve, reject);
+            });
+        },
+        
+        setZones: function(options) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.setZones(options, resolve, reject);
+            });
+        },
+        
+        onZoneChanged: function(callback) {
+            window.beaconDetector.onZoneChanged(callback);
+        },
+        
+        setPositioning: function(options) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.setPositioning(options, resolve, reject);
+            });
+        },
+        
+        onPositionUpdate: function(callback) {
+            window.beaconDetector.onPositionUpdate(callback);
+        },
+        
+        setBackgroundMode: function(options) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.setBackgroundMode(options, resolve, reject);
+            });
+        },
+        
+        onBackgroundSummary: function(callback) {
+            window.beaconDetector.onBackgroundSummary(callback);
+        },
+        
+        setHistory: function(options) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.setHistory(options, resolve, reject);
+            });
+        },
+        
+        getDwellTimes: function(options) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.getDwellTimes(options, resolve, reject);
+            });
+        },
+        
+        getVisits: function(options) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.getVisits(options, resolve, reject);
+            });
+        },
+        
+        setJournal: function(options) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.setJournal(options, resolve, reject);
+            });
+        },
+        
+        readJournal: function(fromOffset, maxRecords) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.readJournal(fromOffset, maxRecords, resolve, reject);
+            });
+        },
+        
+        ackJournal: function(offset) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.ackJournal(offset, resolve, reject);
+            });
+        },
+        
+        startRecording: function(options) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.startRecording(options, resolve, reject);
+            });
+        },
+        
+        stopRecording: function() {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.stopRecording(resolve, reject);
+            });
+        },
+        
+        startReplay: function(options) {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.startReplay(options, resolve, reject);
+            });
+        },
+        
+        stopReplay: function() {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.stopReplay(resolve, reject);
+            });
+        },
+        
+        // One snapshot; pushed snapshots (an interval) need watchMetrics, a Promise settles once
+        getMetrics: function(options) {
+            if (options && options.interval) {
+                return Promise.reject("getMetrics takes no interval; use watchMetrics");
+            }
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.getMetrics(options, resolve, reject);
+            });
+        },
+        
+        // Pushes a snapshot to callback every options.interval ms (default 1000) until unwatchMetrics
+        watchMetrics: function(callback, options) {
+            const watch = Object.assign({}, options, {interval: (options && options.interval) || 1000});
+            window.beaconDetector.getMetrics(watch, callback, function(error) {
+                console.error("Error en métricas:", error);
+            });
+        },
+        
+        unwatchMetrics: function() {
+            return new Promise(function(resolve, reject) {
+                window.beaconDetector.getMetrics({interval: 0}, resolve, reject);
+            });
         },
         
         isPluginAvailable: function() {
@@ -120,9 +237,9 @@ document.addEventListener('deviceready', function() {
             });
         },
         
-        listDetectedBeacons: function() {
+        listDetectedBeacons: function(options) {
             return new Promise(function(resolve, reject) {
-                window.beaconDetector.listDetectedBeacons(resolve, reject);
+                window.beaconDetector.listDetectedBeacons(resolve, reject, options);
             });
         },
         
@@ -1,23 +1,146 @@
 var exec = require('cordova/exec');
 
+// True while batching is configured with maxInFlight, so delivered batches must be acknowledged
+var ackBatches = false;
+
+// Registry entries by position (null where removed); binary payloads refer to them by position
+var registeredBeacons = [];
+
+var BINARY_EVENTS = [null, 'entered', 'changed', 'exited'];
+var HEX = [];
+for (var h = 0; h < 256; h++) {
+    HEX.push((h < 16 ? '0' : '') + h.toString(16));
+}
+
+function uuidAt(view, offset) {
+    var uuid = '';
+    for (var i = 0; i < 16; i++) {
+        if (i === 4 || i === 6 || i === 8 || i === 10) {
+            uuid += '-';
+        }
+        uuid += HEX[view.getUint8(offset + i)];
+    }
+    return uuid;
+}
+
 var BeaconDetector = {
     /**
      * Initialize the beacon detector with beacon data
-     * @param {Array} beaconData - Array of beacon objects with uuid, major, minor, and url
+     * @param {Array} beaconData - Array of beacon objects with uuid, major, minor, and url, plus
+     *     optional map coordinates x, y (meters) and floor (default 0) for setPositioning.
+     *     Eddystone-UID beacons give namespace (20 hex digits) and instance (12) instead of
+     *     uuid, major and minor; results report them with the two joined as uuid and major
+     *     and minor 0.
      * @param {Function} successCallback - Success callback
      * @param {Function} errorCallback - Error callback
+     * @param {Object} [options] - etag: version tag of beaconData. The registry is saved on the
+     *     device under it, so the next launch can call restoreRegistry() instead.
+     */
+    initialize: function(beaconData, successCallback, errorCallback, options) {
+        registeredBeacons = (beaconData || []).slice();
+        exec(successCallback, errorCallback, 'BeaconDetector', 'initialize',
+            options ? [beaconData, options] : [beaconData]);
+    },
+
+    /**
+     * Load the registry saved by the last initialize/upsertBeacons/removeBeacons, skipping the
+     * JSON round trip of initialize() on warm starts
+     * @param {Object} [options] - Restore options:
+     *     - etag: only restore a registry saved under this etag
+     *     - withEntries: also return the entries, needed to resolve titles and urls when
+     *       decoding binary results (default false)
+     * @param {Function} successCallback - Receives {restored, etag, count, beacons}; call
+     *     initialize() when restored is false
+     * @param {Function} errorCallback - Error callback
      */
-    initialize: function(beaconData, successCallback, errorCallback) {
-        exec(successCallback, errorCallback, 'BeaconDetector', 'initialize', [beaconData]);
+    restoreRegistry: function(options, successCallback, errorCallback) {
+        exec(function(result) {
+            if (result && result.beacons) {
+                registeredBeacons = result.beacons;
+            }
+            if (successCallback) {
+                successCallback(result);
+            }
+        }, errorCallback, 'BeaconDetector', 'restoreRegistry', [options || null]);
+    },
+
+    /**
+     * Add beacons to the registry, or update title and url of registered ones, without
+     * re-sending the whole list. New beacons get positions after the existing ones. A running
+     * startScanning({filterRegistered: true}) re-derives its regions to include them.
+     * @param {Array} beaconData - Beacon objects with uuid, major, minor, title and url, and
+     *     optionally x, y and floor (entries without x and y keep their coordinates)
+     * @param {Function} successCallback - Receives {positions, count}
+     * @param {Function} errorCallback - Error callback
+     * @param {Object} [options] - etag: new version tag to save the registry under
+     */
+    upsertBeacons: function(beaconData, successCallback, errorCallback, options) {
+        exec(function(result) {
+            result.positions.forEach(function(position, i) {
+                registeredBeacons[position] = beaconData[i];
+            });
+            if (successCallback) {
+                successCallback(result);
+            }
+        }, errorCallback, 'BeaconDetector', 'upsertBeacons', [beaconData, options || null]);
+    },
+
+    /**
+     * Remove beacons from the registry. Positions of the remaining beacons do not change.
+     * A running startScanning({filterRegistered: true}) re-derives its regions to match.
+     * @param {Array} beaconData - Objects with uuid, major and minor
+     * @param {Function} successCallback - Receives {positions, count}; position is -1 for
+     *     beacons that were not registered
+     * @param {Function} errorCallback - Error callback
+     * @param {Object} [options] - etag: new version tag to save the registry under
+     */
+    removeBeacons: function(beaconData, successCallback, errorCallback, options) {
+        exec(function(result) {
+            result.positions.forEach(function(position) {
+                if (position >= 0) {
+                    registeredBeacons[position] = null;
+                }
+            });
+            if (successCallback) {
+                successCallback(result);
+            }
+        }, errorCallback, 'BeaconDetector', 'removeBeacons', [beaconData, options || null]);
     },
     
     /**
-     * Start scanning for beacons
+     * Start scanning for beacons. Start and stop requests are applied in order on one native
+     * worker; a request overtaken by a later one before it ran fails with "Superseded by ...".
+     * Fails while a startReplay is running.
      * @param {Function} successCallback - Success callback
      * @param {Function} errorCallback - Error callback
+     * @param {Object} [options] - Scan options:
+     *     - filterRegistered: range only regions derived from the UUIDs/majors passed to
+     *       initialize() and drop any other beacon natively (default false). Regions are
+     *       derived when scanning starts and again whenever initialize, restoreRegistry,
+     *       upsertBeacons or removeBeacons changes the registered beacons. With Eddystone-UID
+     *       enabled a single wildcard region is ranged and frames of unregistered UUIDs or
+     *       namespaces are rejected on their first identifier.
+     *     - maxRegions: most regions to range; beyond that majors are folded into their UUID and
+     *       then a single wildcard region is used, still filtered natively (default 10)
+     *     - maxMajorsPerUuid: majors of one UUID that still get a region each (default 5)
+     *     - sightingTtl: ms a sighting stays in the table listDetectedBeacons answers from
+     *       while scanning (default 10000)
      */
-    startScanning: function(successCallback, errorCallback) {
-        exec(successCallback, errorCallback, 'BeaconDetector', 'startScanning', []);
+    startScanning: function(successCallback, errorCallback, options) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'startScanning', options ? [options] : []);
+    },
+
+    /**
+     * Choose the beacon frame formats to parse; only allowed while not scanning
+     * @param {Object} options - formats: any of 'ibeacon', 'altbeacon', 'eddystone_uid' and
+     *     'eddystone_tlm' (needs 'eddystone_uid'; its frames are attached to the UID beacon
+     *     and only counted). Default ['ibeacon', 'altbeacon']. debugBeaconScanner reports
+     *     accepted and rejected frames per format under layouts.
+     * @param {Function} successCallback - Success callback
+     * @param {Function} errorCallback - Error callback
+     */
+    setBeaconLayouts: function(options, successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'setBeaconLayouts', [options || null]);
     },
     
     /**
@@ -32,11 +155,405 @@ var BeaconDetector = {
     /**
      * Set callback for beacon detection events
      * @param {Function} callback - Callback function that receives beacon data
+     * @param {Object} [options] - Subscription options. By default every scan cycle delivers the
+     *     full array of beacons in range. With mode 'delta' only changes are delivered, as beacon
+     *     objects carrying an extra event field ('entered', 'changed' or 'exited'):
+     *     - exitTimeout: ms without sightings before a beacon is reported as exited (default 10000)
+     *     - distanceThreshold: meters the distance must move to report a change (default 0.5)
+     *     - rssiThreshold: dBm the RSSI must move to report a change (default 5)
+     *     With encoding 'binary' results cross the bridge in the compact format read by
+     *     decodeBeacons() and are decoded before reaching the callback, unless raw is true,
+     *     in which case the callback receives the ArrayBuffer itself.
+     *     Several subscriptions can run side by side: each id (default 'default') has its own
+     *     callback, mode, encoding and filter, and subscribing again with an id replaces it.
+     *     Batching (setBatching) applies to the 'default' subscription only, and only its
+     *     results are acknowledged when maxInFlight is set. Filters are
+     *     evaluated natively before results are built:
+     *     - topK: only the K nearest beacons by smoothed distance, nearest first
+     *     - maxDistance: meters beyond which beacons are left out
+     *     - minRssi: dBm below which beacons are left out
+     *     - uuids / majors: allow-lists of UUID strings and major numbers
+     *     - registeredOnly: only beacons passed to initialize/upsertBeacons (default false)
+     *     In delta mode a beacon that leaves the filtered set is reported as exited.
      */
-    onBeaconDetected: function(callback) {
-        exec(callback, function(error) {
+    onBeaconDetected: function(callback, options) {
+        var raw = !!(options && options.raw);
+        var batched = ((options && options.id) || 'default') === 'default';
+        exec(function(result) {
+            var isBinary = result instanceof ArrayBuffer;
+            callback(isBinary && !raw ? BeaconDetector.decodeBeacons(result) : result);
+            if (ackBatches && batched && (isBinary || Array.isArray(result))) {
+                exec(null, null, 'BeaconDetector', 'ackBatch', []);
+            }
+        }, function(error) {
             console.error('Error in beacon detection callback: ' + error);
-        }, 'BeaconDetector', 'onBeaconDetected', []);
+        }, 'BeaconDetector', 'onBeaconDetected', options ? [options] : []);
+    },
+    
+    /**
+     * Stop a subscription made with onBeaconDetected
+     * @param {string} [id] - Subscription id (default 'default')
+     * @param {Function} successCallback - Success callback
+     * @param {Function} errorCallback - Error callback
+     */
+    offBeaconDetected: function(id, successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'removeBeaconSubscription', [id || 'default']);
+    },
+    
+    /**
+     * Decode a binary beacon payload (see BinaryBeaconEncoder.java for the layout) into the same
+     * objects the JSON encoding delivers. Distances are single precision in this format.
+     * @param {ArrayBuffer} buffer - Payload received with encoding 'binary'
+     * @returns {Array} Beacon objects with uuid, major, minor, distance, rssi and, when
+     *     registered, title and url; delta records also carry event, and smoothedDistance /
+     *     smoothedRssi are present while smoothing is on
+     */
+    decodeBeacons: function(buffer) {
+        var view = new DataView(buffer);
+        if (view.getUint8(0) !== 0x42 || view.getUint8(1) !== 0x44) {
+            throw new Error('Not a beacon payload');
+        }
+        var recordSize = view.getUint8(3);
+        var count = view.getInt32(4);
+        var beacons = new Array(count);
+        
+        for (var i = 0; i < count; i++) {
+            var offset = 8 + i * recordSize;
+            var beacon = {
+                uuid: uuidAt(view, offset),
+                major: view.getUint16(offset + 16),
+                minor: view.getUint16(offset + 18),
+                distance: view.getFloat32(offset + 24),
+                rssi: view.getInt16(offset + 28)
+            };
+            var position = view.getInt32(offset + 20);
+            var registered = position >= 0 ? registeredBeacons[position] : null;
+            if (registered) {
+                beacon.title = registered.title;
+                beacon.url = registered.url;
+            }
+            var event = BINARY_EVENTS[view.getUint8(offset + 30)];
+            if (event) {
+                beacon.event = event;
+            }
+            if (recordSize >= 40) {
+                var smoothedDistance = view.getFloat32(offset + 32);
+                if (!isNaN(smoothedDistance)) {
+                    beacon.smoothedDistance = smoothedDistance;
+                    beacon.smoothedRssi = view.getFloat32(offset + 36);
+                }
+            }
+            beacons[i] = beacon;
+        }
+        return beacons;
+    },
+    
+    /**
+     * Configure native smoothing of distance and RSSI. While enabled every delivered beacon also
+     * carries smoothedDistance and smoothedRssi next to the raw values.
+     * @param {Object|null} options - null or {filter: 'none'} turns smoothing off, otherwise:
+     *     - filter: 'mean' (running average), 'exponential' or 'kalman'
+     *     - windowSize: samples in the running average (default 5)
+     *     - alpha: weight of the newest sample for 'exponential' (default 0.3)
+     *     - processNoise / measurementNoise: Kalman noise for distance (default 0.05 / 0.25)
+     *     - rssiProcessNoise / rssiMeasurementNoise: Kalman noise for RSSI (default 0.5 / 16)
+     *     - idleTimeout: ms without sightings before a beacon's filter state is dropped (default 30000)
+     * @param {Function} successCallback - Success callback
+     * @param {Function} errorCallback - Error callback
+     */
+    setSmoothing: function(options, successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'setSmoothing', [options || null]);
+    },
+    
+    /**
+     * Set how often the scanner runs. By default it scans 1.1 s with 2.2 s pauses in foreground
+     * and 5 s every 60 s in background. With adaptive true the foreground pause follows recent
+     * activity: it drops to minBetweenScanPeriod when a new beacon appears or a distance jumps,
+     * and backs off while nothing changes. debugBeaconScanner reports the period in use.
+     * @param {Object|null} options - null restores the defaults, otherwise:
+     *     - adaptive: adjust the foreground pause at runtime (default false)
+     *     - scanPeriod: foreground scan window in ms (default 1100)
+     *     - betweenScanPeriod: fixed foreground pause in ms when not adaptive (default 2200)
+     *     - minBetweenScanPeriod: pause while there is activity (default 0)
+     *     - stableBetweenScanPeriod: ceiling while only steady, known beacons are seen (default 5000)
+     *     - maxBetweenScanPeriod: ceiling while nothing is seen (default 30000)
+     *     - backoffFactor: growth of the pause per quiet cycle (default 2)
+     *     - fastDistanceChange: meters a distance must jump between cycles to count as activity (default 1)
+     *     - backgroundScanPeriod / backgroundBetweenScanPeriod: background schedule (default 5000 / 60000)
+     * @param {Function} successCallback - Success callback with the applied policy
+     * @param {Function} errorCallback - Error callback
+     */
+    setScanPolicy: function(options, successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'setScanPolicy', [options || null]);
+    },
+    
+    /**
+     * Configure batched delivery of ranging results to onBeaconDetected and listDetectedBeacons.
+     * Cycles are coalesced natively (one record per beacon, latest value) and delivered as a
+     * single array per flush instead of one bridge call per scan cycle.
+     * @param {Object|null} options - null or {enabled: false} turns batching off, otherwise:
+     *     - flushInterval: ms between deliveries (default 1000)
+     *     - maxBatchSize: records per delivery; a full batch is flushed early (default 200)
+     *     - maxPending: records buffered natively before the stalest is dropped (default 1000)
+     *     - maxInFlight: unacknowledged batches allowed before delivery pauses; 0 disables (default 0)
+     *     - ackTimeout: ms after which unacknowledged batches are given up on (default 10000)
+     * @param {Function} successCallback - Success callback
+     * @param {Function} errorCallback - Error callback
+     */
+    setBatching: function(options, successCallback, errorCallback) {
+        ackBatches = !!(options && options.enabled !== false && options.maxInFlight > 0);
+        exec(successCallback, errorCallback, 'BeaconDetector', 'setBatching', [options || null]);
+    },
+    
+    /**
+     * Configure native proximity zones. Zone transitions are sent to onZoneChanged instead of
+     * JS sorting every snapshot. By default each registered beacon is its own zone (id: its
+     * position in the initialize() array).
+     * @param {Object|null} options - null turns zones off, otherwise:
+     *     - zones: optional [{id, title, url, beacons: [{uuid, major, minor}]}] grouping beacons
+     *     - enterDistance: meters the nearest zone must be within to be entered (default 2)
+     *     - exitDistance: meters beyond which the current zone is left (default 3)
+     *     - enterDwell: ms a zone must stay nearest and in range before it is entered (default 2000)
+     *     - exitDwell: ms the current zone must stay out of range before it is left (default 5000)
+     *     - switchMargin: meters another zone must be nearer by to take over (default 0.5)
+     * @param {Function} successCallback - Success callback
+     * @param {Function} errorCallback - Error callback
+     */
+    setZones: function(options, successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'setZones', [options || null]);
+    },
+
+    /**
+     * Set callback for zone transitions configured with setZones
+     * @param {Function} callback - Receives an array of {event ('entered' or 'exited'), zone,
+     *     title, url, uuid, major, minor, distance, timestamp}; a switch between zones is an
+     *     'exited' followed by an 'entered'
+     */
+    onZoneChanged: function(callback) {
+        exec(callback, function(error) {
+            console.error('Error in zone tracking:', error);
+        }, 'BeaconDetector', 'onZoneChanged', []);
+    },
+
+    /**
+     * Configure the native position estimator. Each ranging cycle it fits a position to the
+     * distances of the strongest registered beacons that have x/y coordinates, on the floor of
+     * the strongest one, and sends the smoothed fix to onPositionUpdate.
+     * @param {Object|null} options - null turns positioning off, otherwise:
+     *     - maxBeacons: strongest beacons used per fix (default 5)
+     *     - maxDistance: meters beyond which a beacon is ignored (default 15)
+     *     - alpha: weight of a new fix against the previous position, 0-1 (default 0.4)
+     *     - resetAfter: ms without a fix after which smoothing starts over (default 10000)
+     * @param {Function} successCallback - Success callback
+     * @param {Function} errorCallback - Error callback
+     */
+    setPositioning: function(options, successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'setPositioning', [options || null]);
+    },
+
+    /**
+     * Set callback for position fixes configured with setPositioning
+     * @param {Function} callback - Receives {x, y, floor, accuracy (weighted RMS range residual
+     *     in meters), beacons (number used), method ('leastSquares', 'centroid' or 'nearest'),
+     *     timestamp}
+     */
+    onPositionUpdate: function(callback) {
+        exec(function(fixes) {
+            callback(fixes[0]);
+        }, function(error) {
+            console.error('Error in position tracking:', error);
+        }, 'BeaconDetector', 'onPositionUpdate', []);
+    },
+
+    /**
+     * Configure what happens while the app is in the background. On pause the scanner always
+     * switches to its background scan periods; with buffering (the default) results are no
+     * longer sent to the WebView but coalesced natively, and onBackgroundSummary gets one
+     * summary on resume. Takes effect on the next pause.
+     * @param {Object} options - Background options:
+     *     - buffer: false keeps delivering results live in the background (default true)
+     *     - maxBeacons: beacons kept in the summary; later ones are only counted (default 256)
+     *     - maxEvents: enter/exit and zone events kept, oldest dropped first (default 500)
+     *     - exitTimeout: ms unseen before a beacon counts as exited (default 30000)
+     *     - immediate: event kinds still delivered at once, any of 'entered', 'exited' (to
+     *       every onBeaconDetected subscriber, as JSON delta records) and 'zone' (to
+     *       onZoneChanged)
+     * @param {Function} successCallback - Success callback
+     * @param {Function} errorCallback - Error callback
+     */
+    setBackgroundMode: function(options, successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'setBackgroundMode', [options || null]);
+    },
+
+    /**
+     * Set callback for the summary of each background interval, sent on resume
+     * @param {Function} callback - Receives {pausedAt, resumedAt, cycles, beacons (each
+     *     {uuid, major, minor, title, url, distance, rssi, minDistance, firstSeen, lastSeen,
+     *     sightings} with the latest state), events (oldest first; {event, uuid, major, minor,
+     *     title, url} for beacons or {event, zone} for zones, plus distance and timestamp),
+     *     position (last fix, with positioning on), droppedBeacons, droppedEvents}
+     */
+    onBackgroundSummary: function(callback) {
+        exec(function(summaries) {
+            callback(summaries[0]);
+        }, function(error) {
+            console.error('Error in background summary:', error);
+        }, 'BeaconDetector', 'onBackgroundSummary', []);
+    },
+    
+    /**
+     * Configure the native sighting history used by getDwellTimes and getVisits. Sightings
+     * less than visitGap apart make one visit; visits older than fineHorizon are folded into
+     * per-beacon buckets, and every store is capped, so memory stays bounded.
+     * @param {Object|null} options - null turns the history off and drops it, otherwise:
+     *     - visitGap: ms a beacon may go unseen within one visit (default 30000)
+     *     - fineHorizon: ms visits are kept at full resolution (default 900000)
+     *     - bucket: ms per bucket for older history (default 300000)
+     *     - maxBeacons: beacons with history at once; a beacon whose history has all aged out
+     *       frees its place, and sightings beyond the limit are counted, not kept (default 4096)
+     *     - maxVisits: full-resolution visits kept (default 20000)
+     *     - maxBuckets: buckets kept; the oldest are dropped beyond it (default 100000)
+     * @param {Function} successCallback - Success callback
+     * @param {Function} errorCallback - Error callback
+     */
+    setHistory: function(options, successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'setHistory', [options || null]);
+    },
+
+    /**
+     * Dwell time and visit count per beacon over a time window, from the sighting history
+     * @param {Object} [options] - Query options:
+     *     - since: epoch ms the window starts at, or
+     *     - window: window length in ms ending now (default 3600000)
+     *     - registeredOnly: only report registered beacons (default false)
+     * @param {Function} successCallback - Receives {since, complete (false when part of the
+     *     window is only known per bucket), memoryBytes, beacons: [{uuid, major, minor, title,
+     *     url, dwell (ms), visits, lastSeen}]}
+     * @param {Function} errorCallback - Error callback
+     */
+    getDwellTimes: function(options, successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'getDwellTimes', [options || null]);
+    },
+
+    /**
+     * Individual visits since a time, from the full-resolution part of the sighting history
+     * @param {Object} [options] - since or window as for getDwellTimes, registeredOnly, and
+     *     limit: most visits returned, open ones first and then newest first (default 1000)
+     * @param {Function} successCallback - Receives {since, complete, visits: [{uuid, major,
+     *     minor, title, url, start, end, open}]}
+     * @param {Function} errorCallback - Error callback
+     */
+    getVisits: function(options, successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'getVisits', [options || null]);
+    },
+    
+    /**
+     * Turn the on-device event journal on or off. While on, detections (every ranging cycle),
+     * zone transitions and permission events are appended to segment files in the app's
+     * files dir, written in batches off the scanning thread, for export with readJournal.
+     * @param {Object|null} options - null stops journaling (written records are kept), otherwise:
+     *     - detections: journal ranging cycles, not only zone and permission events (default true)
+     *     - segmentBytes: size after which a new segment file is started (default 1 MB)
+     *     - maxBytes: size beyond which the oldest segments are deleted, exported or not (default 16 MB)
+     *     - flushInterval: ms between batched writes (default 2000)
+     *     - batchBytes: pending bytes that trigger a write before the interval (default 32 KB)
+     *     - bufferBytes: pending bytes held in memory before records are dropped (default 256 KB)
+     * @param {Function} successCallback - Success callback
+     * @param {Function} errorCallback - Error callback
+     */
+    setJournal: function(options, successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'setJournal', [options || null]);
+    },
+
+    /**
+     * Read journal records from a cursor
+     * @param {number} fromOffset - Offset to read from: 0 or a previous nextOffset
+     * @param {number} maxRecords - Most records returned (default 500)
+     * @param {Function} successCallback - Receives {records, nextOffset, firstOffset, endOffset};
+     *     each record has offset, timestamp and type: 'detection' with beacons [{uuid, major,
+     *     minor, distance, rssi}], 'zone' with event, zone and distance, or 'event' with the
+     *     event object
+     * @param {Function} errorCallback - Error callback
+     */
+    readJournal: function(fromOffset, maxRecords, successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'readJournal', [fromOffset || 0, maxRecords || 500]);
+    },
+
+    /**
+     * Acknowledge exported journal records so their space can be reclaimed
+     * @param {number} offset - A nextOffset from readJournal; records before it are dropped
+     * @param {Function} successCallback - Receives the journal stats
+     * @param {Function} errorCallback - Error callback
+     */
+    ackJournal: function(offset, successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'ackJournal', [offset]);
+    },
+
+    /**
+     * Record every raw ranging cycle to a named on-device recording for startReplay. It is a
+     * detections-only journal of its own; recording again under a name appends to it.
+     * @param {Object} options - name (letters, digits, '-' and '_'), plus the size and flush
+     *     options of setJournal (segmentBytes, maxBytes, flushInterval, ...)
+     * @param {Function} successCallback - Success callback
+     * @param {Function} errorCallback - Error callback
+     */
+    startRecording: function(options, successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'startRecording', [options || null]);
+    },
+
+    /**
+     * Stop recording
+     * @param {Function} successCallback - Receives the recording's journal stats
+     * @param {Function} errorCallback - Error callback
+     */
+    stopRecording: function(successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'stopRecording', []);
+    },
+
+    /**
+     * Feed recorded or synthetic ranging cycles through the same native matching, filtering
+     * and delivery as live ranging, e.g. to load-test a configuration. Scanning must be
+     * stopped. Cycles keep their recorded spacing on the replay clock whatever the speed.
+     * @param {Object} options - Replay options:
+     *     - name: recording to replay, or
+     *     - synthetic: {beacons (default 500), cycles (default 10000), interval (ms between
+     *       cycles, default 1000), range (meters, default 25), walkSpeed (m/s, default 1.4),
+     *       seed (default 1)}: a reproducible walk through a grid of beacons, registered ones
+     *       first
+     *     - speed: 1 real time, 10 ten times faster, 0 as fast as the pipeline goes (default 1)
+     *     - loops: times to play it (default 1)
+     * @param {Function} successCallback - Receives {source, speed, cycles, beacons, elapsedMs,
+     *     cyclesPerSecond, beaconsPerSecond, maxBehindMs, stopped} once the replay ends;
+     *     getMetrics has the cycle latencies
+     * @param {Function} errorCallback - Error callback
+     */
+    startReplay: function(options, successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'startReplay', [options || null]);
+    },
+
+    /**
+     * Stop a running replay; its startReplay callback still gets the stats
+     * @param {Function} successCallback - Success callback
+     * @param {Function} errorCallback - Error callback
+     */
+    stopReplay: function(successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'stopReplay', []);
+    },
+    
+    /**
+     * Read ranging hot-path metrics: cycles and beacons (totals and per second), results sent,
+     * callback errors, cycles dropped for lack of a subscriber, and microsecond latency
+     * histograms (count, mean, max, p50/p95/p99, bounds, counts) for the whole cycle and its
+     * match, serialize and send stages, plus a beacons-per-cycle histogram.
+     * @param {Object} [options] - Metrics options:
+     *     - reset: start counting afresh after this read (default false)
+     *     - interval: keep the callback and push a snapshot every interval ms (resetting after
+     *       each when reset is true); 0 stops a running push
+     * @param {Function} successCallback - Success callback with the metrics
+     * @param {Function} errorCallback - Error callback
+     */
+    getMetrics: function(options, successCallback, errorCallback) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'getMetrics', [options || null]);
     },
     
     /**
@@ -69,12 +586,15 @@ var BeaconDetector = {
     },
     
     /**
-     * Get a list of detected beacons without starting continuous scanning
+     * Get a list of detected beacons. While scanning the list comes at once from the latest
+     * sightings; otherwise a single scan of up to 5 seconds is run.
      * @param {Function} successCallback - Success callback with list of beacons
      * @param {Function} errorCallback - Error callback
+     * @param {Object} [options] - maxAge: while scanning, only beacons seen in the last maxAge ms
+     *     (default and upper bound: the sightingTtl given to startScanning)
      */
-    listDetectedBeacons: function(successCallback, errorCallback) {
-        exec(successCallback, errorCallback, 'BeaconDetector', 'listDetectedBeacons', []);
+    listDetectedBeacons: function(successCallback, errorCallback, options) {
+        exec(successCallback, errorCallback, 'BeaconDetector', 'listDetectedBeacons', options ? [options] : []);
     },
     
     // Add this before the module.exports line